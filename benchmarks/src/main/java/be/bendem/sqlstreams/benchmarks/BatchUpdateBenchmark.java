@@ -0,0 +1,95 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.BatchUpdate;
+import be.bendem.sqlstreams.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BatchUpdate} insert throughput against a raw JDBC batch.
+ * <p>
+ * Each invocation inserts {@code batchSize} rows in a single transaction, the
+ * table is emptied before each iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchUpdateBenchmark {
+
+    private static final String INSERT = "insert into bench (name, amount, flag) values (?, ?, ?)";
+
+    public static class BatchState extends DatabaseState {
+
+        @Param({ "100" })
+        public int batchSize;
+
+        @Setup
+        public void setup() throws SQLException {
+            open();
+        }
+
+        @Setup(Level.Iteration)
+        public void truncate() throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("delete from bench");
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            close();
+        }
+    }
+
+    @Benchmark
+    public int[] insertRawJdbc(BatchState state) throws SQLException {
+        int[] counts;
+        state.connection.setAutoCommit(false);
+        try (PreparedStatement statement = state.connection.prepareStatement(INSERT)) {
+            for (int i = 0; i < state.batchSize; ++i) {
+                statement.setString(1, "name");
+                statement.setLong(2, i);
+                statement.setBoolean(3, true);
+                statement.addBatch();
+            }
+            counts = statement.executeBatch();
+        }
+        state.connection.commit();
+        state.connection.setAutoCommit(true);
+        return counts;
+    }
+
+    @Benchmark
+    public int[] insertSqlStreams(BatchState state) {
+        int[] counts;
+        try (Transaction transaction = state.sql.transaction();
+             BatchUpdate batch = transaction.batchUpdate(INSERT)) {
+            for (int i = 0; i < state.batchSize; ++i) {
+                batch.with("name", (long) i, true).next();
+            }
+            counts = batch.counts();
+            transaction.commit();
+        }
+        return counts;
+    }
+
+    @Benchmark
+    public int insertSqlStreamsRewritten(BatchState state) {
+        int count;
+        try (Transaction transaction = state.sql.transaction();
+             BatchUpdate batch = transaction.batchUpdate(INSERT).rewriteInserts()) {
+            for (int i = 0; i < state.batchSize; ++i) {
+                batch.with("name", (long) i, true).next();
+            }
+            count = batch.count();
+            transaction.commit();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,29 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * The in-memory databases every benchmark runs against.
+ */
+public enum Database {
+    H2("jdbc:h2:mem:", "identity"),
+    SQLITE("jdbc:sqlite:", "integer primary key");
+
+    private final String url;
+    private final String autoIncrementPrimaryKey;
+
+    Database(String url, String autoIncrementPrimaryKey) {
+        this.url = url;
+        this.autoIncrementPrimaryKey = autoIncrementPrimaryKey;
+    }
+
+    public String autoIncrementPrimaryKey() {
+        return autoIncrementPrimaryKey;
+    }
+
+    public Connection connect() throws SQLException {
+        return DriverManager.getConnection(url);
+    }
+}
@@ -0,0 +1,64 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.Sql;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Opens a single connection used both directly, as the raw JDBC baseline, and
+ * through {@link Sql#connect(Connection)}.
+ * <p>
+ * Benchmarks are single threaded so both sides can share the connection, which
+ * guarantees they run against the exact same data.
+ */
+@State(Scope.Benchmark)
+public abstract class DatabaseState {
+
+    @Param({ "H2", "SQLITE" })
+    public Database database;
+
+    public Connection connection;
+    public Sql sql;
+
+    protected void open() throws SQLException {
+        connection = database.connect();
+        sql = Sql.connect(connection);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table bench (" +
+                "id " + database.autoIncrementPrimaryKey() + " not null," +
+                "name varchar(64) not null," +
+                "amount bigint not null," +
+                "flag boolean not null" +
+            ")");
+        }
+    }
+
+    protected void insertRows(int rows) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(
+                "insert into bench (id, name, amount, flag) values (?, ?, ?, ?)")) {
+            for (int i = 0; i < rows; ++i) {
+                statement.setInt(1, i);
+                statement.setString(2, "name " + i);
+                statement.setLong(3, i * 31L);
+                statement.setBoolean(4, i % 2 == 0);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        connection.commit();
+        connection.setAutoCommit(autoCommit);
+    }
+
+    protected void close() {
+        sql.close();
+    }
+}
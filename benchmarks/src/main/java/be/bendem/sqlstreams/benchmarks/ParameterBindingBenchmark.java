@@ -0,0 +1,60 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.ParameterProvider;
+import be.bendem.sqlstreams.Query;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of {@link ParameterProvider#with(Object...)} type based
+ * binding compared to calling the typed setters directly.
+ * <p>
+ * Statements are prepared once per trial, only binding is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParameterBindingBenchmark {
+
+    private static final String SQL = "select id from bench where id = ? and name = ? and amount = ? and flag = ?";
+
+    public static class BindingState extends DatabaseState {
+
+        public PreparedStatement rawStatement;
+        public Query query;
+
+        @Setup
+        public void setup() throws SQLException {
+            open();
+            rawStatement = connection.prepareStatement(SQL);
+            query = sql.query(SQL);
+        }
+
+        @TearDown
+        public void tearDown() throws SQLException {
+            rawStatement.close();
+            query.close();
+            close();
+        }
+    }
+
+    @Benchmark
+    public PreparedStatement bindRawJdbc(BindingState state) throws SQLException {
+        PreparedStatement statement = state.rawStatement;
+        statement.setInt(1, 42);
+        statement.setString(2, "name 42");
+        statement.setLong(3, 42 * 31L);
+        statement.setBoolean(4, true);
+        return statement;
+    }
+
+    @Benchmark
+    public Query bindSqlStreams(BindingState state) {
+        return state.query.with(42, "name 42", 42 * 31L, true);
+    }
+}
@@ -0,0 +1,58 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.UncheckedSqlException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The reflective {@link Proxy} previously used by {@link
+ * be.bendem.sqlstreams.util.SingleConnectionDataSource} to wrap its
+ * connection, kept as a baseline.
+ */
+final class ProxyConnection {
+
+    private ProxyConnection() {
+    }
+
+    static Connection wrap(Connection connection) {
+        AtomicBoolean inUse = new AtomicBoolean(true);
+        return (Connection) Proxy.newProxyInstance(
+            ProxyConnection.class.getClassLoader(),
+            new Class[] { Connection.class },
+            (proxy, method, args) -> {
+                try {
+                    if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                        if (!connection.getAutoCommit()) {
+                            connection.rollback();
+                        }
+                        connection.setAutoCommit(true);
+                        inUse.set(false);
+                        return null;
+                    } else if (method.getName().equals("isClosed") && method.getParameterCount() == 0) {
+                        return !inUse.get();
+                    }
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    Exception exception;
+                    if (cause instanceof SQLException) {
+                        exception = new UncheckedSqlException((SQLException) cause);
+                    } else if (cause instanceof RuntimeException) {
+                        cause.addSuppressed(e);
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        cause.addSuppressed(e);
+                        throw (Error) cause;
+                    } else {
+                        exception = new RuntimeException(cause);
+                    }
+                    exception.addSuppressed(e);
+                    throw exception;
+                }
+            });
+    }
+}
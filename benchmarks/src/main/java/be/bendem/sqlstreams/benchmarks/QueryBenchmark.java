@@ -0,0 +1,76 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.Query;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link Query#map} streaming throughput and {@link Query#first}
+ * latency against the equivalent hand-written JDBC code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private static final String SELECT_ALL = "select id, name, amount, flag from bench";
+    private static final String SELECT_ONE = "select id, name, amount, flag from bench where id = ?";
+
+    public static class QueryState extends DatabaseState {
+
+        @Param({ "10", "1000" })
+        public int rows;
+
+        @Setup
+        public void setup() throws SQLException {
+            open();
+            insertRows(rows);
+        }
+
+        @TearDown
+        public void tearDown() {
+            close();
+        }
+    }
+
+    @Benchmark
+    public void mapRawJdbc(QueryState state, Blackhole blackhole) throws SQLException {
+        try (PreparedStatement statement = state.connection.prepareStatement(SELECT_ALL);
+             ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                blackhole.consume(Row.map(rs));
+            }
+        }
+    }
+
+    @Benchmark
+    public void mapSqlStreams(QueryState state, Blackhole blackhole) {
+        try (Stream<Row> stream = state.sql.query(SELECT_ALL).map(Row::map)) {
+            stream.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public Row firstRawJdbc(QueryState state) throws SQLException {
+        try (PreparedStatement statement = state.connection.prepareStatement(SELECT_ONE)) {
+            statement.setInt(1, state.rows / 2);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? Row.map(rs) : null;
+            }
+        }
+    }
+
+    @Benchmark
+    public Optional<Row> firstSqlStreams(QueryState state) {
+        return state.sql.first(SELECT_ONE, Row::map, state.rows / 2);
+    }
+}
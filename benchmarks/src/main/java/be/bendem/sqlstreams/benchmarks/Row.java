@@ -0,0 +1,26 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The object each row of the {@code bench} table is mapped to.
+ */
+public final class Row {
+
+    public final int id;
+    public final String name;
+    public final long amount;
+    public final boolean flag;
+
+    public Row(int id, String name, long amount, boolean flag) {
+        this.id = id;
+        this.name = name;
+        this.amount = amount;
+        this.flag = flag;
+    }
+
+    public static Row map(ResultSet rs) throws SQLException {
+        return new Row(rs.getInt(1), rs.getString(2), rs.getLong(3), rs.getBoolean(4));
+    }
+}
@@ -0,0 +1,85 @@
+package be.bendem.sqlstreams.benchmarks;
+
+import be.bendem.sqlstreams.util.SingleConnectionDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the connection wrapper handed out by {@link
+ * SingleConnectionDataSource} compared to calling the driver connection
+ * directly and to the reflective proxy it used to hand out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SingleConnectionDataSourceBenchmark {
+
+    public static class DataSourceState extends DatabaseState {
+
+        public SingleConnectionDataSource dataSource;
+        public Connection wrapped;
+        public Connection proxy;
+
+        @Setup
+        public void setup() throws SQLException {
+            open();
+            dataSource = new SingleConnectionDataSource(connection);
+            wrapped = dataSource.getConnection();
+            proxy = ProxyConnection.wrap(connection);
+        }
+
+        @TearDown
+        public void tearDown() throws SQLException {
+            wrapped.close();
+            close();
+        }
+    }
+
+    @Benchmark
+    public boolean getAutoCommitRawJdbc(DataSourceState state) throws SQLException {
+        return state.connection.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean getAutoCommitWrapped(DataSourceState state) throws SQLException {
+        return state.wrapped.getAutoCommit();
+    }
+
+    @Benchmark
+    public boolean getAutoCommitProxy(DataSourceState state) throws SQLException {
+        return state.proxy.getAutoCommit();
+    }
+
+    @Benchmark
+    public void prepareStatementRawJdbc(DataSourceState state) throws SQLException {
+        try (PreparedStatement statement = state.connection.prepareStatement("select id from bench")) {
+            statement.getFetchSize();
+        }
+    }
+
+    @Benchmark
+    public void prepareStatementWrapped(DataSourceState state) throws SQLException {
+        try (PreparedStatement statement = state.wrapped.prepareStatement("select id from bench")) {
+            statement.getFetchSize();
+        }
+    }
+
+    @Benchmark
+    public void prepareStatementProxy(DataSourceState state) throws SQLException {
+        try (PreparedStatement statement = state.proxy.prepareStatement("select id from bench")) {
+            statement.getFetchSize();
+        }
+    }
+
+    @Benchmark
+    public void getConnectionAndClose(DataSourceState state) throws SQLException {
+        state.wrapped.close();
+        state.wrapped = state.dataSource.getConnection();
+    }
+}
@@ -0,0 +1,124 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * An asynchronous view of a {@link Sql} instance.
+ * <p>
+ * Each operation is executed on the executor of this view and returns a {@link
+ * CompletableFuture} completed with its result, or completed exceptionally with
+ * the {@link UncheckedSqlException} thrown by the operation. Results of queries
+ * are collected before completing the future so that no resource outlives the
+ * operation.
+ * <p>
+ * Operations are independent from each other, each one gets its own connection
+ * from the underlying {@code Sql} instance. The number of operations running
+ * concurrently is bound by the executor, the connections available are bound
+ * by the underlying {@link javax.sql.DataSource}.
+ *
+ * @see Sql#async()
+ * @see Sql#async(Executor)
+ */
+public interface AsyncSql {
+
+    /**
+     * Returns the executor running the operations of this view.
+     *
+     * @return the executor of this view
+     */
+    Executor executor();
+
+    /**
+     * Runs arbitrary code using the underlying {@link Sql} instance.
+     * <p>
+     * Note that the code must not return objects holding resources (such as
+     * {@link java.util.stream.Stream}s of {@link Query#map(SqlFunction)}) as
+     * they would be used outside of the operation.
+     *
+     * @param operation the code to run
+     * @param <R> the type of the result
+     * @return a future completed with the result of the operation
+     */
+    <R> CompletableFuture<R> run(Function<? super Sql, ? extends R> operation);
+
+    /**
+     * Executes a query and collects each row mapped using the provided mapping
+     * function.
+     *
+     * @param sql the sql query
+     * @param mapping a function to map each row to an object
+     * @param parameters parameters to apply in order to the provided query
+     * @param <R> the type of the elements of the returned list
+     * @return a future completed with the mapped rows
+     * @see Sql#query(String)
+     */
+    <R> CompletableFuture<List<R>> query(String sql, SqlFunction<ResultSet, R> mapping, Object... parameters);
+
+    /**
+     * Executes a query and maps its first row using the provided mapping
+     * function.
+     *
+     * @param sql the sql query
+     * @param mapping a function to map the first row to an object
+     * @param parameters parameters to apply in order to the provided query
+     * @param <R> the type of the returned element
+     * @return a future completed with the first mapped row if any
+     * @see Sql#first(String, SqlFunction, Object...)
+     */
+    <R> CompletableFuture<Optional<R>> first(String sql, SqlFunction<ResultSet, R> mapping, Object... parameters);
+
+    /**
+     * Executes a DML statement.
+     *
+     * @param sql the sql query
+     * @param parameters parameters to apply in order to the provided query
+     * @return a future completed with the amount of rows modified
+     * @see Sql#update(String)
+     */
+    CompletableFuture<Integer> update(String sql, Object... parameters);
+
+    /**
+     * Executes a DML statement for each of the provided items in batches.
+     *
+     * @param sql the sql query
+     * @param items the items to insert or update
+     * @param binder the code binding the parameters of an item
+     * @param <T> the type of the items
+     * @return a future completed with the amount of rows modified
+     * @see BatchUpdate#executeAll(java.util.stream.Stream, BiConsumer)
+     */
+    <T> CompletableFuture<Long> batchUpdate(String sql, Collection<T> items, BiConsumer<BatchUpdate, ? super T> binder);
+
+    /**
+     * Executes a statement.
+     *
+     * @param sql the sql query
+     * @param parameters parameters to apply in order to the provided query
+     * @return a future completed once the statement is executed
+     * @see Sql#exec(String, Object...)
+     */
+    CompletableFuture<Void> exec(String sql, Object... parameters);
+
+    /**
+     * Runs the provided code in a transaction.
+     * <p>
+     * The transaction is committed if the code returns normally and rolled
+     * back if it throws.
+     *
+     * @param operation the code to run in the transaction
+     * @param <R> the type of the result
+     * @return a future completed with the result of the operation once the
+     *         transaction is committed
+     * @see Sql#transaction()
+     */
+    <R> CompletableFuture<R> transaction(Function<? super Transaction, ? extends R> operation);
+}
@@ -1,9 +1,108 @@
 package be.bendem.sqlstreams;
 
+import be.bendem.sqlstreams.util.SqlFunction;
+
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 public interface BatchUpdate extends ParameterProvider<BatchUpdate, PreparedStatement> {
 
+    /**
+     * Executes the pending batches automatically each time {@code rows}
+     * batches of parameters were added.
+     *
+     * @param rows the number of batches to execute at once, {@code 0} to
+     *             disable the threshold
+     * @return {@code this} for chaining
+     * @see #flushThreshold(int, long)
+     */
+    default BatchUpdate flushThreshold(int rows) {
+        return flushThreshold(rows, 0);
+    }
+
+    /**
+     * Executes the pending batches automatically each time {@code rows}
+     * batches of parameters were added or the approximate size of their
+     * parameters reaches {@code bytes}, whichever comes first.
+     * <p>
+     * This bounds the number of parameters the driver has to keep in memory.
+     * The counts of the batches executed automatically are kept and returned
+     * along with the others by the count methods. Note that outside of a
+     * {@link Transaction}, batches executed automatically are committed
+     * independently.
+     * <p>
+     * The size of the parameters is estimated from the values provided to
+     * {@link #with(Object...)}, {@link #set(int, Object)}, {@link
+     * #setObject(int, Object)}, {@link #setString(int, String)}, {@link
+     * #setNString(int, String)} and {@link #setBytes(int, byte[])}.
+     *
+     * @param rows the number of batches to execute at once, {@code 0} to
+     *             disable the threshold
+     * @param bytes the approximate size of the parameters to execute at once,
+     *              {@code 0} to disable the threshold
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if a threshold is negative
+     */
+    BatchUpdate flushThreshold(int rows, long bytes);
+
+    /**
+     * Rewrites simple {@code insert into t (...) values (?, ...)} statements to
+     * insert up to 128 rows per statement.
+     *
+     * @return {@code this} for chaining
+     * @see #rewriteInserts(int)
+     */
+    default BatchUpdate rewriteInserts() {
+        return rewriteInserts(128);
+    }
+
+    /**
+     * Rewrites simple {@code insert into t (...) values (?, ...)} statements to
+     * insert multiple rows per statement using {@code values (...), (...)}
+     * instead of executing the statement once per batch of parameters.
+     * <p>
+     * Batches of parameters are buffered and inserted using statements
+     * inserting a power of two number of rows, the largest first, so that only
+     * a few different statements are prepared (and cached, see {@link
+     * Sql#enableStatementCache(int)}). The number of rows per statement is also
+     * limited to keep the number of parameters under {@code 999}.
+     * <p>
+     * When rewriting, parameters must be provided using {@link
+     * #with(Object...)}, {@link #set(int, Object)} or {@link #setNull(int,
+     * int)} ({@code null} values passed to {@link #with(Object...)} are bound
+     * as {@link java.sql.Types#NULL}), other setters throw an {@link
+     * IllegalStateException}. The counts of individual rows are not
+     * known, {@link #counts()} and {@link #largeCounts()} return {@link
+     * java.sql.Statement#SUCCESS_NO_INFO} for each row while {@link #count()}
+     * and {@link #largeCount()} return the actual number of inserted rows.
+     * <p>
+     * Statements that are not recognized are executed as normal batches.
+     *
+     * @param maxRows the maximum number of rows to insert per statement
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if {@code maxRows} is not positive
+     * @throws IllegalStateException if parameters were already added
+     */
+    BatchUpdate rewriteInserts(int maxRows);
+
+    /**
+     * Binds and adds a batch of parameters for each item of the provided stream,
+     * executing the batches periodically, and returns the sum of the amount of
+     * rows modified.
+     * <p>
+     * Items are consumed in order. If no threshold was set using {@link
+     * #flushThreshold(int, long)}, batches are executed every {@code 1000}
+     * items.
+     *
+     * @param items the items to insert or update
+     * @param binder the code binding the parameters of an item
+     * @param <T> the type of the items
+     * @return the amount of rows modified
+     */
+    <T> long executeAll(Stream<T> items, BiConsumer<BatchUpdate, ? super T> binder);
+
     /**
      * Ends the current batch of parameters.
      * <p>
@@ -61,4 +160,33 @@ public interface BatchUpdate extends ParameterProvider<BatchUpdate, PreparedStat
      * @see PreparedStatement#executeLargeBatch()
      */
     long largeCount();
+
+    /**
+     * Executes the pending batches and maps the keys generated by all the
+     * batches executed since the last call to this method (or to a count
+     * method) using the provided mapping function.
+     * <p>
+     * The statement must have been prepared using {@link
+     * Sql#batchInsert(String)}. Drivers that only return the key of the last
+     * row of a batch (SQLite) have their rows executed one by one. The keys
+     * are read when this method is called, the returned stream doesn't hold
+     * any resource.
+     *
+     * @param mapping the mapping function
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of each key generated by this batch
+     * @throws IllegalStateException if generated keys were not requested
+     * @see PreparedStatement#getGeneratedKeys()
+     */
+    <R> Stream<R> generatedKeys(SqlFunction<ResultSet, R> mapping);
+
+    /**
+     * Executes the pending batches and returns the first column of the keys
+     * they generated as longs.
+     *
+     * @return the keys generated by this batch
+     * @throws IllegalStateException if generated keys were not requested
+     * @see #generatedKeys(SqlFunction)
+     */
+    long[] generatedKeys();
 }
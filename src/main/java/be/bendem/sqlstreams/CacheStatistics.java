@@ -0,0 +1,105 @@
+package be.bendem.sqlstreams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the counters of a cache.
+ */
+public final class CacheStatistics {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long loadCount;
+    private final long totalLoadNanos;
+
+    public CacheStatistics(long hitCount, long missCount, long evictionCount) {
+        this(hitCount, missCount, evictionCount, 0, 0);
+    }
+
+    public CacheStatistics(long hitCount, long missCount, long evictionCount, long loadCount, long totalLoadNanos) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadNanos = totalLoadNanos;
+    }
+
+    /**
+     * Returns the number of lookups that found a cached entry.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find a cached entry.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of entries that were removed from the cache to make
+     * room for new ones.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of values loaded after a miss, successfully or not.
+     *
+     * @return the number of loads
+     */
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * Returns the total time spent loading values after a miss.
+     *
+     * @param unit the unit of the returned time
+     * @return the total load time
+     */
+    public long getTotalLoadTime(TimeUnit unit) {
+        return unit.convert(totalLoadNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the average time spent loading a value after a miss.
+     *
+     * @param unit the unit of the returned time
+     * @return the average load time, {@code 0} if nothing was loaded
+     */
+    public long getAverageLoadTime(TimeUnit unit) {
+        return loadCount == 0 ? 0 : unit.convert(totalLoadNanos / loadCount, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the ratio of lookups that found a cached entry.
+     *
+     * @return the hit ratio, {@code 1.0} if the cache was never used
+     */
+    public double getHitRatio() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{" +
+            "hitCount=" + hitCount +
+            ", missCount=" + missCount +
+            ", evictionCount=" + evictionCount +
+            ", loadCount=" + loadCount +
+            ", totalLoadNanos=" + totalLoadNanos +
+            '}';
+    }
+}
@@ -0,0 +1,95 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * A query whose results are served from the query cache of the {@link Sql}
+ * instance it was created from.
+ * <p>
+ * Results are cached by sql, parameter values and mapping key. The cache is
+ * looked up before a connection is acquired or a statement prepared, a hit
+ * doesn't touch the database at all. On a miss, the query is executed and all
+ * its rows are mapped before the mapping method returns. Rows are mapped once
+ * and shared between the streams returned for the same key, mapped values
+ * should be immutable.
+ * <p>
+ * If the query cache is not enabled or inside a transaction, the query is
+ * executed and streamed like a regular {@link Query}, the returned streams
+ * should then be closed.
+ *
+ * @see Sql#cachedQuery(String, String...)
+ */
+public interface CachedQuery {
+
+    /**
+     * Sets the parameters bound to the query.
+     * <p>
+     * The parameter values are part of the cache key, they are compared using
+     * {@link Object#equals(Object)} (arrays by content).
+     *
+     * @param parameters parameters to apply in order to the query
+     * @return {@code this} for chaining
+     * @see ParameterProvider#with(Object...)
+     */
+    CachedQuery with(Object... parameters);
+
+    /**
+     * Returns the first row of this query using the provided mapping function.
+     *
+     * @param key the key identifying {@code mapping} in the cache
+     * @param mapping a function to map the first row to an object
+     * @param <R> the type of the returned object
+     * @return the first row of this query mapped using the provided mapping
+     *         function
+     * @see #map(Object, SqlFunction)
+     */
+    default <R> Optional<R> first(Object key, SqlFunction<ResultSet, R> mapping) {
+        try (Stream<R> stream = map(key, mapping)) {
+            return stream.findFirst();
+        }
+    }
+
+    /**
+     * Maps each row returned by this query using the provided mapping function.
+     * <p>
+     * Mapping functions can't be told apart reliably (capturing lambdas are a
+     * new instance for each evaluation), {@code key} identifies the mapping
+     * instead: the same key must always be used with mappings returning the
+     * same values for the same rows. Keys are compared using {@link
+     * Object#equals(Object)}.
+     *
+     * @param key the key identifying {@code mapping} in the cache
+     * @param mapping a function to map each row to an object
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of elements mapped from the result set
+     */
+    <R> Stream<R> map(Object key, SqlFunction<ResultSet, R> mapping);
+
+    /**
+     * Maps each row returned by this query to an instance of {@code clazz},
+     * the class being the key of the mapping in the cache.
+     *
+     * @param clazz the class to map rows to
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of instances mapped from the result set
+     * @see Query#mapTo(Class)
+     */
+    <R> Stream<R> mapTo(Class<R> clazz);
+
+    /**
+     * Maps the column at the provided index of each row returned by this query
+     * using the bindings registered for {@code clazz}, the index and the class
+     * being the key of the mapping in the cache.
+     *
+     * @param columnIndex the index of the column, starting at 1
+     * @param clazz the class of the values of the column
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of the values of the column
+     * @see Query#column(int, Class)
+     */
+    <R> Stream<R> column(int columnIndex, Class<R> clazz);
+}
@@ -0,0 +1,49 @@
+package be.bendem.sqlstreams;
+
+/**
+ * How {@link java.util.Collection}s and arrays (other than {@code byte[]}) are
+ * bound by {@link ParameterProvider#with(Object...)} and {@link
+ * ParameterProvider#set(int, Object)}.
+ *
+ * @see Sql#bindCollections(CollectionBinding)
+ */
+public enum CollectionBinding {
+
+    /**
+     * Expands the parameter a collection is bound to into one parameter per
+     * element, for use in {@code in (?)} lists.
+     * <p>
+     * To keep the number of distinct statements low, collections are expanded
+     * to the next power of two number of parameters, repeating their last
+     * element. An empty collection is bound as a single {@code null}, note
+     * that {@code not in (null)} matches no row.
+     * <p>
+     * Statements are limited to 999 parameters once expanded (the lowest
+     * limit of the supported databases), binding a larger collection fails
+     * with an {@link IllegalArgumentException}, use {@link #ARRAY} or a
+     * temporary table instead.
+     * <p>
+     * The statement is prepared again with the expanded sql when a collection
+     * is bound, this is only supported by statements prepared from a sql
+     * string with the parameter in a list (such as {@code in (?)}), outside of
+     * batches. Parameters bound so far are bound again on
+     * the new statement, changes made to the statement using {@link
+     * ParameterProvider#prepare(be.bendem.sqlstreams.util.SqlConsumer)}
+     * (except for the fetch size, max rows and query timeout) are not kept.
+     */
+    EXPAND,
+
+    /**
+     * Binds a collection to a single parameter as a sql {@link java.sql.Array},
+     * for use in {@code = any(?)} conditions (or {@code array_contains(?, column)}
+     * with older H2 versions).
+     * <p>
+     * The type of the array is deduced from the component type of arrays or
+     * from the first non {@code null} element of collections. This requires
+     * the database and driver to support arrays (H2 and PostgreSQL do, SQLite
+     * doesn't).
+     *
+     * @see java.sql.Connection#createArrayOf(String, Object[])
+     */
+    ARRAY
+}
@@ -8,6 +8,7 @@ import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
 import java.util.Calendar;
+import java.util.Map;
 
 /**
  * Represents an object holding a {@link PreparedStatement} and providing methods
@@ -51,6 +52,51 @@ public interface ParameterProvider<Provider extends ParameterProvider<Provider,
      */
     Provider set(int index, Object x);
 
+    /**
+     * Sets the designated named parameter based on the type of the value given.
+     * <p>
+     * Named parameters are written {@code :name} in the sql passed to {@link
+     * Sql} once {@link Sql#enableNamedParameters() enabled}, a name can be used
+     * multiple times. {@code null} values are set using
+     * {@link PreparedStatement#setNull(int, int)} with {@link Types#NULL}.
+     * See <a href="package-summary.html#magic.mapping">here</a> for the types
+     * supported by this method.
+     *
+     * @param name the name of the parameter to set, without the leading colon
+     * @param x the value to set
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if the statement has no such parameter
+     */
+    Provider set(String name, Object x);
+
+    /**
+     * Sets the named parameters from the entries of a map.
+     *
+     * @param params the values to set by parameter name
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if the statement has no parameter named
+     *                                  after one of the keys
+     * @see #set(String, Object)
+     */
+    Provider with(Map<String, ?> params);
+
+    /**
+     * Sets every named parameter of the statement from the properties of a
+     * bean.
+     * <p>
+     * Properties are read using getters, accessors named after a field (such
+     * as the accessors of records) or fields, matching the names of the
+     * parameters ignoring case and underscores ({@code :user_id} is read using
+     * {@code getUserId()}).
+     *
+     * @param bean the object to read the values from
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if a named parameter doesn't match any
+     *                                  property of {@code bean}
+     * @see #set(String, Object)
+     */
+    Provider withBean(Object bean);
+
     /**
      * Sets the designated parameter to the given {@link Array}.
      *
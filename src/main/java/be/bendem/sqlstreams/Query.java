@@ -1,14 +1,128 @@
 package be.bendem.sqlstreams;
 
 import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.SqlToDoubleFunction;
+import be.bendem.sqlstreams.util.SqlToIntFunction;
+import be.bendem.sqlstreams.util.SqlToLongFunction;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 public interface Query extends ParameterProvider<Query, PreparedStatement> {
 
+    /**
+     * Gives the driver a hint about the number of rows to fetch from the
+     * database at once.
+     * <p>
+     * The previous fetch size is restored when this query is closed.
+     *
+     * @param rows the number of rows to fetch at once
+     * @return {@code this} for chaining
+     * @see java.sql.Statement#setFetchSize(int)
+     */
+    Query fetchSize(int rows);
+
+    /**
+     * Configures this query to stream its result instead of letting the driver
+     * load it entirely in memory.
+     * <p>
+     * Statements prepared from a sql string use forward only, read only
+     * cursors. On top of setting the fetch size, this method makes the mapping
+     * methods disable auto-commit for the lifetime of the returned stream if it
+     * is enabled, as some drivers (PostgreSQL for example) only use cursors
+     * inside transactions. Auto-commit is restored when the stream is closed.
+     * <p>
+     * Note that some drivers require a specific fetch size to stream results
+     * (MySQL requires {@link Integer#MIN_VALUE}).
+     *
+     * @param fetchSize the number of rows to fetch at once
+     * @return {@code this} for chaining
+     */
+    Query streaming(int fetchSize);
+
+    /**
+     * Sets the number of rows handed off to another thread the first time the
+     * stream returned by {@link #map(SqlFunction)} is split, defaults to
+     * {@code 1024}.
+     * <p>
+     * Splitting only happens when the stream is parallel. The cursor is always
+     * moved by a single thread at a time, splitting copies the values of the
+     * next rows so that they can be mapped concurrently on a read only {@link
+     * ResultSet} positioned on each copied row. Values are copied with the
+     * getter matching the type of their column, their string form as returned
+     * by the driver is kept, so that the getters of the copied rows return the
+     * same values as the driver's. Each split copies {@code rows} more rows
+     * than the previous one. The encounter order of the stream is the order of
+     * the result set, ordered terminal operations keep it, use {@link
+     * Stream#unordered()} if the order doesn't matter.
+     * <p>
+     * Note that mappings running on copied rows can't move the cursor and
+     * that their {@link ResultSet} only supports getters.
+     *
+     * @param rows the number of rows to copy for the first split
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if {@code rows} is not positive
+     */
+    Query parallelBatchSize(int rows);
+
+    /**
+     * Configures this query to read and map rows in the background while the
+     * stream returned by {@link #map(SqlFunction)} is consumed.
+     * <p>
+     * The rows are read and mapped by a dedicated daemon thread, ahead of the
+     * consumer, which waits when {@code capacity} mapped rows are waiting to be
+     * consumed. This overlaps fetching rows from the database with processing
+     * them, elements are still consumed in the order of the result set.
+     * <p>
+     * Closing the stream stops the reader (cancelling the statement if it is
+     * waiting on the database) before closing the underlying resources. The
+     * {@link UncheckedSqlException} (or any other exception) thrown while
+     * reading or mapping a row is rethrown to the consumer after the rows read
+     * before it. The connection is in use by the reader until the stream is
+     * exhausted or closed.
+     * <p>
+     * Prefetching only applies to the streams of objects ({@link
+     * #map(SqlFunction)}, {@link #mapTo(Class)} and {@link #column(int, Class)}),
+     * {@link #paginate(String, int, SqlFunction)} prefetches the next page.
+     *
+     * @param capacity the maximum number of mapped rows waiting to be consumed
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     * @see #prefetch(int, Executor)
+     */
+    Query prefetch(int capacity);
+
+    /**
+     * Configures this query to read and map rows in the background using the
+     * provided executor.
+     * <p>
+     * The reader occupies a thread of the executor until the stream is
+     * exhausted or closed. If the executor rejects the reader, the query is
+     * closed and the {@link java.util.concurrent.RejectedExecutionException}
+     * is rethrown by the mapping method. The reader must run on another
+     * thread, executors running it on the calling thread (same thread
+     * executors, caller-runs policies) are treated as rejecting it. Reading
+     * fails with an {@link IllegalStateException} if the executor doesn't
+     * start the reader within 30 seconds. Closing the stream fails with an
+     * {@link IllegalStateException} if the reader doesn't stop within 5
+     * seconds after its statement was cancelled (stuck in the mapping function
+     * or with a driver ignoring cancellation), the result set and statement
+     * being closed anyway.
+     *
+     * @param capacity the maximum number of mapped rows waiting to be consumed
+     * @param executor the executor running the reader
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     * @see #prefetch(int)
+     */
+    Query prefetch(int capacity, Executor executor);
+
     /**
      * Returns the first row of the current query using the provided mapping function.
      *
@@ -32,4 +146,156 @@ public interface Query extends ParameterProvider<Query, PreparedStatement> {
      * @return a lazily populated stream of each element returned by the query
      */
     <R> Stream<R> map(SqlFunction<ResultSet, R> mapping);
+
+    /**
+     * Maps each row returned by this query to an instance of the provided class.
+     * <p>
+     * The columns of the first row are resolved once to the parameters of a
+     * constructor, setters or fields of {@code clazz} by label, ignoring case
+     * and underscores. Constructor parameters are matched by name if the class
+     * was compiled with {@code -parameters} or is a record, otherwise by the
+     * instance fields of the class if the constructor takes them in declaration
+     * order. Columns that are not passed to the constructor are set using
+     * setters or non final fields, if any. Values are retrieved using the
+     * bindings registered on {@link Sql}.
+     * <p>
+     * The resolved mapper is cached per class and column labels, mapping the
+     * rows of the same query again doesn't use reflection.
+     *
+     * @param clazz the class of the elements of the returned stream
+     * @param <R> the type of the elements of the returned stream
+     * @return a lazily populated stream of each element returned by the query
+     * @throws IllegalArgumentException if no constructor of {@code clazz}
+     *                                  matches the columns of the query
+     * @see #map(SqlFunction)
+     */
+    <R> Stream<R> mapTo(Class<R> clazz);
+
+    /**
+     * Maps each row returned by this query to an {@code int} using the
+     * provided mapping function, without boxing.
+     * <p>
+     * This method should be called with a {@code try}-with-resources construct
+     * to ensure that the underlying {@link java.sql.Statement} and {@link
+     * ResultSet} are correctly closed.
+     *
+     * @param mapping the mapping function
+     * @return a lazily populated stream of each value returned by the query
+     */
+    IntStream mapToInt(SqlToIntFunction<ResultSet> mapping);
+
+    /**
+     * Maps the column at the provided index of each row returned by this query
+     * using {@link ResultSet#getInt(int)}, {@code NULL} values are mapped to
+     * {@code 0}.
+     *
+     * @param columnIndex the index of the column, starting at 1
+     * @return a lazily populated stream of each value returned by the query
+     * @see #mapToInt(SqlToIntFunction)
+     */
+    default IntStream mapToInt(int columnIndex) {
+        return mapToInt(rs -> rs.getInt(columnIndex));
+    }
+
+    /**
+     * Maps each row returned by this query to a {@code long} using the
+     * provided mapping function, without boxing.
+     * <p>
+     * This method should be called with a {@code try}-with-resources construct
+     * to ensure that the underlying {@link java.sql.Statement} and {@link
+     * ResultSet} are correctly closed.
+     *
+     * @param mapping the mapping function
+     * @return a lazily populated stream of each value returned by the query
+     */
+    LongStream mapToLong(SqlToLongFunction<ResultSet> mapping);
+
+    /**
+     * Maps the column at the provided index of each row returned by this query
+     * using {@link ResultSet#getLong(int)}, {@code NULL} values are mapped to
+     * {@code 0}.
+     *
+     * @param columnIndex the index of the column, starting at 1
+     * @return a lazily populated stream of each value returned by the query
+     * @see #mapToLong(SqlToLongFunction)
+     */
+    default LongStream mapToLong(int columnIndex) {
+        return mapToLong(rs -> rs.getLong(columnIndex));
+    }
+
+    /**
+     * Maps each row returned by this query to a {@code double} using the
+     * provided mapping function, without boxing.
+     * <p>
+     * This method should be called with a {@code try}-with-resources construct
+     * to ensure that the underlying {@link java.sql.Statement} and {@link
+     * ResultSet} are correctly closed.
+     *
+     * @param mapping the mapping function
+     * @return a lazily populated stream of each value returned by the query
+     */
+    DoubleStream mapToDouble(SqlToDoubleFunction<ResultSet> mapping);
+
+    /**
+     * Maps the column at the provided index of each row returned by this query
+     * using {@link ResultSet#getDouble(int)}, {@code NULL} values are mapped
+     * to {@code 0}.
+     *
+     * @param columnIndex the index of the column, starting at 1
+     * @return a lazily populated stream of each value returned by the query
+     * @see #mapToDouble(SqlToDoubleFunction)
+     */
+    default DoubleStream mapToDouble(int columnIndex) {
+        return mapToDouble(rs -> rs.getDouble(columnIndex));
+    }
+
+    /**
+     * Maps the column at the provided index of each row returned by this query
+     * using the bindings registered for {@code clazz}.
+     * <p>
+     * The binding is resolved once for the whole query. {@code NULL} values
+     * are mapped to {@code null}.
+     *
+     * @param columnIndex the index of the column, starting at 1
+     * @param clazz the class of the values of the column
+     * @param <R> the type of the elements of the returned stream
+     * @return a lazily populated stream of each value returned by the query
+     * @throws IllegalArgumentException if there is no binding for {@code clazz}
+     */
+    <R> Stream<R> column(int columnIndex, Class<R> clazz);
+
+    /**
+     * Reads the rows of this query one page at a time using keyset pagination
+     * and maps each row using the provided mapping function.
+     * <p>
+     * Each page is a new query wrapping the sql of this one, selecting the
+     * {@code pageSize} rows following the key of the last row of the previous
+     * page:
+     * <pre>{@code select * from (<sql>) paginated
+     *   where paginated.<keyColumn> > ?
+     *   order by paginated.<keyColumn>
+     *   limit ?}</pre>
+     * The key column must be unique and not null. Rows are returned in
+     * ascending key order. The parameters bound to this query are bound again
+     * for each page, except those bound using {@link #prepare}.
+     * <p>
+     * Each page is read entirely and its connection released before its rows
+     * are consumed. No cursor stays open between pages, so rows inserted or
+     * updated after the key of the current page are seen. This query is
+     * closed right away and only its sql and parameters are used.
+     * <p>
+     * When this query is configured to {@link #prefetch(int, Executor)
+     * prefetch}, the next page is read on the prefetch executor while the
+     * current one is consumed. Inside a transaction, this means that the
+     * connection of the transaction is in use while the stream is consumed.
+     *
+     * @param keyColumn the label of the key column, as used in the sql
+     * @param pageSize the maximum number of rows of each page
+     * @param mapping the mapping function
+     * @param <R> the type of the elements of the returned stream
+     * @return a lazily populated stream of each element returned by the query
+     * @throws IllegalStateException if the query was not prepared from sql
+     * @throws IllegalArgumentException if {@code pageSize} is not positive
+     */
+    <R> Stream<R> paginate(String keyColumn, int pageSize, SqlFunction<ResultSet, R> mapping);
 }
@@ -0,0 +1,69 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.impl.QueryPublisher;
+import be.bendem.sqlstreams.util.SqlFunction;
+import org.reactivestreams.Publisher;
+
+import java.sql.ResultSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Adapts queries to Reactive Streams publishers.
+ * <p>
+ * The Reactive Streams interfaces are an optional dependency of this library,
+ * they only need to be available at runtime when using this class.
+ */
+public final class QueryPublishers {
+
+    private QueryPublishers() {
+    }
+
+    /**
+     * Returns a publisher of each row returned by a query mapped using the
+     * provided mapping function.
+     * <p>
+     * The query is executed once the subscriber requests its first rows and
+     * only as many rows as requested are read, the fetch size of the result set
+     * following the outstanding demand. Rows are read and mapped on the thread
+     * calling {@link org.reactivestreams.Subscription#request(long)}. The
+     * statement is closed (and its connection released) when the last row is
+     * published, when reading fails or when the subscription is cancelled.
+     * <p>
+     * The publisher accepts a single subscriber. Use {@code
+     * org.reactivestreams.FlowAdapters} to get a {@code
+     * java.util.concurrent.Flow.Publisher}.
+     *
+     * @param query the query to publish the rows of, which must not be mapped
+     *              by other means
+     * @param mapping the mapping function
+     * @param <R> the type of the published elements
+     * @return a publisher of each element returned by the query
+     * @throws IllegalArgumentException if {@code query} was not created by
+     *                                  this library
+     * @see #publish(Query, SqlFunction, Executor)
+     */
+    public static <R> Publisher<R> publish(Query query, SqlFunction<ResultSet, R> mapping) {
+        return publish(query, mapping, Runnable::run);
+    }
+
+    /**
+     * Returns a publisher of each row returned by a query mapped using the
+     * provided mapping function, reading rows on the provided executor.
+     * <p>
+     * Each time the subscriber requests rows while none are being read, a task
+     * reading them is submitted to {@code executor}.
+     *
+     * @param query the query to publish the rows of, which must not be mapped
+     *              by other means
+     * @param mapping the mapping function
+     * @param executor the executor reading the rows
+     * @param <R> the type of the published elements
+     * @return a publisher of each element returned by the query
+     * @throws IllegalArgumentException if {@code query} was not created by
+     *                                  this library
+     * @see #publish(Query, SqlFunction)
+     */
+    public static <R> Publisher<R> publish(Query query, SqlFunction<ResultSet, R> mapping, Executor executor) {
+        return QueryPublisher.of(query, mapping, executor);
+    }
+}
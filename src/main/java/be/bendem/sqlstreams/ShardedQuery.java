@@ -0,0 +1,118 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * A query executed on all the shards of a {@link ShardedSql}.
+ * <p>
+ * The query is executed on every shard concurrently, each shard using its own
+ * connection, and the rows of all shards are merged into a single stream.
+ * Closing the stream closes the queries of all shards (cancelling the ones
+ * still running). The first exception thrown by a shard is rethrown to the
+ * consumer.
+ * <p>
+ * Shards are read by tasks of an executor, which defaults to the executor of
+ * {@link Sql#async()}. Ordered merges occupy a thread per shard until the
+ * stream is exhausted or closed, the executor must be able to run that many
+ * tasks concurrently.
+ *
+ * @see ShardedSql#queryAll(String)
+ */
+public interface ShardedQuery {
+
+    /**
+     * Sets the parameters bound to the query on each shard.
+     *
+     * @param parameters parameters to apply in order to the query
+     * @return {@code this} for chaining
+     * @see ParameterProvider#with(Object...)
+     */
+    ShardedQuery with(Object... parameters);
+
+    /**
+     * Sets the number of mapped rows read ahead of the consumer, {@code 1024}
+     * by default.
+     * <p>
+     * Unordered merges share a single buffer between shards, ordered merges
+     * use a buffer of this size for each shard.
+     *
+     * @param capacity the maximum number of mapped rows waiting to be consumed
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     * @see Query#prefetch(int, Executor)
+     */
+    ShardedQuery prefetch(int capacity);
+
+    /**
+     * Sets the executor running the queries of the shards.
+     * <p>
+     * Shards must be read on other threads than the one calling the mapping
+     * method, executors running tasks on the calling thread are treated as
+     * rejecting them: the shards already started are closed and the {@link
+     * java.util.concurrent.RejectedExecutionException} is rethrown by the
+     * mapping method.
+     *
+     * @param executor the executor reading the shards
+     * @return {@code this} for chaining
+     */
+    ShardedQuery executor(Executor executor);
+
+    /**
+     * Executes the query on all shards and maps each row, in the order rows
+     * are read from the shards.
+     * <p>
+     * The order of the rows of different shards is unspecified, the returned
+     * stream is not {@link java.util.Spliterator#ORDERED ordered}.
+     *
+     * @param mapping a function to map each row to an object
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of elements mapped from the result sets of all shards
+     */
+    <R> Stream<R> map(SqlFunction<ResultSet, R> mapping);
+
+    /**
+     * Executes the query on all shards and maps each row, merging the rows of
+     * the shards in the order of {@code comparator}.
+     * <p>
+     * The rows of each shard must already be sorted according to {@code
+     * comparator} (i.e. the query has the matching {@code order by} clause),
+     * equal rows are returned in shard order.
+     *
+     * @param mapping a function to map each row to an object
+     * @param comparator the order of the rows of each shard
+     * @param <R> the type of the elements of the returned stream
+     * @return a sorted stream of elements mapped from the result sets of all
+     *         shards
+     */
+    <R> Stream<R> map(SqlFunction<ResultSet, R> mapping, Comparator<? super R> comparator);
+
+    /**
+     * Executes the query on all shards and maps each row to an instance of
+     * {@code clazz}, in the order rows are read from the shards.
+     *
+     * @param clazz the class to map rows to
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of instances mapped from the result sets of all shards
+     * @see Query#mapTo(Class)
+     */
+    <R> Stream<R> mapTo(Class<R> clazz);
+
+    /**
+     * Executes the query on all shards and maps each row to an instance of
+     * {@code clazz}, merging the rows of the shards in the order of {@code
+     * comparator}.
+     *
+     * @param clazz the class to map rows to
+     * @param comparator the order of the rows of each shard
+     * @param <R> the type of the elements of the returned stream
+     * @return a sorted stream of instances mapped from the result sets of all
+     *         shards
+     * @see #map(SqlFunction, Comparator)
+     */
+    <R> Stream<R> mapTo(Class<R> clazz, Comparator<? super R> comparator);
+}
@@ -0,0 +1,122 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.impl.ShardedSqlImpl;
+import be.bendem.sqlstreams.util.Closeable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import javax.sql.DataSource;
+
+/**
+ * Spreads data across several databases (shards) by a shard key.
+ * <p>
+ * Statements about a single key are routed to the shard holding it, the
+ * shard of a key being {@code floorMod(shardFunction.applyAsInt(key),
+ * shardCount)}. Queries not bound to a key can be sent to all the shards
+ * concurrently using {@link #queryAll(String)}, their results being merged
+ * into a single stream.
+ * <p>
+ * Each shard is a regular {@link Sql} instance, use {@link #shards()} to
+ * configure them (bindings, caches, listeners, ...).
+ *
+ * @param <K> the type of the shard keys
+ */
+public interface ShardedSql<K> extends Closeable {
+
+    /**
+     * Constructs a {@link ShardedSql} instance with one shard per datasource.
+     *
+     * @param shards the datasources of the shards, in shard order
+     * @param shardFunction a function returning the shard of a key
+     * @param <K> the type of the shard keys
+     * @return the newly created {@code ShardedSql} instance
+     * @throws IllegalArgumentException if {@code shards} is empty
+     */
+    static <K> ShardedSql<K> connect(List<? extends DataSource> shards, ToIntFunction<? super K> shardFunction) {
+        List<Sql> sqls = new ArrayList<>(shards.size());
+        for (DataSource shard : shards) {
+            sqls.add(Sql.connect(shard));
+        }
+        return of(sqls, shardFunction);
+    }
+
+    /**
+     * Constructs a {@link ShardedSql} instance from existing {@link Sql}
+     * instances.
+     *
+     * @param shards the shards, in shard order
+     * @param shardFunction a function returning the shard of a key
+     * @param <K> the type of the shard keys
+     * @return the newly created {@code ShardedSql} instance
+     * @throws IllegalArgumentException if {@code shards} is empty
+     */
+    static <K> ShardedSql<K> of(List<? extends Sql> shards, ToIntFunction<? super K> shardFunction) {
+        return new ShardedSqlImpl<>(shards, shardFunction);
+    }
+
+    /**
+     * Returns the shards of this instance.
+     *
+     * @return an unmodifiable list of the shards, in shard order
+     */
+    List<Sql> shards();
+
+    /**
+     * Returns the shard holding the data of a key.
+     *
+     * @param key the shard key
+     * @return the shard of {@code key}
+     */
+    Sql shard(K key);
+
+    /**
+     * Shortcut for {@link #shard(Object) shard(key).query(sql)}.
+     *
+     * @param key the shard key
+     * @param sql the sql query
+     * @return an object to parametrize the statement and map the query result
+     */
+    default Query query(K key, String sql) {
+        return shard(key).query(sql);
+    }
+
+    /**
+     * Shortcut for {@link #shard(Object) shard(key).update(sql)}.
+     *
+     * @param key the shard key
+     * @param sql the sql query
+     * @return an object to parametrize the statement and retrieve the number
+     *         of rows affected by this query
+     */
+    default Update update(K key, String sql) {
+        return shard(key).update(sql);
+    }
+
+    /**
+     * Shortcut for {@link #shard(Object) shard(key).transaction()}.
+     *
+     * @param key the shard key
+     * @return the new transaction
+     */
+    default Transaction transaction(K key) {
+        return shard(key).transaction();
+    }
+
+    /**
+     * Prepares a query to be executed on all the shards.
+     * <p>
+     * Note that the query is not actually executed until a mapping method
+     * of {@link ShardedQuery} is called.
+     *
+     * @param sql the sql query
+     * @return an object to parametrize the query and merge its results
+     */
+    ShardedQuery queryAll(String sql);
+
+    /**
+     * Closes all the shards.
+     */
+    void close();
+}
@@ -1,15 +1,22 @@
 package be.bendem.sqlstreams;
 
+import be.bendem.sqlstreams.impl.AsyncSqlImpl;
 import be.bendem.sqlstreams.impl.SqlImpl;
 import be.bendem.sqlstreams.util.Closeable;
+import be.bendem.sqlstreams.util.ReplicaRoutingDataSource;
 import be.bendem.sqlstreams.util.SingleConnectionDataSource;
+import be.bendem.sqlstreams.util.SlowQueryLog;
 import be.bendem.sqlstreams.util.SqlFunction;
 
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import javax.sql.DataSource;
 
@@ -42,8 +49,203 @@ public interface Sql extends Closeable {
         return new SqlImpl(dataSource);
     }
 
+    /**
+     * Constructs a {@link Sql} instance sending queries to read replicas and
+     * everything else to a primary database.
+     * <p>
+     * Queries and {@link #readOnlyTransaction() read-only transactions} use a
+     * connection to the replica with the fewest connections currently open,
+     * updates, batches, calls and other transactions use a connection to the
+     * primary. Failing replicas are skipped until they recover, reads go to the
+     * primary if all of them are failing. Use {@link ReplicaRoutingDataSource}
+     * directly to configure the routing.
+     * <p>
+     * Note that replicas are usually replicated asynchronously, a query might
+     * not see the changes just made by an update. Use a transaction to read
+     * your own writes.
+     *
+     * @param primary the datasource of the primary database
+     * @param replicas the datasources of the read replicas
+     * @return the newly created {@code Sql} instance
+     */
+    static Sql connect(DataSource primary, DataSource... replicas) {
+        return connect(new ReplicaRoutingDataSource(primary, Arrays.asList(replicas)));
+    }
+
+    /**
+     * Registers the code used to bind values of the provided class when using
+     * {@link ParameterProvider#with(Object...)} or {@link ParameterProvider#set(int, Object)}.
+     * <p>
+     * The binding also applies to subclasses and implementations of {@code clazz}
+     * unless a more specific binding is registered. Registering bindings is
+     * thread-safe and can be done while other threads are binding parameters.
+     *
+     * @param clazz the class of the values to bind
+     * @param preparedStatementBinderByIndex the code setting a value on a statement
+     * @param <T> the type of the values to bind
+     * @return {@code this} for chaining
+     */
     <T> Sql registerCustomBinding(Class<T> clazz, PreparedStatementBinderByIndex<T> preparedStatementBinderByIndex);
 
+    /**
+     * Registers an enum to be stored using the name of its constants instead of
+     * their ordinal.
+     *
+     * @param clazz the enum class
+     * @param <E> the type of the enum
+     * @return {@code this} for chaining
+     * @see #registerEnumCodes(Class, Class, Function)
+     */
+    default <E extends Enum<E>> Sql registerEnumByName(Class<E> clazz) {
+        return registerEnumCodes(clazz, String.class, Enum::name);
+    }
+
+    /**
+     * Registers an enum to be stored using a custom code for each of its
+     * constants.
+     * <p>
+     * The code of each constant is computed once during registration and must
+     * be unique. Codes are bound and retrieved using the bindings of {@code
+     * codeClass}. By default, enums are stored using their ordinal.
+     *
+     * @param clazz the enum class
+     * @param codeClass the class of the codes as stored in the database
+     * @param encoder a function returning the code of each constant
+     * @param <E> the type of the enum
+     * @param <C> the type of the codes
+     * @return {@code this} for chaining
+     * @throws IllegalArgumentException if two constants have the same code or
+     *                                  if there is no binding for {@code codeClass}
+     */
+    <E extends Enum<E>, C> Sql registerEnumCodes(Class<E> clazz, Class<C> codeClass, Function<? super E, ? extends C> encoder);
+
+    /**
+     * Sets how collections and arrays are bound to parameters.
+     * <p>
+     * Collections are expanded to one parameter per element by default, use
+     * {@link CollectionBinding#ARRAY} to bind them as sql arrays with drivers
+     * supporting them. The setting is shared with transactions.
+     *
+     * @param binding the binding to use for collections and arrays
+     * @return {@code this} for chaining
+     */
+    Sql bindCollections(CollectionBinding binding);
+
+    /**
+     * Enables named parameters in the sql passed to this object.
+     * <p>
+     * Parameters written {@code :name} are rewritten to positional {@code ?}
+     * parameters before the statements are prepared, and can then be set by
+     * name (see {@link ParameterProvider#set(String, Object)}). String
+     * literals, quoted identifiers, dollar quoted strings, comments and
+     * {@code ::} casts are left untouched.
+     * <p>
+     * This is disabled by default so that the sql reaches the driver as
+     * written, some drivers (such as SQLite's) handle {@code :name} parameters
+     * themselves, a repeated name being a single parameter. The setting is
+     * shared with transactions.
+     *
+     * @return {@code this} for chaining
+     */
+    Sql enableNamedParameters();
+
+    /**
+     * Enables caching of the statements prepared from sql strings.
+     * <p>
+     * Instead of being closed, statements are kept open (with their parameters
+     * cleared) and reused the next time the same sql is prepared on the same
+     * connection. Each connection keeps at most {@code maxStatementsPerConnection}
+     * statements, evicting the least recently used one.
+     * <p>
+     * Statements are cached per {@link Connection} instance, this is only useful
+     * if the underlying {@link DataSource} hands out the same {@code Connection}
+     * object multiple times or a {@link
+     * be.bendem.sqlstreams.util.BorrowedConnection} (as {@link
+     * SingleConnectionDataSource} and {@link
+     * be.bendem.sqlstreams.util.PooledDataSource} do).
+     *
+     * @param maxStatementsPerConnection the maximum number of statements to keep
+     *                                   open per connection, {@code 0} disables
+     *                                   the cache
+     * @return {@code this} for chaining
+     */
+    Sql enableStatementCache(int maxStatementsPerConnection);
+
+    /**
+     * Returns the hit, miss and eviction counters of the statement cache.
+     *
+     * @return the statement cache statistics
+     * @see #enableStatementCache(int)
+     */
+    CacheStatistics getStatementCacheStatistics();
+
+    /**
+     * Enables caching of the results of the queries prepared with {@link
+     * #cachedQuery(String, String...)}.
+     * <p>
+     * Results are cached for {@code ttl} after being loaded, the least recently
+     * used results are evicted once more than {@code maxRows} rows are cached.
+     * Updates, batches and statements executed through this instance or its
+     * transactions remove the cached results depending on the tables they
+     * modify (as parsed from their sql, statements that can't be parsed remove
+     * all results). Changes made by other means must be signaled using {@link
+     * #invalidateQueryCache(String...)}.
+     *
+     * @param maxRows the maximum number of rows to cache, {@code 0} disables
+     *                the cache
+     * @param ttl the time results are cached for
+     * @param unit the unit of {@code ttl}
+     * @return {@code this} for chaining
+     */
+    Sql enableQueryCache(long maxRows, long ttl, TimeUnit unit);
+
+    /**
+     * Returns the hit, miss, eviction and load counters of the query cache.
+     *
+     * @return the query cache statistics
+     * @see #enableQueryCache(long, long, TimeUnit)
+     */
+    CacheStatistics getQueryCacheStatistics();
+
+    /**
+     * Removes the cached results of the queries depending on the provided
+     * tables.
+     *
+     * @param tables the modified tables, all cached results are removed if
+     *               none is provided
+     * @return {@code this} for chaining
+     * @see #enableQueryCache(long, long, TimeUnit)
+     */
+    Sql invalidateQueryCache(String... tables);
+
+    /**
+     * Registers a listener receiving the events of the statements executed
+     * by this instance.
+     * <p>
+     * Listeners are called in registration order. Transactions opened from
+     * this instance use the listeners registered when they were opened.
+     * Without any listener, no event is created nor timing measured.
+     *
+     * @param listener the listener to register
+     * @return {@code this} for chaining
+     */
+    Sql addListener(SqlListener listener);
+
+    /**
+     * Logs the statements staying open for {@code threshold} or longer.
+     * <p>
+     * Shortcut for {@link #addListener(SqlListener) addListener(new
+     * SlowQueryLog(threshold, unit))}, use {@link SlowQueryLog} directly to
+     * configure sampling, redaction or where statements are logged.
+     *
+     * @param threshold the minimum time a statement has to be open to be logged
+     * @param unit the unit of {@code threshold}
+     * @return {@code this} for chaining
+     */
+    default Sql logSlowQueries(long threshold, TimeUnit unit) {
+        return addListener(new SlowQueryLog(threshold, unit));
+    }
+
     /**
      * Opens a new transaction bound to a single connection.
      *
@@ -60,6 +262,18 @@ public interface Sql extends Closeable {
      */
     Transaction transaction(Transaction.IsolationLevel isolationLevel);
 
+    /**
+     * Opens a new read-only transaction bound to a single connection.
+     * <p>
+     * The connection is retrieved from a read replica when this instance was
+     * created using {@link #connect(DataSource, DataSource...)} and is marked
+     * as read-only, which some drivers use to route or optimize statements.
+     *
+     * @return the new transaction
+     * @see Connection#setReadOnly(boolean)
+     */
+    Transaction readOnlyTransaction();
+
     /**
      * Manually prepares a query from a {@link Connection}.
      *
@@ -82,6 +296,19 @@ public interface Sql extends Closeable {
         return query(conn -> conn.prepareStatement(sql));
     }
 
+    /**
+     * Prepares a query whose results are served from the query cache.
+     * <p>
+     * Nothing is prepared until a mapping method of {@link CachedQuery} is
+     * called, and only if its results are not already cached.
+     *
+     * @param sql the sql query
+     * @param tables the tables the results of the query depend on
+     * @return an object to parametrize the query and map its cached result
+     * @see #enableQueryCache(long, long, TimeUnit)
+     */
+    CachedQuery cachedQuery(String sql, String... tables);
+
     /**
      * Manually prepares a DML query from a {@link Connection}.
      *
@@ -117,6 +344,33 @@ public interface Sql extends Closeable {
      */
     BatchUpdate batchUpdate(String sql);
 
+    /**
+     * Prepares a DML sql statement returning the keys it generates.
+     * <p>
+     * The keys can be retrieved using {@link Update#generatedKeys(SqlFunction)}
+     * in the same execution as the statement.
+     *
+     * @param sql the sql query
+     * @return an object to parametrize the statement and retrieve the keys
+     *         generated by this query
+     * @see Connection#prepareStatement(String, int)
+     */
+    Update insert(String sql);
+
+    /**
+     * Prepares a DML statement to provide it multiple batches of parameters,
+     * returning the keys they generate.
+     * <p>
+     * The keys can be retrieved using {@link
+     * BatchUpdate#generatedKeys(SqlFunction)}.
+     *
+     * @param sql the sql query
+     * @return an object to parametrize the statement and retrieve the keys
+     *         generated by each batch
+     * @see Connection#prepareStatement(String, int)
+     */
+    BatchUpdate batchInsert(String sql);
+
     /**
      * Prepares a query.
      * <p>
@@ -167,6 +421,31 @@ public interface Sql extends Closeable {
         }
     }
 
+    /**
+     * Returns an asynchronous view of this instance running its operations on
+     * a shared executor.
+     * <p>
+     * The shared executor uses a virtual thread per operation when running on
+     * Java 21 or later and a cached pool of daemon threads otherwise.
+     *
+     * @return an asynchronous view of this instance
+     * @see #async(Executor)
+     */
+    default AsyncSql async() {
+        return async(AsyncSqlImpl.defaultExecutor());
+    }
+
+    /**
+     * Returns an asynchronous view of this instance running its operations on
+     * the provided executor.
+     *
+     * @param executor the executor running the operations
+     * @return an asynchronous view of this instance
+     */
+    default AsyncSql async(Executor executor) {
+        return new AsyncSqlImpl(this, executor);
+    }
+
     /**
      * Closes the underlying {@link DataSource}.
      */
@@ -0,0 +1,125 @@
+package be.bendem.sqlstreams;
+
+import java.util.List;
+
+/**
+ * Receives the events of the statements executed by a {@link Sql} instance.
+ * <p>
+ * All methods do nothing by default, implementations override the events they
+ * are interested in. Durations are measured using {@link System#nanoTime()}.
+ * <p>
+ * Events of a statement are sent on the thread using it, in order. Events of
+ * different statements can be received concurrently, listeners must be
+ * thread-safe. Listeners are called in the execution path of the statements,
+ * they must be fast and must not throw.
+ *
+ * @see Sql#addListener(SqlListener)
+ */
+public interface SqlListener {
+
+    /**
+     * The number of rows reported by {@link #onFetched(StatementInfo, int, long)}
+     * when the fetch size of the statement is the default of the driver.
+     */
+    int DEFAULT_FETCH_BATCH = 100;
+
+    /**
+     * Called when a connection was acquired from the {@link javax.sql.DataSource}.
+     *
+     * @param nanos the time it took to acquire the connection
+     */
+    default void onConnectionAcquired(long nanos) {
+    }
+
+    /**
+     * Called when a statement was prepared (or taken from the statement cache).
+     *
+     * @param statement the statement
+     * @param nanos the time it took to prepare the statement
+     */
+    default void onPrepared(StatementInfo statement, long nanos) {
+    }
+
+    /**
+     * Returns whether the values bound to the parameters of a statement should
+     * be captured and reported to {@link #onParametersBound(StatementInfo, List)}.
+     * <p>
+     * Called once per statement, before it is prepared. Values are only
+     * captured if a listener asks for them.
+     *
+     * @param statement the statement
+     * @return whether to capture the parameters of the statement
+     */
+    default boolean captureParameters(StatementInfo statement) {
+        return false;
+    }
+
+    /**
+     * Called before each execution of a statement whose parameters are
+     * captured.
+     * <p>
+     * Values are indexed from {@code 0} for the first parameter, parameters
+     * which were not bound using this library are {@code null}. Values of
+     * batches are the ones bound for the last row added. The values are not
+     * copied, listeners should not keep mutable values around.
+     *
+     * @param statement the statement
+     * @param parameters the values bound to the parameters of the statement
+     * @see #captureParameters(StatementInfo)
+     */
+    default void onParametersBound(StatementInfo statement, List<Object> parameters) {
+    }
+
+    /**
+     * Called each time a statement was executed.
+     *
+     * @param statement the statement
+     * @param nanos the time it took to execute the statement
+     */
+    default void onExecuted(StatementInfo statement, long nanos) {
+    }
+
+    /**
+     * Called each time a DML statement or batch was executed.
+     *
+     * @param statement the statement
+     * @param rows the number of rows affected, not counting statements for
+     *             which the driver doesn't return a count
+     */
+    default void onRowsAffected(StatementInfo statement, long rows) {
+    }
+
+    /**
+     * Called each time a query read a batch of rows.
+     * <p>
+     * Batches are made of as many rows as the fetch size of the statement
+     * ({@value #DEFAULT_FETCH_BATCH} rows if it uses the default of the driver)
+     * except for the last one which can be smaller or even empty.
+     *
+     * @param statement the statement
+     * @param rows the number of rows read
+     * @param nanos the time spent moving the cursor to read these rows
+     */
+    default void onFetched(StatementInfo statement, int rows, long nanos) {
+    }
+
+    /**
+     * Called when a statement was closed or failed to be prepared.
+     *
+     * @param statement the statement
+     * @param rows the number of rows read or affected by the statement
+     * @param nanos the time elapsed since the statement was prepared
+     */
+    default void onClosed(StatementInfo statement, long rows, long nanos) {
+    }
+
+    /**
+     * Called when preparing, executing or reading the rows of a statement
+     * failed.
+     *
+     * @param statement the statement
+     * @param error the exception thrown by the driver
+     */
+    default void onError(StatementInfo statement, Throwable error) {
+    }
+}
@@ -0,0 +1,63 @@
+package be.bendem.sqlstreams;
+
+/**
+ * Describes a statement reported to a {@link SqlListener}.
+ */
+public final class StatementInfo {
+
+    /**
+     * The kind of operation a statement was prepared for.
+     */
+    public enum Kind {
+        QUERY, UPDATE, BATCH_UPDATE, EXECUTE, CALL,
+    }
+
+    private final long id;
+    private final Kind kind;
+    private final String sql;
+
+    public StatementInfo(long id, Kind kind, String sql) {
+        this.id = id;
+        this.kind = kind;
+        this.sql = sql;
+    }
+
+    /**
+     * Returns an identifier of the statement, unique for the {@link Sql}
+     * instance which prepared it.
+     *
+     * @return the identifier of the statement
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the kind of operation the statement was prepared for.
+     *
+     * @return the kind of the statement
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the sql of the statement.
+     *
+     * @return the sql of the statement or {@code null} if the statement was
+     *         prepared manually
+     * @see Sql#query(be.bendem.sqlstreams.util.SqlFunction)
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return "StatementInfo{" +
+            "id=" + id +
+            ", kind=" + kind +
+            ", sql='" + sql + '\'' +
+            '}';
+    }
+}
@@ -1,6 +1,10 @@
 package be.bendem.sqlstreams;
 
+import be.bendem.sqlstreams.util.SqlFunction;
+
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.stream.Stream;
 
 public interface Update extends ParameterProvider<Update, PreparedStatement>  {
 
@@ -19,4 +23,32 @@ public interface Update extends ParameterProvider<Update, PreparedStatement>  {
      * @see PreparedStatement#executeLargeUpdate()
      */
     long largeCount();
+
+    /**
+     * Executes the query and maps the keys it generated using the provided
+     * mapping function.
+     * <p>
+     * The statement must have been prepared to return generated keys, see
+     * {@link Sql#insert(String)}. The keys are read when this method is
+     * called, the returned stream doesn't hold any resource.
+     *
+     * @param mapping the mapping function
+     * @param <R> the type of the elements of the returned stream
+     * @return a stream of each key generated by this query
+     * @throws IllegalStateException if the statement was prepared from sql
+     *                               without requesting generated keys
+     * @see PreparedStatement#getGeneratedKeys()
+     */
+    <R> Stream<R> generatedKeys(SqlFunction<ResultSet, R> mapping);
+
+    /**
+     * Executes the query and returns the first column of the keys it generated
+     * as longs.
+     *
+     * @return the keys generated by this query
+     * @throws IllegalStateException if the statement was prepared from sql
+     *                               without requesting generated keys
+     * @see #generatedKeys(SqlFunction)
+     */
+    long[] generatedKeys();
 }
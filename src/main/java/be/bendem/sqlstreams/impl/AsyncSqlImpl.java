@@ -0,0 +1,134 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.AsyncSql;
+import be.bendem.sqlstreams.BatchUpdate;
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.Sql;
+import be.bendem.sqlstreams.Transaction;
+import be.bendem.sqlstreams.Update;
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class AsyncSqlImpl implements AsyncSql {
+
+    private static final class DefaultExecutor {
+        private static final ExecutorService INSTANCE = create();
+
+        /**
+         * Uses a virtual thread per task when running on Java 21+ (looked up
+         * reflectively since this library targets Java 8), a cached pool of daemon
+         * threads otherwise.
+         */
+        private static ExecutorService create() {
+            try {
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                AtomicInteger counter = new AtomicInteger();
+                return Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "sql-streams-async-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+    }
+
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    private final Sql sql;
+    private final Executor executor;
+
+    public AsyncSqlImpl(Sql sql, Executor executor) {
+        this.sql = Objects.requireNonNull(sql);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public Executor executor() {
+        return executor;
+    }
+
+    @Override
+    public <R> CompletableFuture<R> run(Function<? super Sql, ? extends R> operation) {
+        return CompletableFuture.supplyAsync(() -> operation.apply(sql), executor);
+    }
+
+    @Override
+    public <R> CompletableFuture<List<R>> query(String sql, SqlFunction<ResultSet, R> mapping, Object... parameters) {
+        return run(s -> {
+            Query query = s.query(sql);
+            Stream<R> stream;
+            try {
+                stream = query.with(parameters).map(mapping);
+            } catch (RuntimeException | Error e) {
+                query.close();
+                throw e;
+            }
+            // Closing the stream closes the query
+            try (Stream<R> rows = stream) {
+                return rows.collect(Collectors.toList());
+            }
+        });
+    }
+
+    @Override
+    public <R> CompletableFuture<Optional<R>> first(String sql, SqlFunction<ResultSet, R> mapping, Object... parameters) {
+        return run(s -> s.first(sql, mapping, parameters));
+    }
+
+    @Override
+    public CompletableFuture<Integer> update(String sql, Object... parameters) {
+        return run(s -> {
+            try (Update update = s.update(sql).with(parameters)) {
+                return update.count();
+            }
+        });
+    }
+
+    @Override
+    public <T> CompletableFuture<Long> batchUpdate(String sql, Collection<T> items,
+                                                   BiConsumer<BatchUpdate, ? super T> binder) {
+        return run(s -> {
+            try (BatchUpdate batch = s.batchUpdate(sql)) {
+                return batch.executeAll(items.stream(), binder);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> exec(String sql, Object... parameters) {
+        return run(s -> {
+            s.exec(sql, parameters);
+            return null;
+        });
+    }
+
+    @Override
+    public <R> CompletableFuture<R> transaction(Function<? super Transaction, ? extends R> operation) {
+        return run(s -> {
+            try (Transaction transaction = s.transaction()) {
+                R result = operation.apply(transaction);
+                transaction.commit();
+                return result;
+            }
+        });
+    }
+}
@@ -1,60 +1,485 @@
 package be.bendem.sqlstreams.impl;
 
 import be.bendem.sqlstreams.BatchUpdate;
+import be.bendem.sqlstreams.util.SqlConsumer;
+import be.bendem.sqlstreams.util.SqlFunction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 class BatchUpdateImpl extends ParameterProviderImpl<BatchUpdate, PreparedStatement> implements BatchUpdate {
 
-    private final Connection connection;
+    static final int DEFAULT_FLUSH_ROWS = 1000;
+    private static final NullValue NULL = new NullValue(Types.NULL);
+
     private final boolean closeConnection;
+    private final String statementSql;
+    private final GeneratedKeys keys;
+    private Boolean batchReturnsAllKeys;
+    private int flushRows;
+    private long flushBytes;
+    private int pendingRows;
+    private long pendingBytes;
+    private int[] flushedCounts = new int[0];
+    private int flushedSize;
+    // Only the sum of the counts is kept while running executeAll
+    private boolean summingFlushed;
+    private long flushedTotal;
+
+    // Rewrite mode, rows are buffered and inserted using multi-row statements
+    private InsertRewriter rewriter;
+    private Object[] row;
+    private List<Object[]> rows;
+    private long rewrittenRows;
+    private long rewrittenCount;
 
-    BatchUpdateImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection) {
-        super(statement, sql.bindings);
-        this.connection = connection;
+    BatchUpdateImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection,
+                    Instrumentation instrumentation, PreparedSql preparedSql, boolean returnGeneratedKeys) {
+        super(sql, connection, statement, instrumentation, preparedSql);
         this.closeConnection = closeConnection;
+        this.statementSql = preparedSql.sql;
+        this.keys = returnGeneratedKeys ? new GeneratedKeys() : null;
     }
 
     @Override
-    public BatchUpdate next() {
-        Wrap.execute(statement::addBatch);
+    public BatchUpdate rewriteInserts(int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException("maxRows must be positive, got " + maxRows);
+        }
+        if (pendingRows != 0 || flushedSize != 0) {
+            throw new IllegalStateException("Rewriting must be enabled before adding parameters");
+        }
+        if (keys != null) {
+            throw new IllegalStateException("Cannot rewrite inserts returning generated keys");
+        }
+
+        rewriter = InsertRewriter.parse(statementSql, maxRows);
+        if (rewriter != null) {
+            row = new Object[rewriter.parameters()];
+            rows = new ArrayList<>();
+        }
+        return this;
+    }
+
+    @Override
+    protected boolean expandsCollections() {
+        // Each row would need its own statement
+        return false;
+    }
+
+    @Override
+    public BatchUpdate prepare(SqlConsumer<PreparedStatement> preparator) {
+        beforeSet();
+        return super.prepare(preparator);
+    }
+
+    @Override
+    protected void beforeSet() {
+        if (rewriter != null) {
+            throw new IllegalStateException("Only with and set can be used to provide parameters when rewriting inserts");
+        }
+    }
+
+    @Override
+    public BatchUpdate flushThreshold(int rows, long bytes) {
+        if (rows < 0 || bytes < 0) {
+            throw new IllegalArgumentException("thresholds must be positive, got " + rows + " rows and " + bytes + " bytes");
+        }
+        flushRows = rows;
+        flushBytes = bytes;
         return this;
     }
 
+    @Override
+    public BatchUpdate with(Object... params) {
+        for (Object param : params) {
+            pendingBytes += estimateSize(param);
+        }
+        if (rewriter != null) {
+            if (params.length > row.length) {
+                throw new IllegalArgumentException("Expected at most " + row.length + " parameters, got " + params.length);
+            }
+            for (int i = 0; i < params.length; ++i) {
+                row[i] = params[i] == null ? NULL : params[i];
+            }
+            return this;
+        }
+        return super.with(params);
+    }
+
+    @Override
+    public BatchUpdate set(int index, Object x) {
+        pendingBytes += estimateSize(x);
+        if (rewriter != null) {
+            row[rowIndex(index)] = Objects.requireNonNull(x);
+            return this;
+        }
+        return super.set(index, x);
+    }
+
+    @Override
+    public BatchUpdate setNull(int index, int sqlType) {
+        if (rewriter != null) {
+            row[rowIndex(index)] = sqlType == Types.NULL ? NULL : new NullValue(sqlType);
+            return this;
+        }
+        return super.setNull(index, sqlType);
+    }
+
+    private int rowIndex(int index) {
+        if (index < 1 || index > row.length) {
+            throw new IllegalArgumentException("Invalid parameter index " + index);
+        }
+        return index - 1;
+    }
+
+    @Override
+    public BatchUpdate setObject(int index, Object x) {
+        pendingBytes += estimateSize(x);
+        return super.setObject(index, x);
+    }
+
+    @Override
+    public BatchUpdate setString(int index, String x) {
+        pendingBytes += estimateSize(x);
+        return super.setString(index, x);
+    }
+
+    @Override
+    public BatchUpdate setNString(int index, String value) {
+        pendingBytes += estimateSize(value);
+        return super.setNString(index, value);
+    }
+
+    @Override
+    public BatchUpdate setBytes(int index, byte[] x) {
+        pendingBytes += estimateSize(x);
+        return super.setBytes(index, x);
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof CharSequence) {
+            return 2L * ((CharSequence) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return 16;
+    }
+
+    @Override
+    public BatchUpdate next() {
+        if (rewriter != null) {
+            for (int i = 0; i < row.length; ++i) {
+                if (row[i] == null) {
+                    throw new IllegalStateException("Parameter " + (i + 1) + " was not provided");
+                }
+            }
+            rows.add(row);
+            row = new Object[row.length];
+        } else {
+            Wrap.execute(statement::addBatch);
+        }
+        return added();
+    }
+
     @Override
     public BatchUpdate next(String sql) {
+        if (rewriter != null) {
+            throw new IllegalStateException("Cannot add sql to a batch when rewriting inserts");
+        }
         Wrap.execute(() -> statement.addBatch(sql));
+        return added();
+    }
+
+    private BatchUpdate added() {
+        ++pendingRows;
+        if (keys != null && !batchReturnsAllKeys()) {
+            flush();
+        } else if (flushRows > 0 && pendingRows >= flushRows || flushBytes > 0 && pendingBytes >= flushBytes) {
+            flush();
+        }
         return this;
     }
 
+    /**
+     * Returns whether the driver returns the keys generated by each row of a
+     * batch, SQLite only returns the key of the last row.
+     */
+    private boolean batchReturnsAllKeys() {
+        if (batchReturnsAllKeys == null) {
+            batchReturnsAllKeys = !"SQLite".equalsIgnoreCase(
+                Wrap.get(() -> connection.getMetaData().getDatabaseProductName()));
+        }
+        return batchReturnsAllKeys;
+    }
+
+    private int[] executeBatch() {
+        int[] counts = executeStatement(statement::executeBatch);
+        if (instrumentation != null) {
+            instrumentation.affected(counts);
+        }
+        // Some drivers return the keys of the previous execution for empty batches
+        if (keys != null && counts.length != 0) {
+            Wrap.execute(() -> keys.read(statement));
+        }
+        return counts;
+    }
+
+    private long[] executeLargeBatch() {
+        long[] counts = executeStatement(statement::executeLargeBatch);
+        if (instrumentation != null) {
+            instrumentation.affected(counts);
+        }
+        if (keys != null && counts.length != 0) {
+            Wrap.execute(() -> keys.read(statement));
+        }
+        return counts;
+    }
+
+    /**
+     * Executes the pending batch, keeping its counts for {@link #counts()}.
+     */
+    private void flush() {
+        if (rewriter != null) {
+            executeRewritten();
+            return;
+        }
+
+        int[] counts = executeBatch();
+        pendingRows = 0;
+        pendingBytes = 0;
+        if (summingFlushed) {
+            flushedTotal += sum(counts, counts.length);
+            return;
+        }
+        if (flushedSize + counts.length > flushedCounts.length) {
+            flushedCounts = Arrays.copyOf(flushedCounts, Math.max(flushedSize + counts.length, flushedCounts.length * 2));
+        }
+        System.arraycopy(counts, 0, flushedCounts, flushedSize, counts.length);
+        flushedSize += counts.length;
+    }
+
+    private static long sum(int[] counts, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; ++i) {
+            sum += counts[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Inserts the buffered rows using the largest statements possible.
+     */
+    private void executeRewritten() {
+        int parameters = rewriter.parameters();
+        PreparedStatement[] statements = new PreparedStatement[Integer.SIZE];
+        try {
+            int offset = 0;
+            while (offset < rows.size()) {
+                int bucket = rewriter.bucket(rows.size() - offset);
+                int index = Integer.numberOfTrailingZeros(bucket);
+                if (statements[index] == null) {
+                    statements[index] = sql.acquireStatement(connection, rewriter.sql(bucket));
+                }
+
+                PreparedStatement rewritten = statements[index];
+                for (int i = 0; i < bucket; ++i) {
+                    Object[] values = rows.get(offset + i);
+                    int parameterOffset = i * parameters;
+                    Wrap.execute(() -> bindRow(rewritten, values, parameterOffset));
+                }
+                int count = executeStatement(rewritten::executeUpdate);
+                if (instrumentation != null) {
+                    instrumentation.affected(count);
+                }
+                rewrittenCount += count;
+                offset += bucket;
+            }
+        } finally {
+            for (PreparedStatement rewritten : statements) {
+                if (rewritten != null) {
+                    sql.releaseStatement(connection, rewritten);
+                }
+            }
+        }
+
+        rewrittenRows += rows.size();
+        rows.clear();
+        pendingRows = 0;
+        pendingBytes = 0;
+    }
+
+    private void bindRow(PreparedStatement rewritten, Object[] values, int offset) throws SQLException {
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] instanceof NullValue) {
+                rewritten.setNull(offset + i + 1, ((NullValue) values[i]).sqlType);
+            } else {
+                bindings.bind(rewritten, offset + i + 1, values[i]);
+            }
+        }
+    }
+
+    @Override
+    public <T> long executeAll(Stream<T> items, BiConsumer<BatchUpdate, ? super T> binder) {
+        if (flushRows == 0 && flushBytes == 0) {
+            flushRows = DEFAULT_FLUSH_ROWS;
+        }
+        if (rewriter != null) {
+            items.forEachOrdered(item -> {
+                binder.accept(this, item);
+                next();
+            });
+            return largeCount();
+        }
+
+        // Rows flushed before are part of the total
+        summingFlushed = true;
+        flushedTotal = sum(flushedCounts, flushedSize);
+        resetFlushed();
+        try {
+            items.forEachOrdered(item -> {
+                binder.accept(this, item);
+                next();
+            });
+            int[] counts = executeBatch();
+            long total = flushedTotal + sum(counts, counts.length);
+            pendingRows = 0;
+            pendingBytes = 0;
+            return total;
+        } finally {
+            summingFlushed = false;
+            flushedTotal = 0;
+        }
+    }
+
+    @Override
+    public <R> Stream<R> generatedKeys(SqlFunction<ResultSet, R> mapping) {
+        requireKeys();
+        counts();
+        return keys.map(mapping);
+    }
+
+    @Override
+    public long[] generatedKeys() {
+        requireKeys();
+        counts();
+        return keys.longs();
+    }
+
+    private void requireKeys() {
+        if (keys == null) {
+            throw new IllegalStateException("Generated keys were not requested, use Sql#batchInsert");
+        }
+    }
+
     @Override
     public int[] counts() {
-        return Wrap.get(statement::executeBatch);
+        if (rewriter != null) {
+            executeRewritten();
+            int[] counts = new int[(int) rewrittenRows];
+            Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+            rewrittenRows = 0;
+            rewrittenCount = 0;
+            return counts;
+        }
+
+        int[] counts = executeBatch();
+        pendingRows = 0;
+        pendingBytes = 0;
+        if (flushedSize == 0) {
+            return counts;
+        }
+
+        int[] all = Arrays.copyOf(flushedCounts, flushedSize + counts.length);
+        System.arraycopy(counts, 0, all, flushedSize, counts.length);
+        resetFlushed();
+        return all;
     }
 
     @Override
     public long[] largeCounts() {
-        return Wrap.get(statement::executeLargeBatch);
+        if (rewriter != null) {
+            executeRewritten();
+            long[] counts = new long[(int) rewrittenRows];
+            Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+            rewrittenRows = 0;
+            rewrittenCount = 0;
+            return counts;
+        }
+
+        long[] counts = executeLargeBatch();
+        pendingRows = 0;
+        pendingBytes = 0;
+        if (flushedSize == 0) {
+            return counts;
+        }
+
+        long[] all = new long[flushedSize + counts.length];
+        for (int i = 0; i < flushedSize; ++i) {
+            all[i] = flushedCounts[i];
+        }
+        System.arraycopy(counts, 0, all, flushedSize, counts.length);
+        resetFlushed();
+        return all;
+    }
+
+    private void resetFlushed() {
+        flushedCounts = new int[0];
+        flushedSize = 0;
     }
 
     @Override
     public int count() {
-        return IntStream.of(Wrap.get(statement::executeBatch)).sum();
+        if (rewriter != null) {
+            return (int) largeCount();
+        }
+        return IntStream.of(counts()).sum();
     }
 
     @Override
     public long largeCount() {
-        return LongStream.of(Wrap.get(statement::executeLargeBatch)).sum();
+        if (rewriter != null) {
+            executeRewritten();
+            long count = rewrittenCount;
+            rewrittenRows = 0;
+            rewrittenCount = 0;
+            return count;
+        }
+        if (flushedSize == 0) {
+            return LongStream.of(executeLargeBatch()).sum();
+        }
+        // executeLargeBatch is not supported by every driver, flushes already use executeBatch
+        return IntStream.of(counts()).asLongStream().sum();
     }
 
     public void close() {
-        super.close();
-        if (closeConnection) {
+        if (release() && closeConnection) {
             Wrap.execute(connection::close);
         }
     }
+
+    /**
+     * A parameter of a rewritten row set to null, unset parameters being null.
+     */
+    private static final class NullValue {
+        private final int sqlType;
+
+        private NullValue(int sqlType) {
+            this.sqlType = sqlType;
+        }
+    }
 }
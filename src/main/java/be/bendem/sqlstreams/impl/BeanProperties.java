@@ -0,0 +1,100 @@
+package be.bendem.sqlstreams.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the properties of beans to bind them to named parameters.
+ * <p>
+ * Properties are read using getters ({@code getName()} or {@code isName()}),
+ * accessors named after a field (as records have) or fields, and are matched
+ * ignoring case and underscores like {@link ClassMapper} does. The accessors of
+ * each class are resolved once.
+ */
+final class BeanProperties {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Map<String, MethodHandle>> GETTERS = new ClassValue<Map<String, MethodHandle>>() {
+        @Override
+        protected Map<String, MethodHandle> computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private BeanProperties() {
+    }
+
+    static Object get(Object bean, String name) {
+        MethodHandle getter = GETTERS.get(bean.getClass()).get(ClassMapper.normalize(name));
+        if (getter == null) {
+            throw new IllegalArgumentException("No property matching :" + name + " in " + bean.getClass().getName());
+        }
+
+        try {
+            return (Object) getter.invokeExact(bean);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not read property " + name + " of " + bean.getClass().getName(), e);
+        }
+    }
+
+    private static Map<String, MethodHandle> resolve(Class<?> type) {
+        Map<String, MethodHandle> getters = new HashMap<>();
+
+        // Fields first so that accessors take precedence
+        Set<String> fieldNames = new HashSet<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                fieldNames.add(field.getName());
+                String name = ClassMapper.normalize(field.getName());
+                if (getters.containsKey(name)) {
+                    // Shadowed by a subclass field
+                    continue;
+                }
+                ClassMapper.makeAccessible(field);
+                try {
+                    getters.put(name, MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE));
+                } catch (IllegalAccessException ignored) {
+                    // Not accessible, maybe there is an accessor
+                }
+            }
+        }
+
+        for (Method method : type.getMethods()) {
+            if (method.getParameterCount() != 0
+                    || Modifier.isStatic(method.getModifiers())
+                    || method.getReturnType() == void.class
+                    || method.getDeclaringClass() == Object.class) {
+                continue;
+            }
+
+            String name = method.getName();
+            String property;
+            if (fieldNames.contains(name)) {
+                property = name;
+            } else if (name.startsWith("get") && name.length() > 3) {
+                property = name.substring(3);
+            } else if (name.startsWith("is") && name.length() > 2
+                    && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+                property = name.substring(2);
+            } else {
+                continue;
+            }
+            getters.put(ClassMapper.normalize(property), ClassMapper.unreflect(method).asType(GETTER_TYPE));
+        }
+        return getters;
+    }
+}
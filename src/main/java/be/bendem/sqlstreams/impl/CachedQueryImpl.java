@@ -0,0 +1,81 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.CachedQuery;
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class CachedQueryImpl implements CachedQuery {
+
+    private final SqlImpl sql;
+    private final String querySql;
+    private final String[] tables;
+    private Object[] parameters;
+
+    CachedQueryImpl(SqlImpl sql, String querySql, String[] tables) {
+        this.sql = sql;
+        this.querySql = querySql;
+        this.tables = QueryCache.normalize(tables);
+        this.parameters = new Object[0];
+    }
+
+    @Override
+    public CachedQuery with(Object... parameters) {
+        this.parameters = parameters.clone();
+        return this;
+    }
+
+    @Override
+    public <R> Stream<R> map(Object key, SqlFunction<ResultSet, R> mapping) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(mapping, "mapping");
+        return cached(key, query -> query.map(mapping));
+    }
+
+    @Override
+    public <R> Stream<R> mapTo(Class<R> clazz) {
+        return cached(clazz, query -> query.mapTo(clazz));
+    }
+
+    @Override
+    public <R> Stream<R> column(int columnIndex, Class<R> clazz) {
+        return cached(Arrays.asList(columnIndex, clazz), query -> query.column(columnIndex, clazz));
+    }
+
+    /**
+     * Serves the rows from the query cache, only preparing the query when they
+     * are not cached.
+     */
+    private <R> Stream<R> cached(Object key, Function<Query, Stream<R>> mapping) {
+        QueryCache cache = sql.queryCache();
+        if (cache == null) {
+            return execute(mapping);
+        }
+
+        List<?> rows = cache.get(new QueryCache.Key(querySql, parameters, key), tables, () -> {
+            try (Stream<R> stream = execute(mapping)) {
+                return stream.collect(Collectors.toList());
+            }
+        });
+        @SuppressWarnings("unchecked")
+        Stream<R> stream = (Stream<R>) rows.stream();
+        return stream;
+    }
+
+    private <R> Stream<R> execute(Function<Query, Stream<R>> mapping) {
+        Query query = sql.query(querySql);
+        try {
+            return mapping.apply(query.with(parameters));
+        } catch (RuntimeException | Error e) {
+            query.close();
+            throw e;
+        }
+    }
+}
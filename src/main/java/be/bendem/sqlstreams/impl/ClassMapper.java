@@ -0,0 +1,305 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Maps rows to instances of a class, resolving columns to constructor parameters,
+ * setters or fields once for a given column layout.
+ * <p>
+ * Columns are matched by label, ignoring case and underscores ({@code user_id}
+ * matches {@code userId}). The constructor with the most parameters matching
+ * columns is used, parameters are matched by name when the class was compiled
+ * with {@code -parameters} or is a record, by the declared instance fields when
+ * the constructor takes them in declaration order. The remaining columns are set
+ * using setters or non final fields, columns matching nothing are ignored.
+ * <p>
+ * Values are retrieved by index using the retrievers of {@link SqlBindings},
+ * {@code null} values are replaced by the default value of primitive targets.
+ */
+final class ClassMapper<T> implements SqlFunction<ResultSet, T> {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /**
+     * Retrieves the value of a column for a target of a given type.
+     */
+    private static final class Column {
+        private final int index;
+        private final SqlBindings.Bindings<?> retriever;
+        private final Object defaultValue;
+
+        private Column(int index, SqlBindings.Bindings<?> retriever, Class<?> type) {
+            this.index = index;
+            this.retriever = retriever;
+            this.defaultValue = type.isPrimitive() ? defaultValue(type) : null;
+        }
+
+        private Object read(ResultSet resultSet) throws SQLException {
+            Object value = retriever.retrieve(resultSet, index);
+            return value == null || resultSet.wasNull() ? defaultValue : value;
+        }
+    }
+
+    private final MethodHandle constructor;
+    private final Column[] arguments;
+    private final MethodHandle[] setters;
+    private final Column[] properties;
+
+    private ClassMapper(MethodHandle constructor, Column[] arguments, MethodHandle[] setters, Column[] properties) {
+        this.constructor = constructor;
+        this.arguments = arguments;
+        this.setters = setters;
+        this.properties = properties;
+    }
+
+    @Override
+    public T apply(ResultSet resultSet) throws SQLException {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; ++i) {
+            values[i] = arguments[i].read(resultSet);
+        }
+
+        Object instance;
+        try {
+            instance = (Object) constructor.invokeExact(values);
+            for (int i = 0; i < setters.length; ++i) {
+                setters[i].invokeExact(instance, properties[i].read(resultSet));
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create an instance from a row", e);
+        }
+
+        @SuppressWarnings("unchecked")
+        T mapped = (T) instance;
+        return mapped;
+    }
+
+    static <T> ClassMapper<T> compile(Class<T> clazz, List<String> labels,
+                                      Function<Class<?>, SqlBindings.Bindings<?>> retrievers) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = labels.size() - 1; i >= 0; --i) {
+            columns.put(normalize(labels.get(i)), i + 1);
+        }
+
+        Constructor<?> constructor = null;
+        String[] parameterNames = null;
+        for (Constructor<?> candidate : clazz.getDeclaredConstructors()) {
+            String[] names = parameterNames(clazz, candidate);
+            if (names == null || !columns.keySet().containsAll(Arrays.asList(names))) {
+                continue;
+            }
+            if (constructor == null || names.length > parameterNames.length) {
+                constructor = candidate;
+                parameterNames = names;
+            }
+        }
+        if (constructor == null) {
+            throw new IllegalArgumentException("No constructor of " + clazz.getName() + " matches the columns " + labels);
+        }
+
+        Class<?>[] parameterTypes = constructor.getParameterTypes();
+        Column[] arguments = new Column[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; ++i) {
+            arguments[i] = column(columns.remove(parameterNames[i]), parameterTypes[i], retrievers);
+        }
+
+        List<MethodHandle> setters = new ArrayList<>();
+        List<Column> properties = new ArrayList<>();
+        for (Map.Entry<String, Integer> column : columns.entrySet()) {
+            Setter setter = findSetter(clazz, column.getKey());
+            if (setter != null) {
+                setters.add(setter.handle);
+                properties.add(column(column.getValue(), setter.type, retrievers));
+            }
+        }
+
+        MethodHandle handle = unreflect(constructor)
+            .asSpreader(Object[].class, parameterTypes.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+        return new ClassMapper<>(
+            handle,
+            arguments,
+            setters.toArray(new MethodHandle[0]),
+            properties.toArray(new Column[0]));
+    }
+
+    private static Column column(int index, Class<?> type, Function<Class<?>, SqlBindings.Bindings<?>> retrievers) {
+        SqlBindings.Bindings<?> retriever = retrievers.apply(type);
+        if (retriever == null) {
+            throw new IllegalArgumentException("No binding for " + type);
+        }
+        return new Column(index, retriever, type);
+    }
+
+    /**
+     * Returns the normalized names of the parameters of a constructor or null if
+     * they can't be determined.
+     */
+    private static String[] parameterNames(Class<?> clazz, Constructor<?> constructor) {
+        Parameter[] parameters = constructor.getParameters();
+        String[] names = new String[parameters.length];
+        if (parameters.length == 0 || parameters[0].isNamePresent()) {
+            for (int i = 0; i < parameters.length; ++i) {
+                names[i] = normalize(parameters[i].getName());
+            }
+            return names;
+        }
+
+        String[] components = recordComponents(clazz);
+        if (components == null) {
+            // Fall back to constructors taking the declared fields in order
+            List<Field> fields = new ArrayList<>();
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+            components = new String[fields.size()];
+            for (int i = 0; i < fields.size(); ++i) {
+                if (i < parameters.length && fields.get(i).getType() != parameters[i].getType()) {
+                    return null;
+                }
+                components[i] = fields.get(i).getName();
+            }
+        }
+        if (components.length != parameters.length) {
+            return null;
+        }
+        for (int i = 0; i < components.length; ++i) {
+            names[i] = normalize(components[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the names of the components of a record or null if the class is not
+     * a record (or records are not supported by the running JVM).
+     */
+    private static String[] recordComponents(Class<?> clazz) {
+        try {
+            Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(clazz);
+            if (components == null) {
+                return null;
+            }
+            String[] names = new String[components.length];
+            for (int i = 0; i < components.length; ++i) {
+                names[i] = (String) components[i].getClass().getMethod("getName").invoke(components[i]);
+            }
+            return names;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class Setter {
+        private final MethodHandle handle;
+        private final Class<?> type;
+
+        private Setter(MethodHandle handle, Class<?> type) {
+            this.handle = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            this.type = type;
+        }
+    }
+
+    private static Setter findSetter(Class<?> clazz, String name) {
+        for (Method method : clazz.getMethods()) {
+            if (method.getParameterCount() == 1
+                    && !Modifier.isStatic(method.getModifiers())
+                    && method.getName().startsWith("set")
+                    && normalize(method.getName().substring(3)).equals(name)) {
+                return new Setter(unreflect(method), method.getParameterTypes()[0]);
+            }
+        }
+
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) && normalize(field.getName()).equals(name)) {
+                    makeAccessible(field);
+                    try {
+                        return new Setter(LOOKUP.unreflectSetter(field), field.getType());
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalArgumentException("Cannot access " + field, e);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static MethodHandle unreflect(Constructor<?> constructor) {
+        makeAccessible(constructor);
+        try {
+            return LOOKUP.unreflectConstructor(constructor);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access " + constructor, e);
+        }
+    }
+
+    static MethodHandle unreflect(Method method) {
+        makeAccessible(method);
+        try {
+            return LOOKUP.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access " + method, e);
+        }
+    }
+
+    static void makeAccessible(AccessibleObject object) {
+        try {
+            object.setAccessible(true);
+        } catch (RuntimeException ignored) {
+            // Public members of exported packages are accessible anyway
+        }
+    }
+
+    static String normalize(String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        return 0d;
+    }
+}
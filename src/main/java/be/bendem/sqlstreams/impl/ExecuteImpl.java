@@ -9,24 +9,22 @@ import java.sql.PreparedStatement;
 class ExecuteImpl<Statement extends PreparedStatement>
         extends ParameterProviderImpl<Execute<Statement>, Statement> implements Execute<Statement> {
 
-    private final Connection connection;
     private final boolean closeConnection;
 
-    ExecuteImpl(SqlImpl sql, Connection connection, Statement statement, boolean closeConnection) {
-        super(statement, sql.bindings);
-        this.connection = connection;
+    ExecuteImpl(SqlImpl sql, Connection connection, Statement statement, boolean closeConnection,
+                Instrumentation instrumentation, PreparedSql preparedSql) {
+        super(sql, connection, statement, instrumentation, preparedSql);
         this.closeConnection = closeConnection;
     }
 
     @Override
     public boolean execute() {
-        return super.execute();
+        return executeStatement(statement::execute);
     }
 
     @Override
     public void close() {
-        super.close();
-        if (closeConnection) {
+        if (release() && closeConnection) {
             Wrap.execute(connection::close);
         }
     }
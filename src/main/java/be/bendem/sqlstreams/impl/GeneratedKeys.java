@@ -0,0 +1,68 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.Wrap;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Accumulates the keys generated by the executions of a statement.
+ * <p>
+ * Keys are copied from {@link Statement#getGeneratedKeys()} right after each
+ * execution so that they survive the next execution of the statement.
+ */
+final class GeneratedKeys {
+
+    private BufferedResultSet.Columns columns;
+    private List<Object[]> rows = new ArrayList<>();
+
+    void read(Statement statement) throws SQLException {
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            if (keys == null) {
+                return;
+            }
+            if (columns == null) {
+                columns = new BufferedResultSet.Columns(keys);
+            }
+            while (keys.next()) {
+                rows.add(columns.copy(keys));
+            }
+        }
+    }
+
+    /**
+     * Maps the accumulated keys and forgets them.
+     */
+    <R> Stream<R> map(SqlFunction<ResultSet, R> mapping) {
+        List<Object[]> keys = rows;
+        rows = new ArrayList<>();
+        if (keys.isEmpty()) {
+            return Stream.empty();
+        }
+        return ResultSetSpliterator.buffered(mapping, columns, keys);
+    }
+
+    /**
+     * Returns the first column of the accumulated keys as longs and forgets them.
+     */
+    long[] longs() {
+        List<Object[]> keys = rows;
+        rows = new ArrayList<>();
+        if (keys.isEmpty()) {
+            return new long[0];
+        }
+
+        BufferedResultSet view = new BufferedResultSet(columns);
+        long[] longs = new long[keys.size()];
+        for (int i = 0; i < longs.length; ++i) {
+            view.position(keys.get(i));
+            longs[i] = Wrap.get(() -> view.getLong(1));
+        }
+        return longs;
+    }
+}
@@ -0,0 +1,171 @@
+package be.bendem.sqlstreams.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A sql string with some of its {@code ?} parameters expanded to {@code ?, ?, ...}
+ * so that each value of a collection is bound to its own parameter.
+ * <p>
+ * Collections are expanded to a power of two number of parameters (padded by
+ * repeating the last value) so that a statement only ever has a few distinct
+ * shapes that drivers and databases can cache. Expansions are cached per sql and
+ * buckets.
+ * <p>
+ * Statements are limited to {@link InsertRewriter#MAX_PARAMETERS} parameters
+ * once expanded, the lowest limit of the supported databases. Larger
+ * collections are rejected rather than split across statements, which would
+ * change the meaning of most queries (ordering, aggregates, limits).
+ */
+final class InListExpansion {
+
+    private static final int MAX_CACHED = 1 << 12;
+    private static final Map<Key, InListExpansion> CACHE = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> EXPANDABLE = new ConcurrentHashMap<>();
+
+    private static final class Key {
+        private final String sql;
+        private final int[] buckets;
+        private final int hash;
+
+        private Key(String sql, int[] buckets) {
+            this.sql = sql;
+            this.buckets = buckets;
+            this.hash = 31 * sql.hashCode() + Arrays.hashCode(buckets);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return sql.equals(other.sql) && Arrays.equals(buckets, other.buckets);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Returns the number of parameters a collection of {@code size} elements is
+     * expanded to.
+     *
+     * @throws IllegalArgumentException if the collection has more elements
+     *                                  than a statement can have parameters
+     */
+    static int bucket(int size) {
+        if (size > InsertRewriter.MAX_PARAMETERS) {
+            throw tooManyParameters("a collection of " + size + " elements");
+        }
+        return size <= 1 ? 1 : Math.min(Integer.highestOneBit(size - 1) << 1, InsertRewriter.MAX_PARAMETERS);
+    }
+
+    /**
+     * Returns whether {@code sql} has a parameter alone in a list, such as
+     * {@code in (?)}, where a collection can be expanded.
+     */
+    static boolean expandable(String sql) {
+        Boolean expandable = EXPANDABLE.get(sql);
+        if (expandable == null) {
+            expandable = hasListParameter(sql);
+            if (EXPANDABLE.size() < MAX_CACHED) {
+                EXPANDABLE.put(sql, expandable);
+            }
+        }
+        return expandable;
+    }
+
+    private static boolean hasListParameter(String sql) {
+        for (int placeholder : NamedParameters.placeholders(sql)) {
+            int before = placeholder - 1;
+            while (before >= 0 && Character.isWhitespace(sql.charAt(before))) {
+                --before;
+            }
+            int after = placeholder + 1;
+            while (after < sql.length() && Character.isWhitespace(sql.charAt(after))) {
+                ++after;
+            }
+            if (before >= 0 && (sql.charAt(before) == '(' || sql.charAt(before) == ',')
+                    && after < sql.length() && (sql.charAt(after) == ')' || sql.charAt(after) == ',')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the expansion of the parameters of {@code sql} to {@code buckets}
+     * parameters each, missing buckets being 1.
+     *
+     * @throws IllegalArgumentException if the expanded sql has more parameters
+     *                                  than a statement can have
+     */
+    static InListExpansion of(String sql, int[] buckets) {
+        Key key = new Key(sql, buckets);
+        InListExpansion expansion = CACHE.get(key);
+        if (expansion == null) {
+            expansion = expand(sql, buckets.clone());
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.put(new Key(sql, expansion.buckets), expansion);
+            }
+        }
+        return expansion;
+    }
+
+    private static IllegalArgumentException tooManyParameters(String what) {
+        return new IllegalArgumentException("Expanding " + what + " exceeds the limit of "
+            + InsertRewriter.MAX_PARAMETERS + " parameters per statement of some databases, bind large collections "
+            + "as arrays using CollectionBinding.ARRAY or join with a temporary table instead");
+    }
+
+    private static InListExpansion expand(String sql, int[] buckets) {
+        int[] placeholders = NamedParameters.placeholders(sql);
+        int[] offsets = new int[placeholders.length];
+        StringBuilder builder = new StringBuilder(sql.length() + 8 * placeholders.length);
+        int index = 1;
+        int start = 0;
+        for (int i = 0; i < placeholders.length; ++i) {
+            int bucket = i < buckets.length ? buckets[i] : 1;
+            builder.append(sql, start, placeholders[i]).append('?');
+            for (int j = 1; j < bucket; ++j) {
+                builder.append(", ?");
+            }
+            start = placeholders[i] + 1;
+            offsets[i] = index;
+            index += bucket;
+        }
+        builder.append(sql, start, sql.length());
+        if (index - 1 > InsertRewriter.MAX_PARAMETERS) {
+            throw tooManyParameters("the collections to " + (index - 1) + " parameters");
+        }
+        return new InListExpansion(builder.toString(), buckets, offsets);
+    }
+
+    private final String sql;
+    private final int[] buckets;
+    private final int[] offsets;
+
+    private InListExpansion(String sql, int[] buckets, int[] offsets) {
+        this.sql = sql;
+        this.buckets = buckets;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Returns the expanded sql.
+     */
+    String sql() {
+        return sql;
+    }
+
+    /**
+     * Returns the index of the first expanded parameter of the parameter at
+     * {@code index} of the original sql, both starting at 1.
+     */
+    int index(int index) {
+        return index <= offsets.length ? offsets[index - 1] : index;
+    }
+}
@@ -0,0 +1,86 @@
+package be.bendem.sqlstreams.impl;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites a simple {@code insert into t (...) values (?, ...)} statement into
+ * statements inserting multiple rows at once using {@code values (...), (...)}.
+ * <p>
+ * The number of rows of each rewritten statement is a power of two so that only
+ * a few statement shapes are ever prepared (and cached).
+ */
+final class InsertRewriter {
+
+    /**
+     * The lowest maximum number of parameters per statement of the supported
+     * databases (SQLite before 3.32).
+     */
+    static final int MAX_PARAMETERS = 999;
+
+    private static final Pattern INSERT = Pattern.compile(
+        "\\s*(insert\\s+into\\s+[^(]+\\([^)]*\\)\\s*values)\\s*(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))\\s*;?\\s*",
+        Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Returns a rewriter for the provided sql or null if it is not a simple
+     * insert statement.
+     */
+    static InsertRewriter parse(String sql, int maxRows) {
+        Matcher matcher = INSERT.matcher(sql);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        String tuple = matcher.group(2).replaceAll("\\s+", "");
+        int parameters = tuple.length() / 2;
+        int rows = Integer.highestOneBit(Math.max(1, Math.min(maxRows, MAX_PARAMETERS / parameters)));
+        return new InsertRewriter(matcher.group(1), tuple, parameters, rows);
+    }
+
+    private final String prefix;
+    private final String tuple;
+    private final int parameters;
+    private final int maxRows;
+    private final String[] statements;
+
+    private InsertRewriter(String prefix, String tuple, int parameters, int maxRows) {
+        this.prefix = prefix;
+        this.tuple = tuple;
+        this.parameters = parameters;
+        this.maxRows = maxRows;
+        this.statements = new String[Integer.numberOfTrailingZeros(maxRows) + 1];
+    }
+
+    /**
+     * Returns the number of parameters of a row.
+     */
+    int parameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns the number of rows of the largest statement to use to insert
+     * {@code rows} rows.
+     */
+    int bucket(int rows) {
+        return Integer.highestOneBit(Math.min(rows, maxRows));
+    }
+
+    /**
+     * Returns the sql inserting {@code rows} rows, {@code rows} being a bucket.
+     */
+    String sql(int rows) {
+        int index = Integer.numberOfTrailingZeros(rows);
+        String sql = statements[index];
+        if (sql == null) {
+            StringBuilder builder = new StringBuilder(prefix.length() + rows * (tuple.length() + 2))
+                .append(prefix).append(' ').append(tuple);
+            for (int i = 1; i < rows; ++i) {
+                builder.append(", ").append(tuple);
+            }
+            statements[index] = sql = builder.toString();
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,144 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.SqlListener;
+import be.bendem.sqlstreams.StatementInfo;
+import be.bendem.sqlstreams.util.SqlSupplier;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Reports the events of a statement to a {@link SqlListener}.
+ * <p>
+ * Statements of a {@link be.bendem.sqlstreams.Sql} instance without listener
+ * don't have an instrumentation, callers check for {@code null} so that nothing
+ * is measured nor allocated in that case.
+ */
+final class Instrumentation {
+
+    static boolean next(Instrumentation instrumentation, ResultSet resultSet) throws SQLException {
+        return instrumentation == null ? resultSet.next() : instrumentation.next(resultSet);
+    }
+
+    private final SqlListener listener;
+    private final StatementInfo info;
+    private final long openedAt;
+    private final boolean capturesParameters;
+    private int fetchBatch = SqlListener.DEFAULT_FETCH_BATCH;
+    private int batchRows;
+    private long batchNanos;
+    private long rows;
+    private boolean closed;
+
+    Instrumentation(SqlListener listener, StatementInfo info, long openedAt) {
+        this.listener = listener;
+        this.info = info;
+        this.openedAt = openedAt;
+        this.capturesParameters = listener.captureParameters(info);
+    }
+
+    StatementInfo info() {
+        return info;
+    }
+
+    boolean capturesParameters() {
+        return capturesParameters;
+    }
+
+    void parameters(Object[] values) {
+        listener.onParametersBound(info, Collections.unmodifiableList(Arrays.asList(values)));
+    }
+
+    void prepared() {
+        listener.onPrepared(info, System.nanoTime() - openedAt);
+    }
+
+    /**
+     * Executes a statement, reporting how long it took or how it failed.
+     */
+    <T> T execute(SqlSupplier<T> execution) throws SQLException {
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = execution.get();
+        } catch (SQLException | RuntimeException e) {
+            error(e);
+            throw e;
+        }
+        listener.onExecuted(info, System.nanoTime() - start);
+        return result;
+    }
+
+    void fetchSize(int rows) {
+        fetchBatch = rows > 0 ? rows : SqlListener.DEFAULT_FETCH_BATCH;
+    }
+
+    void affected(long count) {
+        rows += count;
+        listener.onRowsAffected(info, count);
+    }
+
+    void affected(int[] counts) {
+        long count = 0;
+        for (int c : counts) {
+            if (c > 0) {
+                count += c;
+            }
+        }
+        affected(count);
+    }
+
+    void affected(long[] counts) {
+        long count = 0;
+        for (long c : counts) {
+            if (c > 0) {
+                count += c;
+            }
+        }
+        affected(count);
+    }
+
+    private boolean next(ResultSet resultSet) throws SQLException {
+        long start = System.nanoTime();
+        boolean hasNext;
+        try {
+            hasNext = resultSet.next();
+        } catch (SQLException | RuntimeException e) {
+            error(e);
+            throw e;
+        }
+        batchNanos += System.nanoTime() - start;
+
+        if (hasNext) {
+            ++rows;
+            if (++batchRows < fetchBatch) {
+                return true;
+            }
+        }
+        fetched();
+        return hasNext;
+    }
+
+    private void fetched() {
+        if (batchRows != 0 || batchNanos != 0) {
+            listener.onFetched(info, batchRows, batchNanos);
+            batchRows = 0;
+            batchNanos = 0;
+        }
+    }
+
+    void error(Throwable error) {
+        listener.onError(info, error);
+    }
+
+    void closed() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        fetched();
+        listener.onClosed(info, rows, System.nanoTime() - openedAt);
+    }
+}
@@ -0,0 +1,327 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.Sql;
+import be.bendem.sqlstreams.UncheckedSqlException;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} merging the rows of a query executed on several shards,
+ * in the order they are read.
+ * <p>
+ * A reader task per shard submitted to an {@link Executor} executes the query,
+ * maps each row and puts the result in a bounded queue shared by all readers,
+ * waiting when the queue is full. The consumer takes mapped rows from the queue
+ * until every reader is done. The first exception thrown by a reader is rethrown
+ * to the consumer, the other readers are stopped when the stream is closed.
+ * <p>
+ * Like {@link PrefetchSpliterator}, the consumer doesn't wait for readers that
+ * won't put anything in the queue: waiting fails if the stream is closed, if
+ * all readers stopped without reaching the end of their rows or if the executor
+ * didn't start some readers in time. If the executor rejects a reader, the
+ * readers already started are stopped and the rejection is rethrown. Readers
+ * run on the thread starting them are rejected since they would block once the
+ * queue is full, and closing fails if the readers don't stop in time after
+ * their statements were cancelled.
+ */
+class MergeSpliterator<T> implements Spliterator<T> {
+
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final long START_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long STOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final class Failure {
+        private final Throwable throwable;
+
+        private Failure(Throwable throwable) {
+            this.throwable = throwable;
+        }
+    }
+
+    static <T> MergeSpliterator<T> start(List<Sql> shards, Function<Sql, Query> preparer,
+                                         Function<Query, Stream<T>> mapping, int capacity, Executor executor) {
+        MergeSpliterator<T> spliterator = new MergeSpliterator<>(shards.size(), capacity);
+        spliterator.starter = Thread.currentThread();
+        try {
+            for (int i = 0; i < shards.size(); ++i) {
+                int shard = i;
+                executor.execute(() -> spliterator.read(shard, () -> preparer.apply(shards.get(shard)), mapping));
+            }
+        } catch (RejectedExecutionException e) {
+            // Stops the readers already started, the others won't be
+            try {
+                spliterator.close();
+            } catch (IllegalStateException stuck) {
+                e.addSuppressed(stuck);
+            }
+            throw e;
+        } finally {
+            spliterator.starter = null;
+        }
+        return spliterator;
+    }
+
+    Stream<T> stream() {
+        return StreamSupport
+            .stream(this, false)
+            .onClose(this::close);
+    }
+
+    // The queries being read, guarded by themselves so that a statement is never
+    // cancelled after being released
+    private final Query[] queries;
+    private final BlockingQueue<Object> queue;
+    private final CountDownLatch done;
+    // Claimed by each reader when it starts, or by the consumer giving up on it
+    private final AtomicBoolean[] started;
+    // The thread submitting the readers, while they are being submitted
+    private volatile Thread starter;
+    private volatile boolean closed;
+    private int remaining;
+
+    private MergeSpliterator(int shards, int capacity) {
+        this.queries = new Query[shards];
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.done = new CountDownLatch(shards);
+        this.started = new AtomicBoolean[shards];
+        for (int i = 0; i < shards; ++i) {
+            this.started[i] = new AtomicBoolean();
+        }
+        this.remaining = shards;
+    }
+
+    private void read(int shard, Supplier<Query> preparer, Function<Query, Stream<T>> mapping) {
+        if (Thread.currentThread() == starter) {
+            throw new RejectedExecutionException("The executor ran a reader on the thread starting it");
+        }
+        if (!started[shard].compareAndSet(false, true)) {
+            return;
+        }
+        if (closed) {
+            done.countDown();
+            return;
+        }
+
+        Query query;
+        try {
+            query = preparer.get();
+        } catch (Throwable e) {
+            put(new Failure(e));
+            done.countDown();
+            return;
+        }
+
+        Stream<T> stream = null;
+        try {
+            synchronized (queries) {
+                queries[shard] = query;
+            }
+            if (!closed) {
+                stream = mapping.apply(query);
+                Iterator<T> iterator = stream.iterator();
+                while (!closed && iterator.hasNext()) {
+                    T value = iterator.next();
+                    put(value == null ? NULL : value);
+                }
+            }
+            put(END);
+        } catch (Throwable e) {
+            put(new Failure(e));
+        } finally {
+            synchronized (queries) {
+                queries[shard] = null;
+            }
+            try {
+                // Closing the stream closes the query
+                if (stream != null) {
+                    stream.close();
+                } else {
+                    query.close();
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private void put(Object element) {
+        try {
+            while (!closed) {
+                if (queue.offer(element, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> consumer) {
+        while (remaining > 0) {
+            Object element;
+            try {
+                element = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedSqlException("Interrupted while waiting for rows", new SQLException(e));
+            }
+
+            if (element == END) {
+                --remaining;
+                continue;
+            }
+            if (element instanceof Failure) {
+                remaining = 0;
+                Throwable throwable = ((Failure) element).throwable;
+                if (throwable instanceof Error) {
+                    throw (Error) throwable;
+                }
+                throw (RuntimeException) throwable;
+            }
+
+            @SuppressWarnings("unchecked")
+            T value = element == NULL ? null : (T) element;
+            consumer.accept(value);
+            return true;
+        }
+        return false;
+    }
+
+    private Object take() throws InterruptedException {
+        long start = System.nanoTime();
+        while (true) {
+            Object element = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                throw new IllegalStateException("The stream was closed while waiting for rows");
+            }
+            if (done.getCount() == 0) {
+                // The last readers might have put their last element right before stopping
+                element = queue.poll();
+                if (element == null) {
+                    throw new IllegalStateException("The readers stopped before the end of the rows");
+                }
+                return element;
+            }
+            if (System.nanoTime() - start > START_TIMEOUT_NANOS && claimUnstarted() > 0) {
+                remaining = 0;
+                throw new IllegalStateException("The executor didn't start all the readers within "
+                    + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT_NANOS) + " seconds");
+            }
+        }
+    }
+
+    /**
+     * Prevents the readers that didn't start yet from starting.
+     *
+     * @return the number of readers that won't start
+     */
+    private int claimUnstarted() {
+        int claimed = 0;
+        for (AtomicBoolean reader : started) {
+            if (reader.compareAndSet(false, true)) {
+                done.countDown();
+                ++claimed;
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Stops the readers and waits for them to be done with their queries.
+     *
+     * @throws IllegalStateException if the readers didn't stop in time after
+     *                               their statements were cancelled
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        // Readers that never started won't touch their shard
+        claimUnstarted();
+
+        boolean interrupted = false;
+        long cancelledAt = 0;
+        boolean cancelled = false;
+        try {
+            while (true) {
+                try {
+                    if (done.await(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (!cancelled) {
+                    // Some readers are still waiting on the database, interrupt them
+                    cancelled = true;
+                    cancelledAt = System.nanoTime();
+                    cancel();
+                } else if (System.nanoTime() - cancelledAt > STOP_TIMEOUT_NANOS) {
+                    throw new IllegalStateException("The readers didn't stop within "
+                        + TimeUnit.NANOSECONDS.toSeconds(STOP_TIMEOUT_NANOS) + " seconds after being cancelled");
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void cancel() {
+        synchronized (queries) {
+            for (Query query : queries) {
+                if (query == null) {
+                    continue;
+                }
+                try {
+                    Statement statement = query.getStatement();
+                    statement.cancel();
+                } catch (SQLException | RuntimeException ignored) {
+                    // Cancelling is best effort, the readers stop after the current row anyway
+                }
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return 0;
+    }
+}
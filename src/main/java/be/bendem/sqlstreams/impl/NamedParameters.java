@@ -0,0 +1,216 @@
+package be.bendem.sqlstreams.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code :name} parameters of a sql string, rewritten as positional {@code ?}
+ * parameters.
+ * <p>
+ * String literals, quoted identifiers, dollar quoted strings ({@code $$...$$} or
+ * {@code $tag$...$tag$}) and comments are copied as is, as are {@code ::} casts. Parsing is done once per distinct sql string, the results are
+ * cached so that preparing the same sql again only costs a map lookup.
+ */
+final class NamedParameters {
+
+    private static final int MAX_CACHED = 1 << 12;
+    private static final NamedParameters NONE = new NamedParameters(null, Collections.emptyMap(), 0);
+    private static final Map<String, NamedParameters> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the named parameters of the provided sql or null if it doesn't
+     * contain any.
+     */
+    static NamedParameters parse(String sql) {
+        if (sql.indexOf(':') < 0) {
+            return null;
+        }
+
+        NamedParameters parameters = CACHE.get(sql);
+        if (parameters == null) {
+            parameters = doParse(sql);
+            // Unbounded dynamic sql would make the cache grow forever
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.put(sql, parameters);
+            }
+        }
+        return parameters == NONE ? null : parameters;
+    }
+
+    private static NamedParameters doParse(String sql) {
+        StringBuilder builder = new StringBuilder(sql.length());
+        Map<String, List<Integer>> indexes = new LinkedHashMap<>();
+        int count = 0;
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            int end = skip(sql, i);
+            if (end > i) {
+                builder.append(sql, i, end);
+                i = end;
+                continue;
+            }
+
+            char c = sql.charAt(i);
+            if (c == '?') {
+                ++count;
+            } else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart(sql.charAt(i + 1))) {
+                end = i + 2;
+                while (end < length && Character.isJavaIdentifierPart(sql.charAt(end))) {
+                    ++end;
+                }
+                indexes.computeIfAbsent(sql.substring(i + 1, end), name -> new ArrayList<>()).add(++count);
+                builder.append('?');
+                i = end;
+                continue;
+            }
+            builder.append(c);
+            ++i;
+        }
+
+        if (indexes.isEmpty()) {
+            return NONE;
+        }
+
+        Map<String, int[]> table = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : indexes.entrySet()) {
+            table.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        return new NamedParameters(builder.toString(), table, count);
+    }
+
+    /**
+     * Returns the positions of the {@code ?} parameters of a sql string.
+     */
+    static int[] placeholders(String sql) {
+        int[] positions = new int[8];
+        int count = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            int end = skip(sql, i);
+            if (end > i) {
+                i = end;
+                continue;
+            }
+            if (sql.charAt(i) == '?') {
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                positions[count++] = i;
+            }
+            ++i;
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * Returns the end of the string literal, quoted identifier, dollar quoted
+     * string, comment or {@code ::} cast starting at {@code start} or {@code
+     * start} if there is none.
+     */
+    static int skip(String sql, int start) {
+        char c = sql.charAt(start);
+        char next = start + 1 < sql.length() ? sql.charAt(start + 1) : '\0';
+        if (c == '\'' || c == '"') {
+            return skipQuoted(sql, start, c);
+        }
+        if (c == '-' && next == '-') {
+            int end = sql.indexOf('\n', start);
+            return end < 0 ? sql.length() : end + 1;
+        }
+        if (c == '/' && next == '*') {
+            int end = sql.indexOf("*/", start + 2);
+            return end < 0 ? sql.length() : end + 2;
+        }
+        if (c == ':' && next == ':') {
+            return start + 2;
+        }
+        // Not a dollar quote when part of an identifier (a$b) or a positional parameter ($1)
+        if (c == '$' && (start == 0 || !Character.isJavaIdentifierPart(sql.charAt(start - 1)))) {
+            return skipDollarQuoted(sql, start);
+        }
+        return start;
+    }
+
+    private static int skipDollarQuoted(String sql, int start) {
+        int i = start + 1;
+        while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')) {
+            ++i;
+        }
+        if (i >= sql.length() || sql.charAt(i) != '$' || (i > start + 1 && Character.isDigit(sql.charAt(start + 1)))) {
+            return start;
+        }
+
+        String tag = sql.substring(start, i + 1);
+        int end = sql.indexOf(tag, i + 1);
+        return end < 0 ? sql.length() : end + tag.length();
+    }
+
+    private static int skipQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                // Doubled quotes are escaped quotes
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            ++i;
+        }
+        return sql.length();
+    }
+
+    private final String sql;
+    private final Map<String, int[]> indexes;
+    private final int count;
+
+    private NamedParameters(String sql, Map<String, int[]> indexes, int count) {
+        this.sql = sql;
+        this.indexes = indexes;
+        this.count = count;
+    }
+
+    /**
+     * Returns the sql with each named parameter replaced by {@code ?}.
+     */
+    String sql() {
+        return sql;
+    }
+
+    /**
+     * Returns the total number of parameters, named or positional.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Returns the distinct names of the parameters.
+     */
+    Set<String> names() {
+        return Collections.unmodifiableSet(indexes.keySet());
+    }
+
+    /**
+     * Returns the positional indexes of a named parameter, starting at 1.
+     *
+     * @throws IllegalArgumentException if there is no such parameter
+     */
+    int[] indexes(String name) {
+        int[] result = indexes.get(name);
+        if (result == null) {
+            throw new IllegalArgumentException("Unknown parameter :" + name + ", expected one of " + indexes.keySet());
+        }
+        return result;
+    }
+
+}
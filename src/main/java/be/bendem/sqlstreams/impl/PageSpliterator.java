@@ -0,0 +1,193 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.util.SqlConsumer;
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} reading the rows of a query one page at a time using
+ * keyset pagination.
+ * <p>
+ * Each page is a new query selecting the rows whose key is greater than the key
+ * of the last row of the previous page, ordered by key and limited to the page
+ * size. Pages are read entirely and their statement closed (and connection
+ * released) before their rows are consumed so that no cursor stays open between
+ * pages. When an executor is provided, the next page is read in the background
+ * while the current one is consumed.
+ */
+final class PageSpliterator<T> implements Spliterator<T> {
+
+    private static final String ALIAS = "paginated";
+
+    static <T> Stream<T> stream(SqlImpl sql, String querySql, SqlConsumer<PreparedStatement> parameters,
+                                String keyColumn, int pageSize, SqlFunction<ResultSet, T> mapping,
+                                Executor executor) {
+        PageSpliterator<T> spliterator = new PageSpliterator<>(
+            sql, querySql, parameters, keyColumn, pageSize, mapping, executor);
+        return StreamSupport
+            .stream(spliterator, false)
+            .onClose(spliterator::close);
+    }
+
+    private static final class Page<T> {
+        private final List<T> rows;
+        private final Object lastKey;
+
+        private Page(List<T> rows, Object lastKey) {
+            this.rows = rows;
+            this.lastKey = lastKey;
+        }
+    }
+
+    private final SqlImpl sql;
+    private final String firstPageSql;
+    private final String nextPageSql;
+    private final int parameterCount;
+    private final SqlConsumer<PreparedStatement> parameters;
+    private final String keyColumn;
+    private final int pageSize;
+    private final SqlFunction<ResultSet, T> mapping;
+    private final Executor executor;
+    private Iterator<T> rows;
+    private Object lastKey;
+    private boolean lastPage;
+    private CompletableFuture<Page<T>> nextPage;
+
+    private PageSpliterator(SqlImpl sql, String querySql, SqlConsumer<PreparedStatement> parameters,
+                            String keyColumn, int pageSize, SqlFunction<ResultSet, T> mapping,
+                            Executor executor) {
+        String key = ALIAS + '.' + keyColumn;
+        // Line breaks in case the query ends with a comment
+        String from = "select * from (\n" + querySql + "\n) " + ALIAS;
+        this.sql = sql;
+        this.firstPageSql = from + " order by " + key + " limit ?";
+        this.nextPageSql = from + " where " + key + " > ? order by " + key + " limit ?";
+        this.parameterCount = NamedParameters.placeholders(querySql).length;
+        this.parameters = parameters;
+        this.keyColumn = keyColumn;
+        this.pageSize = pageSize;
+        this.mapping = mapping;
+        this.executor = executor;
+        this.rows = Collections.emptyIterator();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> consumer) {
+        while (!rows.hasNext()) {
+            if (lastPage) {
+                return false;
+            }
+
+            Page<T> page = nextPage == null ? read(lastKey) : join(nextPage);
+            nextPage = null;
+            rows = page.rows.iterator();
+            lastKey = page.lastKey;
+            lastPage = page.rows.size() < pageSize;
+            if (!lastPage && lastKey == null) {
+                throw new IllegalStateException("The key column " + keyColumn + " of the last row of a page is null");
+            }
+            if (!lastPage && executor != null) {
+                Object after = lastKey;
+                nextPage = CompletableFuture.supplyAsync(() -> read(after), executor);
+            }
+        }
+
+        consumer.accept(rows.next());
+        return true;
+    }
+
+    /**
+     * Reads the page following {@code after}, or the first page if it is null.
+     */
+    private Page<T> read(Object after) {
+        Object[] key = new Object[1];
+        Query query = sql.query(after == null ? firstPageSql : nextPageSql);
+        Stream<T> stream;
+        try {
+            query.prepare(statement -> {
+                parameters.accept(statement);
+                int index = parameterCount;
+                if (after != null) {
+                    statement.setObject(++index, after);
+                }
+                statement.setInt(++index, pageSize);
+            });
+            stream = query.map(resultSet -> {
+                key[0] = resultSet.getObject(keyColumn);
+                return mapping.apply(resultSet);
+            });
+        } catch (RuntimeException | Error e) {
+            query.close();
+            throw e;
+        }
+
+        // The stream owns the query from there
+        List<T> rows = new ArrayList<>(pageSize);
+        try (Stream<T> pageStream = stream) {
+            pageStream.forEachOrdered(rows::add);
+        }
+        return new Page<>(rows, key[0]);
+    }
+
+    private static <T> Page<T> join(CompletableFuture<Page<T>> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the page being read in the background so that its connection is
+     * released once the stream is closed.
+     */
+    private void close() {
+        lastPage = true;
+        rows = Collections.emptyIterator();
+        if (nextPage != null) {
+            CompletableFuture<Page<T>> page = nextPage;
+            nextPage = null;
+            try {
+                page.join();
+            } catch (CompletionException ignored) {
+                // The page is discarded anyway
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return lastPage && !rows.hasNext() ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED;
+    }
+}
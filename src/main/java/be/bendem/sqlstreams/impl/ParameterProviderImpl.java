@@ -1,7 +1,10 @@
 package be.bendem.sqlstreams.impl;
 
+import be.bendem.sqlstreams.CollectionBinding;
 import be.bendem.sqlstreams.ParameterProvider;
+import be.bendem.sqlstreams.UncheckedSqlException;
 import be.bendem.sqlstreams.util.SqlConsumer;
+import be.bendem.sqlstreams.util.SqlSupplier;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.io.InputStream;
@@ -9,19 +12,51 @@ import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Map;
 import java.util.Objects;
 
 @SuppressWarnings("unchecked")
 class ParameterProviderImpl<Provider extends ParameterProvider<Provider, Statement>, Statement extends PreparedStatement>
         implements ParameterProvider<Provider, Statement> {
 
-    protected final Statement statement;
-    private final SqlBindings bindings;
-
-    ParameterProviderImpl(Statement statement, SqlBindings bindings) {
+    protected final SqlImpl sql;
+    protected final Connection connection;
+    // Replaced when collections are expanded
+    protected Statement statement;
+    protected final SqlBindings bindings;
+    protected final Instrumentation instrumentation;
+    protected final PreparedSql preparedSql;
+    private final NamedParameters namedParameters;
+    // Values bound to the parameters, only when a listener asked for them
+    private Object[] captured;
+    private int capturedCount;
+    // Parameters bound by with(Object...), only recorded to bind them again (see recordsParameters())
+    private Object[] values;
+    // Bindings by parameter index, overriding values, only recorded to bind them again
+    private Binder<Statement>[] binders;
+    private int[] buckets;
+    private InListExpansion expansion;
+    private boolean released;
+
+    @FunctionalInterface
+    interface Binder<Statement> {
+        void bind(Statement statement, int index) throws SQLException;
+    }
+
+    ParameterProviderImpl(SqlImpl sql, Connection connection, Statement statement, Instrumentation instrumentation,
+                          PreparedSql preparedSql) {
+        this.sql = sql;
+        this.connection = connection;
         this.statement = statement;
-        this.bindings = bindings;
+        this.bindings = sql.bindings;
+        this.instrumentation = instrumentation;
+        this.preparedSql = preparedSql;
+        this.namedParameters = preparedSql == null ? null : preparedSql.namedParameters;
+        if (instrumentation != null && instrumentation.capturesParameters()) {
+            this.captured = new Object[8];
+        }
     }
 
     @Override
@@ -29,264 +64,572 @@ class ParameterProviderImpl<Provider extends ParameterProvider<Provider, Stateme
         return statement;
     }
 
+    /**
+     * Releases the statement held by this object, putting it back into the
+     * statement cache if it came from there.
+     * <p>
+     * Releasing is done only once as the statement might have been handed out
+     * again by the cache right after.
+     */
+    @Override
+    public void close() {
+        release();
+    }
+
+    /**
+     * Releases the statement if it was not already released.
+     * <p>
+     * Subclasses closing the connection must only do so when this returns
+     * {@code true}, the connection may have been borrowed by someone else
+     * since it was first closed.
+     *
+     * @return {@code true} if this call released the statement, {@code false}
+     *         if it was already released
+     */
+    protected boolean release() {
+        if (released) {
+            return false;
+        }
+        released = true;
+        sql.releaseStatement(connection, statement);
+        if (instrumentation != null) {
+            instrumentation.closed();
+        }
+        return true;
+    }
+
+    /**
+     * Executes the statement, reporting the execution to the listeners if any.
+     */
+    protected <T> T executeStatement(SqlSupplier<T> execution) {
+        T result;
+        if (instrumentation == null) {
+            result = Wrap.get(execution);
+        } else {
+            if (captured != null && instrumentation.capturesParameters()) {
+                instrumentation.parameters(Arrays.copyOf(captured, capturedCount));
+            }
+            result = Wrap.get(() -> instrumentation.execute(execution));
+        }
+        if (modifiesTables()) {
+            sql.modified(preparedSql == null ? null : preparedSql.sql);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether executing the statement might modify tables, in which
+     * case the cached queries depending on them are invalidated.
+     */
+    protected boolean modifiesTables() {
+        return true;
+    }
+
+    /**
+     * Returns the sql the statement was prepared from, with collection
+     * parameters expanded.
+     */
+    String expandedSql() {
+        return expansion == null ? preparedSql.sql : expansion.sql();
+    }
+
+    /**
+     * Binds the parameters bound so far to another statement prepared from
+     * {@link #expandedSql()}.
+     */
+    void bindTo(Statement target) throws SQLException {
+        if (values != null) {
+            for (int i = 0; i < values.length; ++i) {
+                bindings.bind(target, expansion == null ? i + 1 : expansion.index(i + 1), values[i]);
+            }
+        }
+        if (binders != null) {
+            for (int i = 0; i < binders.length; ++i) {
+                if (binders[i] != null) {
+                    binders[i].bind(target, expansion == null ? i + 1 : expansion.index(i + 1));
+                }
+            }
+        }
+    }
+
     @Override
     public Provider prepare(SqlConsumer<Statement> preparator) {
         Wrap.execute(() -> preparator.accept(statement));
         return (Provider) this;
     }
 
+    /**
+     * Returns whether collections can be expanded, i.e. whether the statement
+     * can be prepared again with a different number of parameters and its sql
+     * has a list to expand them in.
+     */
+    protected boolean expandsCollections() {
+        return preparedSql != null && InListExpansion.expandable(preparedSql.sql);
+    }
+
+    /**
+     * Returns whether the parameters are recorded to be bound again, either
+     * when collections are expanded or by subclasses preparing other
+     * statements from the same sql. Parameters are bound directly otherwise.
+     */
+    protected boolean recordsParameters() {
+        return expandsCollections();
+    }
+
+    /**
+     * Replaces the statement by one prepared with expanded collection
+     * parameters, before the current one is released.
+     */
+    protected void replaceStatement(Statement replacement) throws SQLException {
+        if (replacement.getFetchSize() != statement.getFetchSize()) {
+            replacement.setFetchSize(statement.getFetchSize());
+        }
+        if (replacement.getMaxRows() != statement.getMaxRows()) {
+            replacement.setMaxRows(statement.getMaxRows());
+        }
+        if (replacement.getQueryTimeout() != statement.getQueryTimeout()) {
+            replacement.setQueryTimeout(statement.getQueryTimeout());
+        }
+    }
+
     @Override
     public Provider with(Object... params) {
-        return prepare(statement -> bindings.bind(statement, params, 0));
+        // Parameters only need to be bound one by one once collections are expanded
+        if (expansion == null && !containsCollection(params)) {
+            if (captured != null) {
+                for (int i = 0; i < params.length; ++i) {
+                    capture(i + 1, params[i]);
+                }
+            }
+            if (recordsParameters()) {
+                values = params;
+                if (binders != null) {
+                    Arrays.fill(binders, 0, Math.min(params.length, binders.length), null);
+                }
+            }
+            return prepare(statement -> bindings.bind(statement, params, 0));
+        }
+
+        // Not through set(int, Object), subclasses intercepting both would see each parameter twice
+        for (int i = 0; i < params.length; ++i) {
+            setValue(i + 1, params[i]);
+        }
+        return (Provider) this;
+    }
+
+    private boolean containsCollection(Object[] params) {
+        for (Object param : params) {
+            if (param != null && bindings.isCollection(param)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public Provider set(int index, Object x) {
-        return prepare(statement -> bindings.bind(statement, index, Objects.requireNonNull(x)));
+        return setValue(index, x);
+    }
+
+    private Provider setValue(int index, Object x) {
+        Objects.requireNonNull(x);
+        if (bindings.isCollection(x)) {
+            return setCollection(index, x);
+        }
+        return bind(index, x, (statement, i) -> bindings.bind(statement, i, x));
+    }
+
+    private Provider setCollection(int index, Object collection) {
+        Object[] elements = SqlBindings.elements(collection);
+        if (bindings.collectionBinding == CollectionBinding.ARRAY) {
+            return bind(index, collection,
+                (statement, i) -> statement.setArray(i, SqlBindings.createArray(statement.getConnection(), collection, elements)));
+        }
+        if (!expandsCollections()) {
+            throw new IllegalArgumentException("Collections can only be expanded in lists such as in (?) of statements "
+                + "prepared from sql outside of batches, bind them as arrays using CollectionBinding.ARRAY instead");
+        }
+
+        int bucket = InListExpansion.bucket(elements.length);
+        Binder<Statement> binder = (statement, i) -> {
+            for (int j = 0; j < bucket; ++j) {
+                Object element = elements.length == 0 ? null : elements[Math.min(j, elements.length - 1)];
+                if (element == null) {
+                    statement.setNull(i + j, Types.NULL);
+                } else {
+                    bindings.bind(statement, i + j, element);
+                }
+            }
+        };
+        if ((buckets == null ? 1 : bucket(index)) == bucket) {
+            return bind(index, collection, binder);
+        }
+
+        int[] grown = buckets == null ? new int[index] : Arrays.copyOf(buckets, Math.max(index, buckets.length));
+        Arrays.fill(grown, buckets == null ? 0 : Math.min(buckets.length, index), index, 1);
+        grown[index - 1] = bucket;
+        // Fails before anything changes if the expanded statement would have too many parameters
+        InListExpansion expansion = InListExpansion.of(preparedSql.sql, grown);
+
+        if (captured != null) {
+            capture(index, collection);
+        }
+        record(index, binder);
+        buckets = grown;
+        expand(expansion);
+        return (Provider) this;
+    }
+
+    private int bucket(int index) {
+        return index <= buckets.length ? buckets[index - 1] : 1;
+    }
+
+    /**
+     * Prepares the statement again with the provided expansion and binds the
+     * parameters bound so far.
+     */
+    private void expand(InListExpansion expansion) {
+        Statement replacement = (Statement) sql.acquireStatement(connection, preparedSql.key(expansion.sql()));
+        try {
+            Wrap.execute(() -> replaceStatement(replacement));
+        } catch (RuntimeException e) {
+            sql.releaseStatement(connection, replacement);
+            throw e;
+        }
+        sql.releaseStatement(connection, statement);
+        statement = replacement;
+        this.expansion = expansion;
+
+        Wrap.execute(() -> bindTo(statement));
+    }
+
+    @Override
+    public Provider set(String name, Object x) {
+        for (int index : namedParameters(name).indexes(name)) {
+            if (x == null) {
+                setNull(index, Types.NULL);
+            } else {
+                set(index, x);
+            }
+        }
+        return (Provider) this;
+    }
+
+    @Override
+    public Provider with(Map<String, ?> params) {
+        params.forEach(this::set);
+        return (Provider) this;
+    }
+
+    @Override
+    public Provider withBean(Object bean) {
+        Objects.requireNonNull(bean, "bean");
+        if (namedParameters == null) {
+            throw new IllegalArgumentException("The statement has no named parameter"
+                + (bindings.namedParameters ? "" : " (named parameters are not enabled, see Sql.enableNamedParameters())"));
+        }
+        for (String name : namedParameters.names()) {
+            set(name, BeanProperties.get(bean, name));
+        }
+        return (Provider) this;
+    }
+
+    private NamedParameters namedParameters(String name) {
+        if (namedParameters == null) {
+            throw new IllegalArgumentException("Unknown parameter :" + name + ", the statement has no named parameter"
+                + (bindings.namedParameters ? "" : " (named parameters are not enabled, see Sql.enableNamedParameters())"));
+        }
+        return namedParameters;
+    }
+
+    /**
+     * Called before a parameter is bound to the statement by one of the typed
+     * setters, which don't go through {@link #prepare(SqlConsumer)}.
+     */
+    protected void beforeSet() {
+    }
+
+    private Provider bind(int index, Object value, Binder<Statement> binder) {
+        beforeSet();
+        if (captured != null) {
+            capture(index, value);
+        }
+        int actual = index;
+        if (recordsParameters()) {
+            record(index, binder);
+            if (expansion != null) {
+                actual = expansion.index(index);
+            }
+        }
+        // Called directly, the binder is the only allocation as with prepare()
+        try {
+            binder.bind(statement, actual);
+        } catch (SQLException e) {
+            throw new UncheckedSqlException(e);
+        }
+        return (Provider) this;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void record(int index, Binder<Statement> binder) {
+        if (binders == null) {
+            binders = new Binder[Math.max(index, 8)];
+        } else if (index > binders.length) {
+            binders = Arrays.copyOf(binders, Math.max(index, binders.length * 2));
+        }
+        binders[index - 1] = binder;
+    }
+
+    private void capture(int index, Object value) {
+        if (index > captured.length) {
+            captured = Arrays.copyOf(captured, Math.max(index, captured.length * 2));
+        }
+        captured[index - 1] = value;
+        capturedCount = Math.max(capturedCount, index);
     }
 
     @Override
     public Provider setArray(int index, Array x) {
-        return prepare(statement -> statement.setArray(index, x));
+        return bind(index, x, (statement, i) -> statement.setArray(i, x));
     }
 
     @Override
     public Provider setAsciiStream(int index, InputStream x) {
-        return prepare(statement -> statement.setAsciiStream(index, x));
+        return bind(index, x, (statement, i) -> statement.setAsciiStream(i, x));
     }
 
     @Override
     public Provider setAsciiStream(int index, InputStream x, int length) {
-        return prepare(statement -> statement.setAsciiStream(index, x, length));
+        return bind(index, x, (statement, i) -> statement.setAsciiStream(i, x, length));
     }
 
     @Override
     public Provider setAsciiStream(int index, InputStream x, long length) {
-        return prepare(statement -> statement.setAsciiStream(index, x, length));
+        return bind(index, x, (statement, i) -> statement.setAsciiStream(i, x, length));
     }
 
     @Override
     public Provider setBigDecimal(int index, BigDecimal x) {
-        return prepare(statement -> statement.setBigDecimal(index, x));
+        return bind(index, x, (statement, i) -> statement.setBigDecimal(i, x));
     }
 
     @Override
     public Provider setBinaryStream(int index, InputStream x) {
-        return prepare(statement -> statement.setBinaryStream(index, x));
+        return bind(index, x, (statement, i) -> statement.setBinaryStream(i, x));
     }
 
     @Override
     public Provider setBinaryStream(int index, InputStream x, int length) {
-        return prepare(statement -> statement.setBinaryStream(index, x, length));
+        return bind(index, x, (statement, i) -> statement.setBinaryStream(i, x, length));
     }
 
     @Override
     public Provider setBinaryStream(int index, InputStream x, long length) {
-        return prepare(statement -> statement.setBinaryStream(index, x, length));
+        return bind(index, x, (statement, i) -> statement.setBinaryStream(i, x, length));
     }
 
     @Override
     public Provider setBlob(int index, Blob x) {
-        return prepare(statement -> statement.setBlob(index, x));
+        return bind(index, x, (statement, i) -> statement.setBlob(i, x));
     }
 
     @Override
     public Provider setBlob(int index, InputStream inputStream) {
-        return prepare(statement -> statement.setBlob(index, inputStream));
+        return bind(index, inputStream, (statement, i) -> statement.setBlob(i, inputStream));
     }
 
     @Override
     public Provider setBlob(int index, InputStream inputStream, long length) {
-        return prepare(statement -> statement.setBlob(index, inputStream, length));
+        return bind(index, inputStream, (statement, i) -> statement.setBlob(i, inputStream, length));
     }
 
     @Override
     public Provider setBoolean(int index, boolean x) {
-        return prepare(statement -> statement.setBoolean(index, x));
+        return bind(index, x, (statement, i) -> statement.setBoolean(i, x));
     }
 
     @Override
     public Provider setByte(int index, byte x) {
-        return prepare(statement -> statement.setByte(index, x));
+        return bind(index, x, (statement, i) -> statement.setByte(i, x));
     }
 
     @Override
     public Provider setBytes(int index, byte[] x) {
-        return prepare(statement -> statement.setBytes(index, x));
+        return bind(index, x, (statement, i) -> statement.setBytes(i, x));
     }
 
     @Override
     public Provider setCharacterStream(int index, Reader reader) {
-        return prepare(statement -> statement.setCharacterStream(index, reader));
+        return bind(index, reader, (statement, i) -> statement.setCharacterStream(i, reader));
     }
 
     @Override
     public Provider setCharacterStream(int index, Reader reader, int length) {
-        return prepare(statement -> statement.setCharacterStream(index, reader, length));
+        return bind(index, reader, (statement, i) -> statement.setCharacterStream(i, reader, length));
     }
 
     @Override
     public Provider setCharacterStream(int index, Reader reader, long length) {
-        return prepare(statement -> statement.setCharacterStream(index, reader, length));
+        return bind(index, reader, (statement, i) -> statement.setCharacterStream(i, reader, length));
     }
 
     @Override
     public Provider setClob(int index, Clob x) {
-        return prepare(statement -> statement.setClob(index, x));
+        return bind(index, x, (statement, i) -> statement.setClob(i, x));
     }
 
     @Override
     public Provider setClob(int index, Reader reader) {
-        return prepare(statement -> statement.setClob(index, reader));
+        return bind(index, reader, (statement, i) -> statement.setClob(i, reader));
     }
 
     @Override
     public Provider setClob(int index, Reader reader, long length) {
-        return prepare(statement -> statement.setClob(index, reader, length));
+        return bind(index, reader, (statement, i) -> statement.setClob(i, reader, length));
     }
 
     @Override
     public Provider setDate(int index, Date x) {
-        return prepare(statement -> statement.setDate(index, x));
+        return bind(index, x, (statement, i) -> statement.setDate(i, x));
     }
 
     @Override
     public Provider setDate(int index, Date x, Calendar cal) {
-        return prepare(statement -> statement.setDate(index, x, cal));
+        return bind(index, x, (statement, i) -> statement.setDate(i, x, cal));
     }
 
     @Override
     public Provider setDouble(int index, double x) {
-        return prepare(statement -> statement.setDouble(index, x));
+        return bind(index, x, (statement, i) -> statement.setDouble(i, x));
     }
 
     @Override
     public Provider setFloat(int index, float x) {
-        return prepare(statement -> statement.setFloat(index, x));
+        return bind(index, x, (statement, i) -> statement.setFloat(i, x));
     }
 
     @Override
     public Provider setInt(int index, int x) {
-        return prepare(statement -> statement.setInt(index, x));
+        return bind(index, x, (statement, i) -> statement.setInt(i, x));
     }
 
     @Override
     public Provider setLong(int index, long x) {
-        return prepare(statement -> statement.setLong(index, x));
+        return bind(index, x, (statement, i) -> statement.setLong(i, x));
     }
 
     @Override
     public Provider setNCharacterStream(int index, Reader value) {
-        return prepare(statement -> statement.setNCharacterStream(index, value));
+        return bind(index, value, (statement, i) -> statement.setNCharacterStream(i, value));
     }
 
     @Override
     public Provider setNCharacterStream(int index, Reader value, long length) {
-        return prepare(statement -> statement.setNCharacterStream(index, value, length));
+        return bind(index, value, (statement, i) -> statement.setNCharacterStream(i, value, length));
     }
 
     @Override
     public Provider setNClob(int index, NClob value) {
-        return prepare(statement -> statement.setNClob(index, value));
+        return bind(index, value, (statement, i) -> statement.setNClob(i, value));
     }
 
     @Override
     public Provider setNClob(int index, Reader reader) {
-        return prepare(statement -> statement.setNClob(index, reader));
+        return bind(index, reader, (statement, i) -> statement.setNClob(i, reader));
     }
 
     @Override
     public Provider setNClob(int index, Reader reader, long length) {
-        return prepare(statement -> statement.setNClob(index, reader, length));
+        return bind(index, reader, (statement, i) -> statement.setNClob(i, reader, length));
     }
 
     @Override
     public Provider setNString(int index, String value) {
-        return prepare(statement -> statement.setNString(index, value));
+        return bind(index, value, (statement, i) -> statement.setNString(i, value));
     }
 
     @Override
     public Provider setNull(int index, int sqlType) {
-        return prepare(statement -> statement.setNull(index, sqlType));
+        return bind(index, null, (statement, i) -> statement.setNull(i, sqlType));
     }
 
     @Override
     public Provider setNull(int index, int sqlType, String typeName) {
-        return prepare(statement -> statement.setNull(index, sqlType, typeName));
+        return bind(index, null, (statement, i) -> statement.setNull(i, sqlType, typeName));
     }
 
     @Override
     public Provider setObject(int index, Object x) {
-        return prepare(statement -> statement.setObject(index, x));
+        return bind(index, x, (statement, i) -> statement.setObject(i, x));
     }
 
     @Override
     public Provider setObject(int index, Object x, int targetSqlType) {
-        return prepare(statement -> statement.setObject(index, x, targetSqlType));
+        return bind(index, x, (statement, i) -> statement.setObject(i, x, targetSqlType));
     }
 
     @Override
     public Provider setObject(int index, Object x, int targetSqlType, int scaleOrLength) {
-        return prepare(statement -> statement.setObject(index, x, targetSqlType, scaleOrLength));
+        return bind(index, x, (statement, i) -> statement.setObject(i, x, targetSqlType, scaleOrLength));
     }
 
     @Override
     public Provider setObject(int index, Object x, SQLType targetSqlType) {
-        return prepare(statement -> statement.setObject(index, x, targetSqlType));
+        return bind(index, x, (statement, i) -> statement.setObject(i, x, targetSqlType));
     }
 
     @Override
     public Provider setObject(int index, Object x, SQLType targetSqlType, int scaleOrLength) {
-        return prepare(statement -> statement.setObject(index, x, targetSqlType, scaleOrLength));
+        return bind(index, x, (statement, i) -> statement.setObject(i, x, targetSqlType, scaleOrLength));
     }
 
     @Override
     public Provider setRef(int index, Ref x) {
-        return prepare(statement -> statement.setRef(index, x));
+        return bind(index, x, (statement, i) -> statement.setRef(i, x));
     }
 
     @Override
     public Provider setRowId(int index, RowId x) {
-        return prepare(statement -> statement.setRowId(index, x));
+        return bind(index, x, (statement, i) -> statement.setRowId(i, x));
     }
 
     @Override
     public Provider setShort(int index, short x) {
-        return prepare(statement -> statement.setShort(index, x));
+        return bind(index, x, (statement, i) -> statement.setShort(i, x));
     }
 
     @Override
     public Provider setSQLXML(int index, SQLXML xmlObject) {
-        return prepare(statement -> statement.setSQLXML(index, xmlObject));
+        return bind(index, xmlObject, (statement, i) -> statement.setSQLXML(i, xmlObject));
     }
 
     @Override
     public Provider setString(int index, String x) {
-        return prepare(statement -> statement.setString(index, x));
+        return bind(index, x, (statement, i) -> statement.setString(i, x));
     }
 
     @Override
     public Provider setTime(int index, Time x) {
-        return prepare(statement -> statement.setTime(index, x));
+        return bind(index, x, (statement, i) -> statement.setTime(i, x));
     }
 
     @Override
     public Provider setTime(int index, Time x, Calendar cal) {
-        return prepare(statement -> statement.setTime(index, x, cal));
+        return bind(index, x, (statement, i) -> statement.setTime(i, x, cal));
     }
 
     @Override
     public Provider setTimestamp(int index, Timestamp x) {
-        return prepare(statement -> statement.setTimestamp(index, x));
+        return bind(index, x, (statement, i) -> statement.setTimestamp(i, x));
     }
 
     @Override
     public Provider setTimestamp(int index, Timestamp x, Calendar cal) {
-        return prepare(statement -> statement.setTimestamp(index, x, cal));
+        return bind(index, x, (statement, i) -> statement.setTimestamp(i, x, cal));
     }
 
     @Override
     public Provider setURL(int index, URL x) {
-        return prepare(statement -> statement.setURL(index, x));
+        return bind(index, x, (statement, i) -> statement.setURL(i, x));
     }
 }
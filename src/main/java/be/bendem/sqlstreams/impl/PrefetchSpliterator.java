@@ -0,0 +1,274 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.UncheckedSqlException;
+import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.Wrap;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A {@link Spliterator} reading and mapping the rows of a {@link ResultSet} in
+ * the background, ahead of its consumer.
+ * <p>
+ * A reader task submitted to an {@link Executor} moves the cursor, maps each row
+ * and puts the result in a bounded queue, waiting when the queue is full. The
+ * consumer takes mapped rows from the queue in the order of the result set.
+ * Exceptions thrown by the reader are rethrown to the consumer once the rows
+ * read before the failure have been consumed.
+ * <p>
+ * The consumer doesn't wait for a reader that won't put anything in the queue:
+ * waiting fails if the stream is closed, if the reader stopped without reaching
+ * the end of the rows or if the executor didn't start the reader in time.
+ * Closing doesn't wait forever either: a reader that doesn't stop in time after
+ * its statement was cancelled (stuck in the mapping or with a driver ignoring
+ * cancellation) makes closing fail, the result set being closed under it.
+ * <p>
+ * The reader must run on another thread than the one starting it, it would
+ * otherwise block once the queue is full with nobody to consume it. Executors
+ * running it on the calling thread (like a caller-runs policy) are treated as
+ * rejecting it.
+ */
+class PrefetchSpliterator<T> implements Spliterator<T> {
+
+    static final Executor DEFAULT_EXECUTOR = task -> {
+        Thread thread = new Thread(task, "sql-streams-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    };
+
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final long START_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long STOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final class Failure {
+        private final Throwable throwable;
+
+        private Failure(Throwable throwable) {
+            this.throwable = throwable;
+        }
+    }
+
+    static <T> PrefetchSpliterator<T> start(SqlFunction<ResultSet, T> mapping, ResultSet resultSet,
+                                            Instrumentation instrumentation, int capacity, Executor executor) {
+        PrefetchSpliterator<T> spliterator = new PrefetchSpliterator<>(mapping, resultSet, instrumentation, capacity);
+        // Rejections are thrown to the caller which owns the result set
+        spliterator.starter = Thread.currentThread();
+        try {
+            executor.execute(spliterator::read);
+        } finally {
+            spliterator.starter = null;
+        }
+        return spliterator;
+    }
+
+    Stream<T> stream() {
+        return StreamSupport
+            .stream(this, false)
+            .onClose(this::close)
+            .onClose(() -> Wrap.execute(resultSet::close));
+    }
+
+    private final SqlFunction<ResultSet, T> mapping;
+    private final ResultSet resultSet;
+    private final Instrumentation instrumentation;
+    private final BlockingQueue<Object> queue;
+    private final CountDownLatch done;
+    // Claimed by the reader when it starts, or by the consumer giving up on it
+    private final AtomicBoolean started;
+    // The thread submitting the reader, while it is being submitted
+    private volatile Thread starter;
+    private volatile boolean closed;
+    private boolean finished;
+
+    private PrefetchSpliterator(SqlFunction<ResultSet, T> mapping, ResultSet resultSet,
+                                Instrumentation instrumentation, int capacity) {
+        this.mapping = mapping;
+        this.resultSet = resultSet;
+        this.instrumentation = instrumentation;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.done = new CountDownLatch(1);
+        this.started = new AtomicBoolean();
+    }
+
+    private void read() {
+        if (Thread.currentThread() == starter) {
+            throw new RejectedExecutionException("The executor ran the reader on the thread starting it");
+        }
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (!closed && Instrumentation.next(instrumentation, resultSet)) {
+                T value = mapping.apply(resultSet);
+                put(value == null ? NULL : value);
+            }
+            put(END);
+        } catch (SQLException e) {
+            put(new Failure(new UncheckedSqlException(e)));
+        } catch (Throwable e) {
+            put(new Failure(e));
+        } finally {
+            done.countDown();
+        }
+    }
+
+    private void put(Object element) {
+        try {
+            while (!closed) {
+                if (queue.offer(element, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> consumer) {
+        if (finished) {
+            return false;
+        }
+
+        Object element;
+        try {
+            element = take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedSqlException("Interrupted while waiting for rows", new SQLException(e));
+        }
+
+        if (element == END) {
+            finished = true;
+            return false;
+        }
+        if (element instanceof Failure) {
+            finished = true;
+            Throwable throwable = ((Failure) element).throwable;
+            if (throwable instanceof Error) {
+                throw (Error) throwable;
+            }
+            throw (RuntimeException) throwable;
+        }
+
+        @SuppressWarnings("unchecked")
+        T value = element == NULL ? null : (T) element;
+        consumer.accept(value);
+        return true;
+    }
+
+    private Object take() throws InterruptedException {
+        long start = System.nanoTime();
+        while (true) {
+            Object element = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            if (element != null) {
+                return element;
+            }
+            if (closed) {
+                throw new IllegalStateException("The stream was closed while waiting for rows");
+            }
+            if (done.getCount() == 0) {
+                // The reader might have put its last element right before stopping
+                element = queue.poll();
+                if (element == null) {
+                    throw new IllegalStateException("The reader stopped before the end of the rows");
+                }
+                return element;
+            }
+            if (System.nanoTime() - start > START_TIMEOUT_NANOS && started.compareAndSet(false, true)) {
+                finished = true;
+                throw new IllegalStateException("The executor didn't start the reader within "
+                    + TimeUnit.NANOSECONDS.toSeconds(START_TIMEOUT_NANOS) + " seconds");
+            }
+        }
+    }
+
+    /**
+     * Stops the reader and waits for it to be done with the result set so that it
+     * can be closed safely.
+     *
+     * @throws IllegalStateException if the reader didn't stop in time after its
+     *                               statement was cancelled
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        if (started.compareAndSet(false, true)) {
+            // The reader never started and won't touch the result set
+            return;
+        }
+
+        boolean interrupted = false;
+        long cancelledAt = 0;
+        boolean cancelled = false;
+        try {
+            while (true) {
+                try {
+                    if (done.await(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (!cancelled) {
+                    // The reader is still waiting on the database, interrupt the fetch
+                    cancelled = true;
+                    cancelledAt = System.nanoTime();
+                    cancel();
+                } else if (System.nanoTime() - cancelledAt > STOP_TIMEOUT_NANOS) {
+                    throw new IllegalStateException("The reader didn't stop within "
+                        + TimeUnit.NANOSECONDS.toSeconds(STOP_TIMEOUT_NANOS) + " seconds after being cancelled");
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void cancel() {
+        try {
+            Statement statement = resultSet.getStatement();
+            if (statement != null) {
+                statement.cancel();
+            }
+        } catch (SQLException ignored) {
+            // Cancelling is best effort, the reader stops after the current row anyway
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED;
+    }
+}
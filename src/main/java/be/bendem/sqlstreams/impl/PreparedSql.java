@@ -0,0 +1,30 @@
+package be.bendem.sqlstreams.impl;
+
+import java.util.function.Function;
+
+/**
+ * The sql a statement was prepared from, used to prepare it again with a
+ * different shape.
+ */
+final class PreparedSql {
+
+    /**
+     * The sql with named parameters replaced by positional ones.
+     */
+    final String sql;
+    final NamedParameters namedParameters;
+    private final Function<String, StatementCache.Key> keyFactory;
+
+    PreparedSql(String sql, NamedParameters namedParameters, Function<String, StatementCache.Key> keyFactory) {
+        this.sql = sql;
+        this.namedParameters = namedParameters;
+        this.keyFactory = keyFactory;
+    }
+
+    /**
+     * Returns the key of a statement prepared the same way from another sql.
+     */
+    StatementCache.Key key(String sql) {
+        return keyFactory.apply(sql);
+    }
+}
@@ -0,0 +1,287 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.CacheStatistics;
+import be.bendem.sqlstreams.util.SqlSupplier;
+import be.bendem.sqlstreams.util.Wrap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the mapped results of queries by sql, parameters and mapping.
+ * <p>
+ * Entries expire a fixed time after being loaded and the least recently used
+ * entries are evicted once the total number of cached rows exceeds the maximum
+ * weight. Each entry depends on tables declared by the query, executing a
+ * statement modifying one of these tables removes the entry. The tables modified
+ * by a statement are parsed from its sql, statements that can't be parsed
+ * invalidate the whole cache.
+ * <p>
+ * Loads happen outside of the lock, a result loaded while one of its tables was
+ * invalidated is not stored since it might already be stale.
+ */
+final class QueryCache {
+
+    private static final int MAX_PARSED = 1 << 12;
+    private static final String[] ALL_TABLES = new String[0];
+    private static final String[] NO_TABLES = new String[0];
+    private static final Map<String, String[]> PARSED = new ConcurrentHashMap<>();
+
+    private static final String NAME = "(?:\"[^\"]+\"|`[^`]+`|\\[[^]]+]|[\\w$]+)";
+    private static final Pattern READ = Pattern.compile(
+        "(?:select|values|show|explain|describe|create)\\b.*",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern WRITE = Pattern.compile(
+        "(?:insert\\s+(?:or\\s+\\w+\\s+)?into|replace\\s+into|merge\\s+into|upsert\\s+into|update(?:\\s+or\\s+\\w+)?"
+            + "|delete\\s+from|delete|truncate(?:\\s+table)?|drop\\s+table(?:\\s+if\\s+exists)?|alter\\s+table)"
+            + "\\s+((?:" + NAME + "\\s*\\.\\s*)*" + NAME + ")\\b.*",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    static final class Key {
+        private final String sql;
+        private final Object[] parameters;
+        private final Object mapping;
+        private final int hash;
+
+        Key(String sql, Object[] parameters, Object mapping) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.mapping = mapping;
+            this.hash = 31 * (31 * sql.hashCode() + Arrays.deepHashCode(parameters)) + mapping.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return sql.equals(other.sql)
+                && mapping.equals(other.mapping)
+                && Arrays.deepEquals(parameters, other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final List<?> rows;
+        private final String[] tables;
+        private final long expiresAt;
+
+        private Entry(List<?> rows, String[] tables, long expiresAt) {
+            this.rows = rows;
+            this.tables = tables;
+            this.expiresAt = expiresAt;
+        }
+
+        private long weight() {
+            return Math.max(1, rows.size());
+        }
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Key>> keysByTable = new HashMap<>();
+    // Incremented on each invalidation so that loads racing with them are not stored
+    private final Map<String, Long> generations = new HashMap<>();
+    private long generation;
+    private long weight;
+    private volatile long maxWeight;
+    private volatile long ttlNanos;
+
+    boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    synchronized void configure(long maxWeight, long ttlNanos) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight must be positive, got " + maxWeight);
+        }
+        if (ttlNanos <= 0) {
+            throw new IllegalArgumentException("ttl must be positive, got " + ttlNanos);
+        }
+        this.maxWeight = maxWeight;
+        this.ttlNanos = ttlNanos;
+        evict();
+    }
+
+    /**
+     * Returns the cached rows of a query, loading and caching them if needed.
+     */
+    List<?> get(Key key, String[] tables, SqlSupplier<List<?>> loader) {
+        long stamp;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.rows;
+            }
+            if (entry != null) {
+                remove(key, entry);
+            }
+            stamp = stamp(tables);
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        List<?> rows = Collections.unmodifiableList(Wrap.get(loader));
+        long end = System.nanoTime();
+        loads.increment();
+        loadNanos.add(end - start);
+
+        synchronized (this) {
+            if (stamp == stamp(tables) && maxWeight > 0) {
+                Entry entry = new Entry(rows, tables, end + ttlNanos);
+                if (entry.weight() <= maxWeight) {
+                    Entry previous = entries.put(key, entry);
+                    if (previous != null) {
+                        weight -= previous.weight();
+                    } else {
+                        for (String table : tables) {
+                            keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+                        }
+                    }
+                    weight += entry.weight();
+                    evict();
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Removes the entries depending on the tables modified by a statement.
+     */
+    void modified(String sql) {
+        String[] tables = sql == null ? ALL_TABLES : PARSED.get(sql);
+        if (tables == null) {
+            tables = parse(sql);
+            if (PARSED.size() < MAX_PARSED) {
+                PARSED.put(sql, tables);
+            }
+        }
+        if (tables == ALL_TABLES) {
+            invalidateAll();
+        } else if (tables != NO_TABLES) {
+            invalidate(tables);
+        }
+    }
+
+    synchronized void invalidate(String... tables) {
+        for (String table : tables) {
+            String name = normalize(table);
+            generations.merge(name, 1L, Long::sum);
+            Set<Key> keys = keysByTable.remove(name);
+            if (keys != null) {
+                for (Key key : keys) {
+                    Entry entry = entries.get(key);
+                    if (entry != null) {
+                        remove(key, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        ++generation;
+        entries.clear();
+        keysByTable.clear();
+        weight = 0;
+    }
+
+    CacheStatistics statistics() {
+        return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum(), loads.sum(), loadNanos.sum());
+    }
+
+    /**
+     * Returns the normalized names of tables, ignoring case, quotes and schemas.
+     */
+    static String[] normalize(String[] tables) {
+        String[] names = new String[tables.length];
+        for (int i = 0; i < tables.length; ++i) {
+            names[i] = normalize(tables[i]);
+        }
+        return names;
+    }
+
+    private static String normalize(String table) {
+        String name = table.substring(table.lastIndexOf('.') + 1).trim();
+        if (name.length() > 1 && "\"`[".indexOf(name.charAt(0)) >= 0) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the tables modified by a statement, {@link #NO_TABLES} for reads
+     * and {@link #ALL_TABLES} if they can't be determined.
+     */
+    private static String[] parse(String sql) {
+        int start = 0;
+        while (start < sql.length()) {
+            if (Character.isWhitespace(sql.charAt(start))) {
+                ++start;
+            } else if (sql.startsWith("--", start) || sql.startsWith("/*", start)) {
+                start = NamedParameters.skip(sql, start);
+            } else {
+                break;
+            }
+        }
+
+        String statement = sql.substring(start);
+        if (READ.matcher(statement).matches()) {
+            return NO_TABLES;
+        }
+        Matcher matcher = WRITE.matcher(statement);
+        if (matcher.matches()) {
+            return new String[] { normalize(matcher.group(1)) };
+        }
+        return ALL_TABLES;
+    }
+
+    private long stamp(String[] tables) {
+        long stamp = generation;
+        for (String table : tables) {
+            stamp += generations.getOrDefault(table, 0L);
+        }
+        return stamp;
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        weight -= entry.weight();
+        for (String table : entry.tables) {
+            Set<Key> keys = keysByTable.get(table);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByTable.remove(table);
+            }
+        }
+    }
+
+    private void evict() {
+        while (weight > maxWeight && !entries.isEmpty()) {
+            Map.Entry<Key, Entry> eldest = entries.entrySet().iterator().next();
+            remove(eldest.getKey(), eldest.getValue());
+            evictions.increment();
+        }
+    }
+}
@@ -2,34 +2,222 @@ package be.bendem.sqlstreams.impl;
 
 import be.bendem.sqlstreams.Query;
 import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.SqlToDoubleFunction;
+import be.bendem.sqlstreams.util.SqlToIntFunction;
+import be.bendem.sqlstreams.util.SqlToLongFunction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 class QueryImpl extends ParameterProviderImpl<Query, PreparedStatement> implements Query {
 
-    private final Connection connection;
     private final boolean closeConnection;
+    private ResultSet resultSet;
+    private int previousFetchSize = -1;
+    private boolean streaming;
+    private boolean restoreAutoCommit;
+    private int parallelBatchSize = ResultSetSpliterator.DEFAULT_BATCH_SIZE;
+    private int prefetchCapacity;
+    private Executor prefetchExecutor;
+    private PrefetchSpliterator<?> prefetcher;
 
-    QueryImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection) {
-        super(statement, sql.bindings);
-        this.connection = connection;
+    QueryImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection,
+              Instrumentation instrumentation, PreparedSql preparedSql) {
+        super(sql, connection, statement, instrumentation, preparedSql);
         this.closeConnection = closeConnection;
     }
 
+    @Override
+    public Query fetchSize(int rows) {
+        Wrap.execute(() -> {
+            if (previousFetchSize < 0) {
+                previousFetchSize = statement.getFetchSize();
+            }
+            statement.setFetchSize(rows);
+        });
+        return this;
+    }
+
+    @Override
+    protected void replaceStatement(PreparedStatement replacement) throws SQLException {
+        // Restore the fetch size of the statement going back to the cache
+        if (previousFetchSize >= 0) {
+            int rows = statement.getFetchSize();
+            statement.setFetchSize(previousFetchSize);
+            previousFetchSize = replacement.getFetchSize();
+            replacement.setFetchSize(rows);
+        }
+        super.replaceStatement(replacement);
+    }
+
+    boolean hasFetchSize() {
+        return previousFetchSize >= 0;
+    }
+
+    @Override
+    public Query streaming(int fetchSize) {
+        streaming = true;
+        return fetchSize(fetchSize);
+    }
+
+    @Override
+    public Query parallelBatchSize(int rows) {
+        if (rows <= 0) {
+            throw new IllegalArgumentException("rows must be positive, got " + rows);
+        }
+        parallelBatchSize = rows;
+        return this;
+    }
+
+    @Override
+    public Query prefetch(int capacity) {
+        return prefetch(capacity, PrefetchSpliterator.DEFAULT_EXECUTOR);
+    }
+
+    @Override
+    public Query prefetch(int capacity, Executor executor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        prefetchCapacity = capacity;
+        prefetchExecutor = Objects.requireNonNull(executor, "executor");
+        return this;
+    }
+
+    @Override
+    protected boolean modifiesTables() {
+        return false;
+    }
+
+    @Override
+    protected boolean recordsParameters() {
+        // Pages are prepared from the sql of this query and bind its parameters again
+        return preparedSql != null;
+    }
+
+    ResultSet executeQuery() {
+        if (streaming && Wrap.get(connection::getAutoCommit)) {
+            Wrap.execute(() -> connection.setAutoCommit(false));
+            restoreAutoCommit = true;
+        }
+        if (instrumentation != null) {
+            instrumentation.fetchSize(Wrap.get(statement::getFetchSize));
+        }
+        resultSet = executeStatement(statement::executeQuery);
+        return resultSet;
+    }
+
     @Override
     public <R> Stream<R> map(SqlFunction<ResultSet, R> mapping) {
-        return ResultSetSpliterator.stream(mapping, Wrap.get(statement::executeQuery))
+        ResultSet rs = executeQuery();
+        if (prefetchCapacity > 0) {
+            PrefetchSpliterator<R> spliterator;
+            try {
+                spliterator = PrefetchSpliterator.start(mapping, rs, instrumentation, prefetchCapacity, prefetchExecutor);
+            } catch (RejectedExecutionException e) {
+                close();
+                throw e;
+            }
+            prefetcher = spliterator;
+            return spliterator.stream().onClose(this::close);
+        }
+        return ResultSetSpliterator.stream(mapping, rs, instrumentation, parallelBatchSize)
+            .onClose(this::close);
+    }
+
+    @Override
+    public IntStream mapToInt(SqlToIntFunction<ResultSet> mapping) {
+        return ResultSetSpliterator.intStream(mapping, executeQuery(), instrumentation)
+            .onClose(this::close);
+    }
+
+    @Override
+    public LongStream mapToLong(SqlToLongFunction<ResultSet> mapping) {
+        return ResultSetSpliterator.longStream(mapping, executeQuery(), instrumentation)
+            .onClose(this::close);
+    }
+
+    @Override
+    public DoubleStream mapToDouble(SqlToDoubleFunction<ResultSet> mapping) {
+        return ResultSetSpliterator.doubleStream(mapping, executeQuery(), instrumentation)
             .onClose(this::close);
     }
 
+    @Override
+    public <R> Stream<R> column(int columnIndex, Class<R> clazz) {
+        return map(bindings.column(columnIndex, clazz));
+    }
+
+    @Override
+    public <R> Stream<R> mapTo(Class<R> clazz) {
+        return map(new SqlFunction<ResultSet, R>() {
+            private SqlFunction<ResultSet, R> mapper;
+
+            @Override
+            public R apply(ResultSet resultSet) throws SQLException {
+                if (mapper == null) {
+                    mapper = bindings.mapper(clazz, resultSet.getMetaData());
+                }
+                return mapper.apply(resultSet);
+            }
+        });
+    }
+
+    @Override
+    public <R> Stream<R> paginate(String keyColumn, int pageSize, SqlFunction<ResultSet, R> mapping) {
+        if (preparedSql == null) {
+            throw new IllegalStateException("Only queries prepared from sql can be paginated");
+        }
+        Objects.requireNonNull(keyColumn, "keyColumn");
+        Objects.requireNonNull(mapping, "mapping");
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive, got " + pageSize);
+        }
+
+        String expandedSql = expandedSql();
+        close();
+        return PageSpliterator.stream(
+            sql,
+            expandedSql,
+            this::bindTo,
+            keyColumn,
+            pageSize,
+            mapping,
+            prefetchCapacity > 0 ? prefetchExecutor : null);
+    }
+
     @Override
     public void close() {
-        super.close();
-        if (closeConnection) {
+        // The reader must be done with the result set before closing it
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
+        // Cached statements are not closed, make sure their result set is
+        if (resultSet != null) {
+            Wrap.execute(resultSet::close);
+            resultSet = null;
+        }
+        if (previousFetchSize >= 0) {
+            Wrap.execute(() -> statement.setFetchSize(previousFetchSize));
+            previousFetchSize = -1;
+        }
+        if (restoreAutoCommit) {
+            // Ends the read only transaction opened for the cursor
+            Wrap.execute(() -> connection.setAutoCommit(true));
+            restoreAutoCommit = false;
+        }
+        if (release() && closeConnection) {
             Wrap.execute(connection::close);
         }
     }
@@ -0,0 +1,262 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.UncheckedSqlException;
+import be.bendem.sqlstreams.util.SqlFunction;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Publisher} reading the rows of a query as they are requested.
+ * <p>
+ * Requests and cancellation only record the new state and schedule a drain on
+ * the executor if none is running, the drain reads and publishes rows until the
+ * outstanding demand is fulfilled. Drains are serialized by a work counter so
+ * that the result set is only ever used by one thread at a time and a subscriber
+ * requesting more rows from {@code onNext} doesn't recurse.
+ */
+public final class QueryPublisher<T> implements Publisher<T> {
+
+    /**
+     * Upper bound of the fetch size derived from the demand, subscribers
+     * requesting {@code Long.MAX_VALUE} rows don't need them all at once.
+     */
+    static final int MAX_FETCH_SIZE = 1 << 12;
+
+    private final QueryImpl query;
+    private final SqlFunction<ResultSet, T> mapping;
+    private final Executor executor;
+    private final AtomicBoolean subscribed;
+
+    /**
+     * Returns a publisher of the rows of a query created by this library.
+     *
+     * @param query the query to publish the rows of
+     * @param mapping the mapping function
+     * @param executor the executor reading the rows
+     * @param <T> the type of the published elements
+     * @return a publisher of each element returned by the query
+     * @throws IllegalArgumentException if {@code query} was not created by
+     *                                  this library
+     */
+    public static <T> Publisher<T> of(Query query, SqlFunction<ResultSet, T> mapping, Executor executor) {
+        if (!(query instanceof QueryImpl)) {
+            throw new IllegalArgumentException("Only queries created by Sql can be published");
+        }
+        return new QueryPublisher<>(
+            (QueryImpl) query, Objects.requireNonNull(mapping, "mapping"), Objects.requireNonNull(executor, "executor"));
+    }
+
+    private QueryPublisher(QueryImpl query, SqlFunction<ResultSet, T> mapping, Executor executor) {
+        this.query = query;
+        this.mapping = mapping;
+        this.executor = executor;
+        this.subscribed = new AtomicBoolean();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A query can only be published to a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new QuerySubscription(subscriber));
+    }
+
+    private final class QuerySubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong requested;
+        private final AtomicInteger work;
+        private final boolean manageFetchSize;
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException invalidRequest;
+        // Only accessed by the drain
+        private ResultSet resultSet;
+        private int fetchSize;
+        private boolean done;
+
+        private QuerySubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.requested = new AtomicLong();
+            this.work = new AtomicInteger();
+            this.manageFetchSize = !query.hasFetchSize();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested rows must be positive, got " + n);
+            } else {
+                long current;
+                do {
+                    current = requested.get();
+                    if (current == Long.MAX_VALUE) {
+                        break;
+                    }
+                } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (work.getAndIncrement() != 0) {
+                // A drain is running and will see the new state
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                // Nothing will ever drain, give up on the query
+                done = true;
+                Throwable failure = close(e);
+                if (!cancelled) {
+                    subscriber.onError(failure);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    drain();
+                }
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            while (true) {
+                if (cancelled) {
+                    done = true;
+                    close(null);
+                    return;
+                }
+                if (invalidRequest != null) {
+                    fail(invalidRequest);
+                    return;
+                }
+
+                long demand = requested.get();
+                if (demand == 0) {
+                    return;
+                }
+
+                long emitted = 0;
+                try {
+                    adjustFetchSize(demand);
+                    if (resultSet == null) {
+                        resultSet = query.executeQuery();
+                    }
+                    while (emitted < demand) {
+                        if (cancelled) {
+                            break;
+                        }
+                        if (!Instrumentation.next(query.instrumentation, resultSet)) {
+                            complete();
+                            return;
+                        }
+                        T value = mapping.apply(resultSet);
+                        if (value == null) {
+                            throw new NullPointerException("The mapping function returned null");
+                        }
+                        subscriber.onNext(value);
+                        ++emitted;
+                    }
+                } catch (SQLException e) {
+                    fail(new UncheckedSqlException(e));
+                    return;
+                } catch (Throwable e) {
+                    fail(e);
+                    return;
+                }
+
+                if (demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+            }
+        }
+
+        private void adjustFetchSize(long demand) {
+            if (!manageFetchSize) {
+                return;
+            }
+            int rows = (int) Math.min(demand, MAX_FETCH_SIZE);
+            if (rows == fetchSize) {
+                return;
+            }
+            fetchSize = rows;
+            if (query.instrumentation != null) {
+                query.instrumentation.fetchSize(rows);
+            }
+            if (resultSet == null) {
+                query.fetchSize(rows);
+                return;
+            }
+            try {
+                resultSet.setFetchSize(rows);
+            } catch (SQLException ignored) {
+                // The fetch size is a hint, drivers are free to reject it
+            }
+        }
+
+        private void complete() {
+            done = true;
+            Throwable failure = close(null);
+            if (failure == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(failure);
+            }
+        }
+
+        private void fail(Throwable throwable) {
+            done = true;
+            subscriber.onError(close(throwable));
+        }
+
+        /**
+         * Closes the query, returning {@code failure} with the exception thrown
+         * while closing if any.
+         */
+        private Throwable close(Throwable failure) {
+            resultSet = null;
+            try {
+                query.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    return e;
+                }
+                failure.addSuppressed(e);
+            }
+            return failure;
+        }
+    }
+}
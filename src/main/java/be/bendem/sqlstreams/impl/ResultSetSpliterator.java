@@ -1,40 +1,249 @@
 package be.bendem.sqlstreams.impl;
 
 import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.SqlToDoubleFunction;
+import be.bendem.sqlstreams.util.SqlToIntFunction;
+import be.bendem.sqlstreams.util.SqlToLongFunction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-public class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+/**
+ * A {@link Spliterator} mapping each row of a {@link ResultSet}.
+ * <p>
+ * The cursor is only ever moved by the thread holding this spliterator. When
+ * split (i.e. when the stream is parallel), the values of the next rows are
+ * copied (see {@link BufferedResultSet}) into an array handed off to the
+ * returned spliterator, which maps them on whichever thread processes it, so
+ * that the mapping runs concurrently with the cursor and the other splits.
+ * Each split copies {@code batchSize} more rows than the previous one so that
+ * the overhead of the hand off fades as the result set grows.
+ * <p>
+ * The returned spliterators are prefixes of the remaining rows as required by
+ * {@link Spliterator#ORDERED}: encounter order is the order of the result set
+ * and is preserved by ordered terminal operations ({@code forEachOrdered},
+ * {@code collect}, ...) whether the stream is parallel or not.
+ */
+public class ResultSetSpliterator<T> implements Spliterator<T> {
+
+    static final int DEFAULT_BATCH_SIZE = 1 << 10;
+    static final int MAX_BATCH_SIZE = 1 << 25;
 
     static <T> Stream<T> stream(SqlFunction<ResultSet, T> mapping, ResultSet resultSet) {
+        return stream(mapping, resultSet, null, DEFAULT_BATCH_SIZE);
+    }
+
+    static <T> Stream<T> stream(SqlFunction<ResultSet, T> mapping, ResultSet resultSet,
+                                Instrumentation instrumentation, int batchSize) {
+        return StreamSupport
+            .stream(new ResultSetSpliterator<>(mapping, resultSet, instrumentation, batchSize), false)
+            .onClose(() -> Wrap.execute(resultSet::close));
+    }
+
+    /**
+     * Returns a stream mapping rows that were already copied from a result set.
+     */
+    static <T> Stream<T> buffered(SqlFunction<ResultSet, T> mapping, BufferedResultSet.Columns columns,
+                                  List<Object[]> rows) {
+        return StreamSupport.stream(
+            new BufferedSpliterator<>(mapping, columns, rows.toArray(new Object[0][]), 0, rows.size()),
+            false);
+    }
+
+    static IntStream intStream(SqlToIntFunction<ResultSet> mapping, ResultSet resultSet,
+                               Instrumentation instrumentation) {
+        return StreamSupport
+            .intStream(new Spliterators.AbstractIntSpliterator(Long.MAX_VALUE, Spliterator.ORDERED) {
+                @Override
+                public boolean tryAdvance(IntConsumer consumer) {
+                    return Wrap.get(() -> {
+                        boolean hasNext;
+                        if (hasNext = Instrumentation.next(instrumentation, resultSet)) {
+                            consumer.accept(mapping.applyAsInt(resultSet));
+                        }
+                        return hasNext;
+                    });
+                }
+            }, false)
+            .onClose(() -> Wrap.execute(resultSet::close));
+    }
+
+    static LongStream longStream(SqlToLongFunction<ResultSet> mapping, ResultSet resultSet,
+                                 Instrumentation instrumentation) {
+        return StreamSupport
+            .longStream(new Spliterators.AbstractLongSpliterator(Long.MAX_VALUE, Spliterator.ORDERED) {
+                @Override
+                public boolean tryAdvance(LongConsumer consumer) {
+                    return Wrap.get(() -> {
+                        boolean hasNext;
+                        if (hasNext = Instrumentation.next(instrumentation, resultSet)) {
+                            consumer.accept(mapping.applyAsLong(resultSet));
+                        }
+                        return hasNext;
+                    });
+                }
+            }, false)
+            .onClose(() -> Wrap.execute(resultSet::close));
+    }
+
+    static DoubleStream doubleStream(SqlToDoubleFunction<ResultSet> mapping, ResultSet resultSet,
+                                     Instrumentation instrumentation) {
         return StreamSupport
-            .stream(new ResultSetSpliterator<>(mapping, resultSet), false)
+            .doubleStream(new Spliterators.AbstractDoubleSpliterator(Long.MAX_VALUE, Spliterator.ORDERED) {
+                @Override
+                public boolean tryAdvance(DoubleConsumer consumer) {
+                    return Wrap.get(() -> {
+                        boolean hasNext;
+                        if (hasNext = Instrumentation.next(instrumentation, resultSet)) {
+                            consumer.accept(mapping.applyAsDouble(resultSet));
+                        }
+                        return hasNext;
+                    });
+                }
+            }, false)
             .onClose(() -> Wrap.execute(resultSet::close));
     }
 
     private final SqlFunction<ResultSet, T> mapping;
     private final ResultSet resultSet;
+    private final Instrumentation instrumentation;
+    private final int batchSize;
+    private BufferedResultSet.Columns columns;
+    private int batch;
+    private boolean exhausted;
 
-    private ResultSetSpliterator(SqlFunction<ResultSet, T> mapping, ResultSet resultSet) {
-        super(Long.MAX_VALUE, Spliterator.ORDERED);
+    private ResultSetSpliterator(SqlFunction<ResultSet, T> mapping, ResultSet resultSet,
+                                 Instrumentation instrumentation, int batchSize) {
         this.resultSet = resultSet;
+        this.instrumentation = instrumentation;
         this.mapping = mapping;
+        this.batchSize = batchSize;
     }
 
     @Override
     public boolean tryAdvance(Consumer<? super T> consumer) {
+        if (exhausted) {
+            return false;
+        }
+        return Wrap.get(() -> {
+            if (!Instrumentation.next(instrumentation, resultSet)) {
+                exhausted = true;
+                return false;
+            }
+            consumer.accept(mapping.apply(resultSet));
+            return true;
+        });
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (exhausted) {
+            return null;
+        }
         return Wrap.get(() -> {
-            boolean hasNext;
-            if (hasNext = resultSet.next()) {
-                consumer.accept(mapping.apply(resultSet));
+            int size = Math.min(batch + batchSize, MAX_BATCH_SIZE);
+            Object[][] rows = new Object[Math.min(size, batchSize)][];
+            int count = 0;
+            while (count < size && Instrumentation.next(instrumentation, resultSet)) {
+                if (columns == null) {
+                    columns = new BufferedResultSet.Columns(resultSet);
+                }
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, Math.min(size, rows.length * 2));
+                }
+                rows[count++] = columns.copy(resultSet);
+            }
+
+            if (count < size) {
+                exhausted = true;
             }
-            return hasNext;
+            if (count == 0) {
+                return null;
+            }
+            batch = count;
+            return new BufferedSpliterator<>(mapping, columns, rows, 0, count);
         });
     }
+
+    @Override
+    public long estimateSize() {
+        return exhausted ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED;
+    }
+
+    /**
+     * Maps rows copied from a result set.
+     */
+    private static final class BufferedSpliterator<T> implements Spliterator<T> {
+
+        private final SqlFunction<ResultSet, T> mapping;
+        private final BufferedResultSet.Columns columns;
+        private final Object[][] rows;
+        private final int fence;
+        private int index;
+        private BufferedResultSet view;
+
+        private BufferedSpliterator(SqlFunction<ResultSet, T> mapping, BufferedResultSet.Columns columns,
+                                    Object[][] rows, int origin, int fence) {
+            this.mapping = mapping;
+            this.columns = columns;
+            this.rows = rows;
+            this.index = origin;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> consumer) {
+            if (index >= fence) {
+                return false;
+            }
+            if (view == null) {
+                view = new BufferedResultSet(columns);
+            }
+
+            view.position(rows[index]);
+            // Each row is mapped exactly once, let it be collected
+            rows[index++] = null;
+            consumer.accept(Wrap.get(() -> mapping.apply(view)));
+            return true;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int origin = index;
+            int middle = (origin + fence) >>> 1;
+            if (origin >= middle) {
+                return null;
+            }
+            index = middle;
+            return new BufferedSpliterator<>(mapping, columns, rows, origin, middle);
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
+    }
 }
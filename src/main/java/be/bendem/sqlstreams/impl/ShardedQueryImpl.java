@@ -0,0 +1,244 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.Query;
+import be.bendem.sqlstreams.ShardedQuery;
+import be.bendem.sqlstreams.Sql;
+import be.bendem.sqlstreams.util.SqlFunction;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+class ShardedQueryImpl implements ShardedQuery {
+
+    private final List<Sql> shards;
+    private final String sql;
+    private Object[] parameters;
+    private int capacity;
+    private Executor executor;
+
+    ShardedQueryImpl(List<Sql> shards, String sql) {
+        this.shards = shards;
+        this.sql = sql;
+        this.parameters = new Object[0];
+        this.capacity = ResultSetSpliterator.DEFAULT_BATCH_SIZE;
+        this.executor = AsyncSqlImpl.defaultExecutor();
+    }
+
+    @Override
+    public ShardedQuery with(Object... parameters) {
+        this.parameters = parameters.clone();
+        return this;
+    }
+
+    @Override
+    public ShardedQuery prefetch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        return this;
+    }
+
+    @Override
+    public ShardedQuery executor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "executor");
+        return this;
+    }
+
+    @Override
+    public <R> Stream<R> map(SqlFunction<ResultSet, R> mapping) {
+        Objects.requireNonNull(mapping, "mapping");
+        return merge(query -> query.map(mapping));
+    }
+
+    @Override
+    public <R> Stream<R> map(SqlFunction<ResultSet, R> mapping, Comparator<? super R> comparator) {
+        Objects.requireNonNull(mapping, "mapping");
+        return merge(query -> query.map(mapping), comparator);
+    }
+
+    @Override
+    public <R> Stream<R> mapTo(Class<R> clazz) {
+        Objects.requireNonNull(clazz, "clazz");
+        return merge(query -> query.mapTo(clazz));
+    }
+
+    @Override
+    public <R> Stream<R> mapTo(Class<R> clazz, Comparator<? super R> comparator) {
+        Objects.requireNonNull(clazz, "clazz");
+        return merge(query -> query.mapTo(clazz), comparator);
+    }
+
+    /**
+     * Prepares the query on a shard, closing it if parameters can't be bound.
+     */
+    private Query prepare(Sql shard) {
+        Query query = shard.query(sql);
+        try {
+            return query.with(parameters);
+        } catch (RuntimeException | Error e) {
+            query.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Executes the query on all shards concurrently, merging rows as they are
+     * read.
+     */
+    private <R> Stream<R> merge(Function<Query, Stream<R>> mapping) {
+        return MergeSpliterator.start(shards, this::prepare, mapping, capacity, executor).stream();
+    }
+
+    /**
+     * Executes the query on all shards concurrently, each shard being read by a
+     * prefetching reader, and merges the sorted streams of the shards.
+     */
+    private <R> Stream<R> merge(Function<Query, Stream<R>> mapping, Comparator<? super R> comparator) {
+        Objects.requireNonNull(comparator, "comparator");
+        int capacity = this.capacity;
+        Executor executor = this.executor;
+
+        List<CompletableFuture<Stream<R>>> futures = new ArrayList<>(shards.size());
+        RejectedExecutionException rejected = null;
+        for (Sql shard : shards) {
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    Query query = prepare(shard);
+                    try {
+                        return mapping.apply(query.prefetch(capacity, executor));
+                    } catch (RuntimeException | Error e) {
+                        query.close();
+                        throw e;
+                    }
+                }, executor));
+            } catch (RejectedExecutionException e) {
+                // The shards already submitted are closed below
+                rejected = e;
+                break;
+            }
+        }
+
+        List<Stream<R>> streams = new ArrayList<>(futures.size());
+        Throwable failure = rejected;
+        for (CompletableFuture<Stream<R>> future : futures) {
+            try {
+                streams.add(future.join());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            try {
+                close(streams);
+            } catch (RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw failure instanceof RuntimeException ? (RuntimeException) failure : new CompletionException(failure);
+        }
+
+        return StreamSupport
+            .stream(new OrderedMerge<>(streams, comparator), false)
+            .onClose(() -> close(streams));
+    }
+
+    private static void close(List<? extends Stream<?>> streams) {
+        RuntimeException failure = null;
+        for (Stream<?> stream : streams) {
+            try {
+                stream.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A k-way merge of sorted streams, keeping the head of each stream in a
+     * priority queue.
+     */
+    private static final class OrderedMerge<R> extends Spliterators.AbstractSpliterator<R> {
+
+        private static final class Head<R> {
+            private final int shard;
+            private R value;
+
+            private Head(int shard, R value) {
+                this.shard = shard;
+                this.value = value;
+            }
+        }
+
+        private final List<Iterator<R>> iterators;
+        private final PriorityQueue<Head<R>> heads;
+        private boolean started;
+
+        private OrderedMerge(List<Stream<R>> streams, Comparator<? super R> comparator) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.iterators = new ArrayList<>(streams.size());
+            for (Stream<R> stream : streams) {
+                iterators.add(stream.iterator());
+            }
+            Comparator<Head<R>> byValue = (a, b) -> comparator.compare(a.value, b.value);
+            this.heads = new PriorityQueue<>(
+                Math.max(1, streams.size()),
+                byValue.thenComparingInt(head -> head.shard));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super R> consumer) {
+            if (!started) {
+                started = true;
+                for (int i = 0; i < iterators.size(); ++i) {
+                    Iterator<R> iterator = iterators.get(i);
+                    if (iterator.hasNext()) {
+                        heads.add(new Head<>(i, iterator.next()));
+                    }
+                }
+            }
+
+            Head<R> head = heads.poll();
+            if (head == null) {
+                return false;
+            }
+            R value = head.value;
+            Iterator<R> iterator = iterators.get(head.shard);
+            if (iterator.hasNext()) {
+                head.value = iterator.next();
+                heads.add(head);
+            }
+            consumer.accept(value);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.ShardedQuery;
+import be.bendem.sqlstreams.ShardedSql;
+import be.bendem.sqlstreams.Sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.ToIntFunction;
+
+public class ShardedSqlImpl<K> implements ShardedSql<K> {
+
+    private final List<Sql> shards;
+    private final ToIntFunction<? super K> shardFunction;
+
+    public ShardedSqlImpl(List<? extends Sql> shards, ToIntFunction<? super K> shardFunction) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.shardFunction = Objects.requireNonNull(shardFunction, "shardFunction");
+    }
+
+    @Override
+    public List<Sql> shards() {
+        return shards;
+    }
+
+    @Override
+    public Sql shard(K key) {
+        return shards.get(Math.floorMod(shardFunction.applyAsInt(key), shards.size()));
+    }
+
+    @Override
+    public ShardedQuery queryAll(String sql) {
+        return new ShardedQueryImpl(shards, sql);
+    }
+
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (Sql shard : shards) {
+            try {
+                shard.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
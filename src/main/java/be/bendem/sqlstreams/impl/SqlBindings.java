@@ -1,21 +1,44 @@
 package be.bendem.sqlstreams.impl;
 
+import be.bendem.sqlstreams.CollectionBinding;
 import be.bendem.sqlstreams.PreparedStatementBinderByIndex;
 import be.bendem.sqlstreams.ResultSetRetrieverByIndex;
 import be.bendem.sqlstreams.ResultSetRetrieverByName;
+import be.bendem.sqlstreams.util.SqlFunction;
 
+import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Provides type based bindings for {@link ResultSet} and {@link PreparedStatement}
  * parameters.
  * <p>
+ * Bindings are resolved from the class of the value (or the requested class) and then
+ * cached using a {@link ClassValue} so that resolving a binding is a single lookup.
+ * Binders also apply to subclasses and implementations of the class they were
+ * registered for, the closest superclass wins over interfaces.
+ * <p>
+ * Registering a new mapping replaces the whole registry so that lookups never need to
+ * lock, which makes registration safe while other threads are binding.
+ * <p>
  * Note that this class is not part of the public API of this library and as such, is
  * not required to stay compatible between versions.
  * @see ParameterProviderImpl#with(Object...)
@@ -23,7 +46,7 @@ import java.util.Map;
  */
 public final class SqlBindings {
 
-    public class Bindings<T> {
+    public static class Bindings<T> {
         private final ResultSetRetrieverByIndex<T> retrieverByIndex;
         private final ResultSetRetrieverByName<T> retrieverByName;
 
@@ -32,14 +55,81 @@ public final class SqlBindings {
             this.retrieverByIndex = retrieverByIndex;
             this.retrieverByName = retrieverByName;
         }
+
+        T retrieve(ResultSet resultSet, int index) throws SQLException {
+            return retrieverByIndex.retrieve(resultSet, index);
+        }
+    }
+
+    private static final class MapperKey {
+        private final Class<?> clazz;
+        private final List<String> labels;
+        private final int hash;
+
+        private MapperKey(Class<?> clazz, List<String> labels) {
+            this.clazz = clazz;
+            this.labels = labels;
+            this.hash = 31 * clazz.hashCode() + labels.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MapperKey)) return false;
+            MapperKey other = (MapperKey) o;
+            return clazz == other.clazz && labels.equals(other.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the registered mappings along with the cached resolutions.
+     */
+    private static final class Registry {
+        private final Map<Class<?>, PreparedStatementBinderByIndex<?>> binders;
+        private final Map<Class<?>, Bindings<?>> retrievers;
+        private final ClassValue<PreparedStatementBinderByIndex<?>> resolvedBinders;
+        private final ClassValue<Bindings<?>> resolvedRetrievers;
+        private final Map<MapperKey, ClassMapper<?>> mappers;
+
+        private Registry(Map<Class<?>, PreparedStatementBinderByIndex<?>> binders,
+                         Map<Class<?>, Bindings<?>> retrievers) {
+            this.binders = binders;
+            this.retrievers = retrievers;
+            this.resolvedBinders = new ClassValue<PreparedStatementBinderByIndex<?>>() {
+                @Override
+                protected PreparedStatementBinderByIndex<?> computeValue(Class<?> type) {
+                    return resolve(binders, type);
+                }
+            };
+            this.resolvedRetrievers = new ClassValue<Bindings<?>>() {
+                @Override
+                protected Bindings<?> computeValue(Class<?> type) {
+                    Bindings<?> bindings = retrievers.get(type);
+                    if (bindings == null && type.isEnum()) {
+                        bindings = enumOrdinalBindings(type);
+                    }
+                    return bindings;
+                }
+            };
+            this.mappers = new ConcurrentHashMap<>();
+        }
     }
 
-    private final Map<Class<?>, PreparedStatementBinderByIndex<?>> binders;
-    private final Map<Class<?>, Bindings<?>> retrievers;
+    private volatile Registry registry;
+    volatile CollectionBinding collectionBinding = CollectionBinding.EXPAND;
+    volatile boolean namedParameters;
 
     SqlBindings() {
-        this.binders = new HashMap<>();
-        this.retrievers = new HashMap<>();
+        this.registry = new Registry(Collections.emptyMap(), Collections.emptyMap());
+
+        @SuppressWarnings("unchecked")
+        Class<Enum<?>> enumClass = (Class<Enum<?>>) (Class<?>) Enum.class;
+        addMapping(enumClass, null, null, (statement, index, value) -> statement.setInt(index, value.ordinal()));
 
         addMapping(Date.class, ResultSet::getDate, ResultSet::getDate, PreparedStatement::setDate);
         addMapping(Time.class, ResultSet::getTime, ResultSet::getTime, PreparedStatement::setTime);
@@ -65,12 +155,109 @@ public final class SqlBindings {
         addMapping(byte[].class, ResultSet::getBytes, ResultSet::getBytes, PreparedStatement::setBytes);
     }
 
-    <T> void addMapping(Class<T> clazz,
-                        ResultSetRetrieverByIndex<T> fromBindingWithIndex,
-                        ResultSetRetrieverByName<T> fromBindingWithName,
-                        PreparedStatementBinderByIndex<T> preparedStatementBinderByIndex) {
+    synchronized <T> void addMapping(Class<T> clazz,
+                                     ResultSetRetrieverByIndex<T> fromBindingWithIndex,
+                                     ResultSetRetrieverByName<T> fromBindingWithName,
+                                     PreparedStatementBinderByIndex<T> preparedStatementBinderByIndex) {
+        Map<Class<?>, PreparedStatementBinderByIndex<?>> binders = new HashMap<>(registry.binders);
+        Map<Class<?>, Bindings<?>> retrievers = new HashMap<>(registry.retrievers);
+
         binders.put(clazz, preparedStatementBinderByIndex);
-        retrievers.put(clazz, new Bindings<>(fromBindingWithIndex, fromBindingWithName));
+        if (fromBindingWithIndex != null && fromBindingWithName != null) {
+            retrievers.put(clazz, new Bindings<>(fromBindingWithIndex, fromBindingWithName));
+        }
+
+        registry = new Registry(binders, retrievers);
+    }
+
+    /**
+     * Registers an enum to be stored using a code computed from each of its constants.
+     * <p>
+     * The code of each constant is computed once and is bound and retrieved using the
+     * mappings registered for {@code codeClass}. Retrieving a constant from its code is
+     * a single map lookup.
+     */
+    <E extends Enum<E>, C> void addEnumMapping(Class<E> clazz,
+                                               Class<C> codeClass,
+                                               Function<? super E, ? extends C> encoder) {
+        @SuppressWarnings("unchecked")
+        PreparedStatementBinderByIndex<C> codeBinder =
+            (PreparedStatementBinderByIndex<C>) registry.resolvedBinders.get(codeClass);
+        @SuppressWarnings("unchecked")
+        Bindings<C> codeRetrievers = (Bindings<C>) registry.resolvedRetrievers.get(codeClass);
+        if (codeBinder == null || codeRetrievers == null) {
+            throw new IllegalArgumentException("No binding for " + codeClass);
+        }
+
+        E[] constants = clazz.getEnumConstants();
+        List<C> codes = new ArrayList<>(Collections.nCopies(constants.length, null));
+        Map<C, E> decoder = new HashMap<>();
+        for (E constant : constants) {
+            C code = Objects.requireNonNull(encoder.apply(constant), "code of " + constant);
+            if (decoder.put(code, constant) != null) {
+                throw new IllegalArgumentException("Duplicate code " + code + " for " + clazz);
+            }
+            codes.set(constant.ordinal(), code);
+        }
+
+        ResultSetRetrieverByIndex<C> codeByIndex = codeRetrievers.retrieverByIndex;
+        ResultSetRetrieverByName<C> codeByName = codeRetrievers.retrieverByName;
+        addMapping(
+            clazz,
+            (rs, index) -> decode(rs, clazz, decoder, codeByIndex.retrieve(rs, index)),
+            (rs, name) -> decode(rs, clazz, decoder, codeByName.retrieve(rs, name)),
+            (statement, index, value) -> codeBinder.bind(statement, index, codes.get(value.ordinal())));
+    }
+
+    private static <E extends Enum<E>, C> E decode(ResultSet rs, Class<E> clazz, Map<C, E> decoder, C code)
+            throws SQLException {
+        E constant = decoder.get(code);
+        if (constant == null && !rs.wasNull()) {
+            throw new IllegalArgumentException("No constant of " + clazz + " for code " + code);
+        }
+        return constant;
+    }
+
+    // An enum class can't be captured as a Class<E extends Enum<E>> from a Class<?>
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Bindings<?> enumOrdinalBindings(Class<?> enumClass) {
+        return ordinalBindings((Class) enumClass.asSubclass(Enum.class));
+    }
+
+    private static <E extends Enum<E>> Bindings<E> ordinalBindings(Class<E> clazz) {
+        E[] constants = clazz.getEnumConstants();
+        return new Bindings<>(
+            (rs, index) -> constants[rs.getInt(index)],
+            (rs, name) -> constants[rs.getInt(name)]);
+    }
+
+    /**
+     * Finds the value registered for the closest type in the hierarchy of {@code type},
+     * looking at superclasses first and then at interfaces, breadth first.
+     */
+    private static <V> V resolve(Map<Class<?>, V> map, Class<?> type) {
+        Deque<Class<?>> interfaces = new ArrayDeque<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            V value = map.get(current);
+            if (value != null) {
+                return value;
+            }
+            interfaces.addAll(Arrays.asList(current.getInterfaces()));
+        }
+
+        Set<Class<?>> seen = new HashSet<>();
+        while (!interfaces.isEmpty()) {
+            Class<?> current = interfaces.poll();
+            if (!seen.add(current)) {
+                continue;
+            }
+            V value = map.get(current);
+            if (value != null) {
+                return value;
+            }
+            interfaces.addAll(Arrays.asList(current.getInterfaces()));
+        }
+        return null;
     }
 
     public <Statement extends PreparedStatement> Statement bind(Statement stmt, Object[] params, int offset) throws SQLException {
@@ -82,59 +269,153 @@ public final class SqlBindings {
 
     @SuppressWarnings("unchecked")
     public <T> void bind(PreparedStatement stmt, int index, T value) throws SQLException {
-        PreparedStatementBinderByIndex<T> toSqlBinding;
-
-        if (value.getClass().isEnum()) {
-            toSqlBinding = (s, i, v) -> s.setInt(i, ((Enum<?>) v).ordinal());
-        } else {
-            toSqlBinding = (PreparedStatementBinderByIndex<T>) this.binders.get(value.getClass());
-            if (toSqlBinding == null) {
-                throw new IllegalArgumentException("No binding for " + value.getClass());
-            }
+        PreparedStatementBinderByIndex<T> toSqlBinding =
+            (PreparedStatementBinderByIndex<T>) registry.resolvedBinders.get(value.getClass());
+        if (toSqlBinding == null) {
+            throw new IllegalArgumentException("No binding for " + value.getClass());
         }
 
         toSqlBinding.bind(stmt, index, value);
     }
 
     public <T> T retrieve(ResultSet resultSet, int index, Class<T> clazz) throws SQLException {
-        ResultSetRetrieverByIndex<T> fromSqlBinding;
-
-        if (clazz.isEnum()) {
-            fromSqlBinding = (rs, i) -> clazz.getEnumConstants()[rs.getInt(i)];
-        } else {
-            @SuppressWarnings("unchecked")
-            Bindings<T> bindings = (Bindings<T>) this.retrievers.get(clazz);
-            if (bindings == null) {
-                throw new IllegalArgumentException("No binding for " + clazz);
-            }
+        T retrieved = retrievers(clazz).retrieverByIndex.retrieve(resultSet, index);
+        return resultSet.wasNull() ? null : retrieved;
+    }
+
+    public <T> T retrieve(ResultSet resultSet, String name, Class<T> clazz) throws SQLException {
+        T retrieved = retrievers(clazz).retrieverByName.retrieve(resultSet, name);
+        return resultSet.wasNull() ? null : retrieved;
+    }
 
-            fromSqlBinding = bindings.retrieverByIndex;
+    /**
+     * Returns a function retrieving the value of a column, resolving the retriever
+     * of {@code clazz} once.
+     */
+    <T> SqlFunction<ResultSet, T> column(int index, Class<T> clazz) {
+        ResultSetRetrieverByIndex<T> retriever = retrievers(clazz).retrieverByIndex;
+        return resultSet -> {
+            T retrieved = retriever.retrieve(resultSet, index);
+            return resultSet.wasNull() ? null : retrieved;
+        };
+    }
+
+    private <T> Bindings<T> retrievers(Class<T> clazz) {
+        @SuppressWarnings("unchecked")
+        Bindings<T> bindings = (Bindings<T>) registry.resolvedRetrievers.get(clazz);
+        if (bindings == null) {
+            throw new IllegalArgumentException("No binding for " + clazz);
         }
+        return bindings;
+    }
 
-        T retrieved = fromSqlBinding.retrieve(resultSet, index);
-        return resultSet.wasNull() ? null : retrieved;
+    /**
+     * Returns a mapper creating instances of {@code clazz} from rows with the
+     * provided columns.
+     * <p>
+     * Mappers are compiled once per class and column labels and cached until
+     * a new mapping is registered.
+     *
+     * @see ClassMapper
+     */
+    <T> SqlFunction<ResultSet, T> mapper(Class<T> clazz, ResultSetMetaData metaData) throws SQLException {
+        String[] labels = new String[metaData.getColumnCount()];
+        for (int i = 0; i < labels.length; ++i) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+        }
+
+        Registry registry = this.registry;
+        @SuppressWarnings("unchecked")
+        ClassMapper<T> mapper = (ClassMapper<T>) registry.mappers.computeIfAbsent(
+            new MapperKey(clazz, Arrays.asList(labels)),
+            key -> ClassMapper.compile(clazz, key.labels, registry.resolvedRetrievers::get));
+        return mapper;
     }
 
-    public <T> T retrieve(ResultSet resultSet, String name, Class<T> clazz) throws SQLException {
-        ResultSetRetrieverByName<T> fromSqlBinding;
-
-        if (clazz.isEnum()) {
-            fromSqlBinding = (rs, i) -> clazz.getEnumConstants()[rs.getInt(i)];
-        } else {
-            @SuppressWarnings("unchecked")
-            Bindings<T> bindings = (Bindings<T>) this.retrievers.get(clazz);
-            if (bindings == null) {
-                throw new IllegalArgumentException("No binding for " + clazz);
-            }
+    /**
+     * Returns whether {@code value} is a collection or an array without a
+     * binding of its own.
+     */
+    boolean isCollection(Object value) {
+        return (value instanceof Collection || value.getClass().isArray())
+            && registry.resolvedBinders.get(value.getClass()) == null;
+    }
 
-            fromSqlBinding = bindings.retrieverByName;
+    /**
+     * Returns the elements of a collection or an array, boxing primitives.
+     */
+    static Object[] elements(Object collection) {
+        if (collection instanceof Collection) {
+            return ((Collection<?>) collection).toArray();
+        }
+        if (collection instanceof Object[]) {
+            return (Object[]) collection;
         }
+        Object[] elements = new Object[java.lang.reflect.Array.getLength(collection)];
+        for (int i = 0; i < elements.length; ++i) {
+            elements[i] = java.lang.reflect.Array.get(collection, i);
+        }
+        return elements;
+    }
 
-        T retrieved = fromSqlBinding.retrieve(resultSet, name);
-        return resultSet.wasNull() ? null : retrieved;
+    /**
+     * Creates a sql array holding the elements of a collection or an array.
+     */
+    static Array createArray(Connection connection, Object collection, Object[] elements) throws SQLException {
+        Class<?> type = collection.getClass().getComponentType();
+        if (type == null || type == Object.class) {
+            type = null;
+            for (Object element : elements) {
+                if (element != null) {
+                    type = element.getClass();
+                    break;
+                }
+            }
+        }
+        return connection.createArrayOf(arrayType(type).getName(), elements);
+    }
+
+    private static JDBCType arrayType(Class<?> type) {
+        if (type == null || type == String.class || type == char.class || type == Character.class) {
+            return JDBCType.VARCHAR;
+        }
+        if (type == Integer.class || type == int.class) {
+            return JDBCType.INTEGER;
+        }
+        if (type == Long.class || type == long.class) {
+            return JDBCType.BIGINT;
+        }
+        if (type == Short.class || type == short.class) {
+            return JDBCType.SMALLINT;
+        }
+        if (type == Byte.class || type == byte.class) {
+            return JDBCType.TINYINT;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return JDBCType.BOOLEAN;
+        }
+        if (type == Double.class || type == double.class) {
+            return JDBCType.DOUBLE;
+        }
+        if (type == Float.class || type == float.class) {
+            return JDBCType.REAL;
+        }
+        if (BigDecimal.class.isAssignableFrom(type)) {
+            return JDBCType.DECIMAL;
+        }
+        if (type == Date.class) {
+            return JDBCType.DATE;
+        }
+        if (type == Time.class) {
+            return JDBCType.TIME;
+        }
+        if (type == Timestamp.class) {
+            return JDBCType.TIMESTAMP;
+        }
+        throw new IllegalArgumentException("No sql array type for " + type);
     }
 
     public <T> boolean hasBinder(Class<T> clazz) {
-        return binders.containsKey(clazz);
+        return registry.resolvedBinders.get(clazz) != null;
     }
 }
@@ -1,12 +1,16 @@
 package be.bendem.sqlstreams.impl;
 
 import be.bendem.sqlstreams.*;
-import be.bendem.sqlstreams.util.SqlBiFunction;
+import be.bendem.sqlstreams.util.ReplicaRoutingDataSource;
 import be.bendem.sqlstreams.util.SqlFunction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.*;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import javax.sql.DataSource;
 
@@ -14,19 +18,51 @@ public class SqlImpl implements Sql {
 
     private final DataSource dataSource;
     final SqlBindings bindings;
+    final StatementCaches statementCaches;
+    final QueryCache queryCache;
+    private final AtomicReference<SqlListener> listener;
+    private final AtomicLong statementIds;
 
-    SqlImpl(SqlBindings bindings) {
+    SqlImpl(SqlImpl parent) {
         this.dataSource = null;
-        this.bindings = bindings;
+        this.bindings = parent.bindings;
+        this.statementCaches = parent.statementCaches;
+        this.queryCache = parent.queryCache;
+        // Listeners added to a transaction only apply to it
+        this.listener = new AtomicReference<>(parent.listener.get());
+        this.statementIds = parent.statementIds;
     }
 
     public SqlImpl(DataSource dataSource) {
         this.dataSource = Objects.requireNonNull(dataSource);
         this.bindings = new SqlBindings();
+        this.statementCaches = new StatementCaches();
+        this.queryCache = new QueryCache();
+        this.listener = new AtomicReference<>();
+        this.statementIds = new AtomicLong();
     }
 
     protected Connection getConnection() {
-        return Wrap.get(dataSource::getConnection);
+        return getConnection(false);
+    }
+
+    /**
+     * Returns a connection, to a read replica if {@code read} is true and the
+     * datasource is a {@link ReplicaRoutingDataSource}.
+     */
+    protected Connection getConnection(boolean read) {
+        SqlFunction<DataSource, Connection> supplier = read && dataSource instanceof ReplicaRoutingDataSource
+            ? ds -> ((ReplicaRoutingDataSource) ds).getReadConnection()
+            : DataSource::getConnection;
+        SqlListener listener = this.listener.get();
+        if (listener == null) {
+            return Wrap.get(() -> supplier.apply(dataSource));
+        }
+
+        long start = System.nanoTime();
+        Connection connection = Wrap.get(() -> supplier.apply(dataSource));
+        listener.onConnectionAcquired(System.nanoTime() - start);
+        return connection;
     }
 
     protected boolean closeConnectionAfterAction() {
@@ -40,6 +76,83 @@ public class SqlImpl implements Sql {
         return this;
     }
 
+    @Override
+    public <E extends Enum<E>, C> SqlImpl registerEnumCodes(Class<E> clazz,
+                                                           Class<C> codeClass,
+                                                           Function<? super E, ? extends C> encoder) {
+        bindings.addEnumMapping(clazz, codeClass, encoder);
+        return this;
+    }
+
+    @Override
+    public SqlImpl bindCollections(CollectionBinding binding) {
+        bindings.collectionBinding = Objects.requireNonNull(binding, "binding");
+        return this;
+    }
+
+    @Override
+    public SqlImpl enableNamedParameters() {
+        bindings.namedParameters = true;
+        return this;
+    }
+
+    @Override
+    public SqlImpl enableStatementCache(int maxStatementsPerConnection) {
+        statementCaches.setMaxSize(maxStatementsPerConnection);
+        return this;
+    }
+
+    @Override
+    public CacheStatistics getStatementCacheStatistics() {
+        return statementCaches.statistics();
+    }
+
+    @Override
+    public SqlImpl enableQueryCache(long maxRows, long ttl, TimeUnit unit) {
+        queryCache.configure(maxRows, unit.toNanos(ttl));
+        return this;
+    }
+
+    @Override
+    public CacheStatistics getQueryCacheStatistics() {
+        return queryCache.statistics();
+    }
+
+    @Override
+    public SqlImpl invalidateQueryCache(String... tables) {
+        if (tables.length == 0) {
+            queryCache.invalidateAll();
+        } else {
+            queryCache.invalidate(tables);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the query cache to read cached queries from or null if they
+     * should not be read from the cache.
+     */
+    QueryCache queryCache() {
+        return queryCache.isEnabled() ? queryCache : null;
+    }
+
+    /**
+     * Invalidates the cached queries depending on the tables modified by a
+     * statement, all of them if {@code sql} is null.
+     */
+    void modified(String sql) {
+        if (queryCache.isEnabled()) {
+            queryCache.modified(sql);
+        }
+    }
+
+    @Override
+    public SqlImpl addListener(SqlListener listener) {
+        Objects.requireNonNull(listener, "listener");
+        this.listener.updateAndGet(current -> SqlListeners.add(current, listener));
+        return this;
+    }
+
     @Override
     public Transaction transaction() {
         return new TransactionImpl(this);
@@ -50,33 +163,89 @@ public class SqlImpl implements Sql {
         return new TransactionImpl(this, isolationLevel.isolationLevel);
     }
 
+    @Override
+    public Transaction readOnlyTransaction() {
+        return new TransactionImpl(this, true);
+    }
+
     @Override
     public Query query(SqlFunction<Connection, PreparedStatement> preparer) {
-        return prepare(QueryImpl::new, preparer);
+        return prepare(StatementInfo.Kind.QUERY, QueryImpl::new, preparer);
+    }
+
+    @Override
+    public Query query(String sql) {
+        return prepare(StatementInfo.Kind.QUERY, sql, StatementCache.Key::prepared, QueryImpl::new);
+    }
+
+    @Override
+    public CachedQuery cachedQuery(String sql, String... tables) {
+        return new CachedQueryImpl(this, sql, tables);
     }
 
     @Override
     public Update update(SqlFunction<Connection, PreparedStatement> preparer) {
-        return prepare(UpdateImpl::new, preparer);
+        // Manually prepared statements may return generated keys
+        return prepare(
+            StatementInfo.Kind.UPDATE,
+            (impl, connection, statement, closeConnection, instrumentation, preparedSql) ->
+                new UpdateImpl(impl, connection, statement, closeConnection, instrumentation, preparedSql, true),
+            preparer);
+    }
+
+    @Override
+    public Update update(String sql) {
+        return prepare(
+            StatementInfo.Kind.UPDATE,
+            sql,
+            StatementCache.Key::prepared,
+            (impl, connection, statement, closeConnection, instrumentation, preparedSql) ->
+                new UpdateImpl(impl, connection, statement, closeConnection, instrumentation, preparedSql, false));
     }
 
     @Override
     public BatchUpdate batchUpdate(String sql) {
-        return prepare(sql, BatchUpdateImpl::new, Connection::prepareStatement);
+        return prepare(
+            StatementInfo.Kind.BATCH_UPDATE,
+            sql,
+            StatementCache.Key::prepared,
+            (impl, connection, statement, closeConnection, instrumentation, preparedSql) ->
+                new BatchUpdateImpl(impl, connection, statement, closeConnection, instrumentation, preparedSql, false));
+    }
+
+    @Override
+    public Update insert(String sql) {
+        return prepare(
+            StatementInfo.Kind.UPDATE,
+            sql,
+            StatementCache.Key::returningGeneratedKeys,
+            (impl, connection, statement, closeConnection, instrumentation, preparedSql) ->
+                new UpdateImpl(impl, connection, statement, closeConnection, instrumentation, preparedSql, true));
+    }
+
+    @Override
+    public BatchUpdate batchInsert(String sql) {
+        return prepare(
+            StatementInfo.Kind.BATCH_UPDATE,
+            sql,
+            StatementCache.Key::returningGeneratedKeys,
+            (impl, connection, statement, closeConnection, instrumentation, preparedSql) ->
+                new BatchUpdateImpl(impl, connection, statement, closeConnection, instrumentation, preparedSql, true));
     }
 
     @Override
     public Execute<PreparedStatement> execute(String sql) {
-        return prepare(sql, ExecuteImpl::new, Connection::prepareStatement);
+        return prepare(StatementInfo.Kind.EXECUTE, sql, StatementCache.Key::prepared, ExecuteImpl::new);
     }
 
     @Override
     public Execute<CallableStatement> call(String sql) {
-        return prepare(sql, ExecuteImpl::new, Connection::prepareCall);
+        return prepare(StatementInfo.Kind.CALL, sql, StatementCache.Key::callable, ExecuteImpl<CallableStatement>::new);
     }
 
     @Override
     public void close() {
+        statementCaches.close();
         if (dataSource instanceof AutoCloseable) {
             try {
                 ((AutoCloseable) dataSource).close();
@@ -90,27 +259,101 @@ public class SqlImpl implements Sql {
 
     @FunctionalInterface
     private interface Creator<T, S extends Statement> {
-        T create(SqlImpl impl, Connection connection, S statement, boolean closeConnectionAfterAction);
+        T create(SqlImpl impl, Connection connection, S statement, boolean closeConnectionAfterAction,
+                 Instrumentation instrumentation, PreparedSql preparedSql);
     }
 
-    private <T, S extends Statement> T prepare(Creator<T, S> creator,
+    private <T, S extends Statement> T prepare(StatementInfo.Kind kind,
+                                               Creator<T, S> creator,
                                                SqlFunction<Connection, S> statementCreator) {
-        Connection connection = getConnection();
+        Connection connection = getConnection(kind == StatementInfo.Kind.QUERY);
+        Instrumentation instrumentation = instrument(kind, null);
         return creator.create(
             this,
             connection,
-            Wrap.get(() -> statementCreator.apply(connection)),
-            closeConnectionAfterAction());
+            create(connection, statementCreator, instrumentation),
+            closeConnectionAfterAction(),
+            instrumentation,
+            null);
     }
 
-    private <T, S extends Statement> T prepare(String sql,
-                                               Creator<T, S> creator,
-                                               SqlBiFunction<Connection, String, S> statementCreator) {
-        Connection connection = getConnection();
+    /**
+     * Prepares a statement from sql possibly containing named parameters, the
+     * statement is prepared (and cached) from the positional form of the sql
+     * when named parameters are enabled.
+     */
+    @SuppressWarnings("unchecked")
+    private <T, S extends PreparedStatement> T prepare(StatementInfo.Kind kind,
+                                                       String sql,
+                                                       Function<String, StatementCache.Key> keyFactory,
+                                                       Creator<T, S> creator) {
+        NamedParameters namedParameters = bindings.namedParameters ? NamedParameters.parse(sql) : null;
+        PreparedSql preparedSql = new PreparedSql(
+            namedParameters == null ? sql : namedParameters.sql(),
+            namedParameters,
+            keyFactory);
+        StatementCache.Key key = preparedSql.key(preparedSql.sql);
+        Connection connection = getConnection(kind == StatementInfo.Kind.QUERY);
+        Instrumentation instrumentation = instrument(kind, sql);
         return creator.create(
             this,
             connection,
-            Wrap.get(() -> statementCreator.apply(connection, sql)),
-            closeConnectionAfterAction());
+            (S) create(connection, conn -> statementCaches.acquire(conn, key), instrumentation),
+            closeConnectionAfterAction(),
+            instrumentation,
+            preparedSql);
+    }
+
+    private Instrumentation instrument(StatementInfo.Kind kind, String sql) {
+        SqlListener listener = this.listener.get();
+        if (listener == null) {
+            return null;
+        }
+        return new Instrumentation(
+            listener,
+            new StatementInfo(statementIds.incrementAndGet(), kind, sql),
+            System.nanoTime());
+    }
+
+    /**
+     * Creates a statement, releasing the connection if that fails.
+     */
+    private <S extends Statement> S create(Connection connection, SqlFunction<Connection, S> statementCreator,
+                                           Instrumentation instrumentation) {
+        try {
+            S statement = statementCreator.apply(connection);
+            if (instrumentation != null) {
+                instrumentation.prepared();
+            }
+            return statement;
+        } catch (SQLException | RuntimeException e) {
+            if (instrumentation != null) {
+                instrumentation.error(e);
+                instrumentation.closed();
+            }
+            if (closeConnectionAfterAction()) {
+                try {
+                    connection.close();
+                } catch (SQLException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            if (e instanceof SQLException) {
+                throw new UncheckedSqlException((SQLException) e);
+            }
+            throw (RuntimeException) e;
+        }
+    }
+
+    PreparedStatement acquireStatement(Connection connection, String sql) {
+        return acquireStatement(connection, StatementCache.Key.prepared(sql));
+    }
+
+    PreparedStatement acquireStatement(Connection connection, StatementCache.Key key) {
+        return Wrap.get(() -> statementCaches.acquire(connection, key));
+    }
+
+    void releaseStatement(Connection connection, PreparedStatement statement) {
+        Wrap.execute(() -> statementCaches.release(connection, statement));
     }
 }
@@ -0,0 +1,100 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.SqlListener;
+import be.bendem.sqlstreams.StatementInfo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forwards events to multiple listeners, in registration order.
+ */
+final class SqlListeners implements SqlListener {
+
+    static SqlListener add(SqlListener current, SqlListener added) {
+        if (current == null) {
+            return added;
+        }
+        SqlListener[] listeners;
+        if (current instanceof SqlListeners) {
+            SqlListener[] existing = ((SqlListeners) current).listeners;
+            listeners = Arrays.copyOf(existing, existing.length + 1);
+        } else {
+            listeners = new SqlListener[] { current, null };
+        }
+        listeners[listeners.length - 1] = added;
+        return new SqlListeners(listeners);
+    }
+
+    private final SqlListener[] listeners;
+
+    private SqlListeners(SqlListener[] listeners) {
+        this.listeners = listeners;
+    }
+
+    @Override
+    public boolean captureParameters(StatementInfo statement) {
+        boolean capture = false;
+        for (SqlListener listener : listeners) {
+            // Every listener is asked, they might sample statements
+            capture |= listener.captureParameters(statement);
+        }
+        return capture;
+    }
+
+    @Override
+    public void onParametersBound(StatementInfo statement, List<Object> parameters) {
+        for (SqlListener listener : listeners) {
+            listener.onParametersBound(statement, parameters);
+        }
+    }
+
+    @Override
+    public void onConnectionAcquired(long nanos) {
+        for (SqlListener listener : listeners) {
+            listener.onConnectionAcquired(nanos);
+        }
+    }
+
+    @Override
+    public void onPrepared(StatementInfo statement, long nanos) {
+        for (SqlListener listener : listeners) {
+            listener.onPrepared(statement, nanos);
+        }
+    }
+
+    @Override
+    public void onExecuted(StatementInfo statement, long nanos) {
+        for (SqlListener listener : listeners) {
+            listener.onExecuted(statement, nanos);
+        }
+    }
+
+    @Override
+    public void onRowsAffected(StatementInfo statement, long rows) {
+        for (SqlListener listener : listeners) {
+            listener.onRowsAffected(statement, rows);
+        }
+    }
+
+    @Override
+    public void onFetched(StatementInfo statement, int rows, long nanos) {
+        for (SqlListener listener : listeners) {
+            listener.onFetched(statement, rows, nanos);
+        }
+    }
+
+    @Override
+    public void onClosed(StatementInfo statement, long rows, long nanos) {
+        for (SqlListener listener : listeners) {
+            listener.onClosed(statement, rows, nanos);
+        }
+    }
+
+    @Override
+    public void onError(StatementInfo statement, Throwable error) {
+        for (SqlListener listener : listeners) {
+            listener.onError(statement, error);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.util.SqlToIntFunction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A LRU cache of the prepared statements of a single connection.
+ * <p>
+ * Statements are checked out of the cache when acquired and put back when
+ * released so that the same statement is never handed out twice at the same
+ * time. The settings of a statement are recorded when it is prepared and
+ * restored when it is released so that they don't carry over to the next user
+ * of the same sql.
+ */
+final class StatementCache {
+
+    /**
+     * Identifies a statement by everything that was used to prepare it.
+     */
+    static final class Key {
+
+        private final String sql;
+        private final boolean callable;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final int autoGeneratedKeys;
+        private final int hash;
+
+        private Key(String sql, boolean callable, int resultSetType, int resultSetConcurrency, int autoGeneratedKeys) {
+            this.sql = Objects.requireNonNull(sql);
+            this.callable = callable;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.hash = Objects.hash(sql, callable, resultSetType, resultSetConcurrency, autoGeneratedKeys);
+        }
+
+        static Key prepared(String sql) {
+            return new Key(sql, false, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, Statement.NO_GENERATED_KEYS);
+        }
+
+        static Key returningGeneratedKeys(String sql) {
+            return new Key(sql, false, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, Statement.RETURN_GENERATED_KEYS);
+        }
+
+        static Key callable(String sql) {
+            return new Key(sql, true, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, Statement.NO_GENERATED_KEYS);
+        }
+
+        String sql() {
+            return sql;
+        }
+
+        PreparedStatement prepare(Connection connection) throws SQLException {
+            boolean defaultCursor = resultSetType == ResultSet.TYPE_FORWARD_ONLY
+                && resultSetConcurrency == ResultSet.CONCUR_READ_ONLY;
+
+            if (callable) {
+                return defaultCursor
+                    ? connection.prepareCall(sql)
+                    : connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+            }
+            if (autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS) {
+                return connection.prepareStatement(sql, autoGeneratedKeys);
+            }
+            return defaultCursor
+                ? connection.prepareStatement(sql)
+                : connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return callable == key.callable
+                && resultSetType == key.resultSetType
+                && resultSetConcurrency == key.resultSetConcurrency
+                && autoGeneratedKeys == key.autoGeneratedKeys
+                && sql.equals(key.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A statement along with the settings it was prepared with.
+     * <p>
+     * Settings the driver can't read back (some only support them once a
+     * result set is open) are left alone. Escape processing can't be read back
+     * at all, it is enabled by default and enabled again on release if the
+     * driver supports it.
+     */
+    private static final class Entry {
+
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+
+        private final Key key;
+        private final PreparedStatement statement;
+        private final int maxRows;
+        private final int queryTimeout;
+        private final int fetchDirection;
+        private final int fetchSize;
+        private final int maxFieldSize;
+        private final int poolable;
+        private final boolean escapeProcessing;
+
+        private Entry(Key key, PreparedStatement statement) {
+            this.key = key;
+            this.statement = statement;
+            this.maxRows = read(PreparedStatement::getMaxRows);
+            this.queryTimeout = read(PreparedStatement::getQueryTimeout);
+            this.fetchDirection = read(PreparedStatement::getFetchDirection);
+            this.fetchSize = read(PreparedStatement::getFetchSize);
+            this.maxFieldSize = read(PreparedStatement::getMaxFieldSize);
+            this.poolable = read(s -> s.isPoolable() ? 1 : 0);
+            this.escapeProcessing = read(s -> {
+                s.setEscapeProcessing(true);
+                return 1;
+            }) != UNKNOWN;
+        }
+
+        private int read(SqlToIntFunction<PreparedStatement> getter) {
+            try {
+                return getter.applyAsInt(statement);
+            } catch (SQLException e) {
+                return UNKNOWN;
+            }
+        }
+
+        private void reset() throws SQLException {
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+            if (maxRows != UNKNOWN && statement.getMaxRows() != maxRows) {
+                statement.setMaxRows(maxRows);
+            }
+            if (queryTimeout != UNKNOWN && statement.getQueryTimeout() != queryTimeout) {
+                statement.setQueryTimeout(queryTimeout);
+            }
+            if (fetchDirection != UNKNOWN && statement.getFetchDirection() != fetchDirection) {
+                statement.setFetchDirection(fetchDirection);
+            }
+            if (fetchSize != UNKNOWN && statement.getFetchSize() != fetchSize) {
+                statement.setFetchSize(fetchSize);
+            }
+            if (maxFieldSize != UNKNOWN && statement.getMaxFieldSize() != maxFieldSize) {
+                statement.setMaxFieldSize(maxFieldSize);
+            }
+            if (poolable != UNKNOWN && statement.isPoolable() != (poolable == 1)) {
+                statement.setPoolable(poolable == 1);
+            }
+            if (escapeProcessing) {
+                statement.setEscapeProcessing(true);
+            }
+        }
+    }
+
+    private final StatementCaches owner;
+    private final LinkedHashMap<Key, Entry> idle;
+    private final Map<PreparedStatement, Entry> leased;
+
+    StatementCache(StatementCaches owner) {
+        this.owner = owner;
+        this.leased = new IdentityHashMap<>();
+        this.idle = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= owner.maxSize()) {
+                    return false;
+                }
+                owner.evictions.increment();
+                closeQuietly(eldest.getValue().statement);
+                return true;
+            }
+        };
+    }
+
+    synchronized PreparedStatement acquire(Connection connection, Key key) throws SQLException {
+        Entry entry = idle.remove(key);
+        if (entry != null && !entry.statement.isClosed()) {
+            owner.hits.increment();
+        } else {
+            owner.misses.increment();
+            entry = new Entry(key, key.prepare(connection));
+        }
+        leased.put(entry.statement, entry);
+        return entry.statement;
+    }
+
+    /**
+     * Puts a statement acquired from this cache back into it.
+     *
+     * @param statement the statement to release
+     * @return {@code false} if the statement was not acquired from this cache
+     */
+    synchronized boolean release(PreparedStatement statement) {
+        Entry entry = leased.remove(statement);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (statement.isClosed()) {
+                return true;
+            }
+            entry.reset();
+        } catch (SQLException e) {
+            closeQuietly(statement);
+            return true;
+        }
+
+        Entry previous = idle.put(entry.key, entry);
+        if (previous != null) {
+            closeQuietly(previous.statement);
+        }
+        return true;
+    }
+
+    synchronized void close() {
+        Iterator<Entry> iterator = idle.values().iterator();
+        while (iterator.hasNext()) {
+            closeQuietly(iterator.next().statement);
+            iterator.remove();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // The statement is being thrown away
+        }
+    }
+}
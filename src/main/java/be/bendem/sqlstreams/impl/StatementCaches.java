@@ -0,0 +1,123 @@
+package be.bendem.sqlstreams.impl;
+
+import be.bendem.sqlstreams.CacheStatistics;
+import be.bendem.sqlstreams.util.BorrowedConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the {@link StatementCache} of each connection used by a {@link SqlImpl}
+ * and its transactions.
+ * <p>
+ * Caches are attached to the underlying connection of the {@link
+ * BorrowedConnection borrowed connections} handed out by the datasources
+ * provided by this library, so that looking them up doesn't involve any shared
+ * lock. Caches of other connections are weakly keyed on the {@link Connection}
+ * instance handed out by the datasource. This means statements are only reused
+ * when the datasource hands out the same {@code Connection} object each time or
+ * a {@link BorrowedConnection}.
+ */
+final class StatementCaches {
+
+    final LongAdder hits;
+    final LongAdder misses;
+    final LongAdder evictions;
+    private final Map<Connection, StatementCache> caches;
+    // Every cache created, to close them, weakly held by their connection
+    private final Set<StatementCache> all;
+    private volatile int maxSize;
+    private volatile boolean used;
+
+    StatementCaches() {
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.caches = new WeakHashMap<>();
+        this.all = Collections.newSetFromMap(new WeakHashMap<>());
+        this.maxSize = 0;
+        this.used = false;
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must be positive, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    PreparedStatement acquire(Connection connection, StatementCache.Key key) throws SQLException {
+        if (maxSize == 0) {
+            return key.prepare(connection);
+        }
+
+        used = true;
+        return cache(connection).acquire(connection, key);
+    }
+
+    void release(Connection connection, PreparedStatement statement) throws SQLException {
+        StatementCache cache = used ? find(connection) : null;
+        if (cache == null || !cache.release(statement)) {
+            statement.close();
+        }
+    }
+
+    private StatementCache cache(Connection connection) {
+        if (connection instanceof BorrowedConnection) {
+            ConcurrentMap<Object, Object> attachments = ((BorrowedConnection) connection).attachments();
+            Object cache = attachments.get(this);
+            return (StatementCache) (cache != null ? cache : attachments.computeIfAbsent(this, owner -> create()));
+        }
+
+        synchronized (caches) {
+            return caches.computeIfAbsent(connection, c -> create());
+        }
+    }
+
+    private StatementCache find(Connection connection) {
+        if (connection instanceof BorrowedConnection) {
+            return (StatementCache) ((BorrowedConnection) connection).attachments().get(this);
+        }
+
+        synchronized (caches) {
+            return caches.get(connection);
+        }
+    }
+
+    private StatementCache create() {
+        StatementCache cache = new StatementCache(this);
+        synchronized (all) {
+            all.add(cache);
+        }
+        return cache;
+    }
+
+    CacheStatistics statistics() {
+        return new CacheStatistics(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    void close() {
+        synchronized (caches) {
+            caches.clear();
+        }
+        // Attached caches stay usable, only their statements are closed
+        List<StatementCache> toClose;
+        synchronized (all) {
+            toClose = new ArrayList<>(all);
+        }
+        toClose.forEach(StatementCache::close);
+    }
+}
@@ -4,20 +4,37 @@ import be.bendem.sqlstreams.Transaction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.Connection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 class TransactionImpl extends SqlImpl implements Transaction {
 
     private final Connection connection;
+    // Statements that modified tables, invalidated again once committed
+    private final Set<String> modifications = new LinkedHashSet<>();
+    private final boolean readOnly;
 
     TransactionImpl(SqlImpl sql) {
-        super(sql.bindings);
+        super(sql);
         this.connection = sql.getConnection();
+        this.readOnly = false;
         Wrap.execute(() -> connection.setAutoCommit(false));
     }
 
+    TransactionImpl(SqlImpl sql, boolean readOnly) {
+        super(sql);
+        this.connection = sql.getConnection(readOnly);
+        this.readOnly = readOnly;
+        Wrap.execute(() -> {
+            connection.setAutoCommit(false);
+            connection.setReadOnly(readOnly);
+        });
+    }
+
     TransactionImpl(SqlImpl sql, int isolationLevel) {
-        super(sql.bindings);
+        super(sql);
         this.connection = sql.getConnection();
+        this.readOnly = false;
         Wrap.execute(() -> {
             connection.setAutoCommit(false);
             connection.setTransactionIsolation(isolationLevel);
@@ -29,20 +46,45 @@ class TransactionImpl extends SqlImpl implements Transaction {
         return connection;
     }
 
+    @Override
+    protected Connection getConnection(boolean read) {
+        return connection;
+    }
+
     @Override
     protected boolean closeConnectionAfterAction() {
         return false;
     }
 
+    @Override
+    QueryCache queryCache() {
+        // Cached results don't see the changes made by the transaction
+        return null;
+    }
+
+    @Override
+    void modified(String sql) {
+        if (queryCache.isEnabled()) {
+            // Other threads might cache results until the transaction is committed
+            queryCache.modified(sql);
+            modifications.add(sql);
+        }
+    }
+
     @Override
     public Transaction commit() {
         Wrap.execute(connection::commit);
+        for (String sql : modifications) {
+            queryCache.modified(sql);
+        }
+        modifications.clear();
         return this;
     }
 
     @Override
     public Transaction rollback() {
         Wrap.execute(connection::rollback);
+        modifications.clear();
         return this;
     }
 
@@ -50,6 +92,10 @@ class TransactionImpl extends SqlImpl implements Transaction {
     public void close() {
         Wrap.execute(() -> {
             connection.rollback();
+            if (readOnly) {
+                // The connection might be handed out again by the datasource
+                connection.setReadOnly(false);
+            }
             connection.close();
         });
     }
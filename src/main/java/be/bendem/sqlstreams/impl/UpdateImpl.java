@@ -1,35 +1,74 @@
 package be.bendem.sqlstreams.impl;
 
 import be.bendem.sqlstreams.Update;
+import be.bendem.sqlstreams.util.SqlFunction;
 import be.bendem.sqlstreams.util.Wrap;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.stream.Stream;
 
 class UpdateImpl extends ParameterProviderImpl<Update, PreparedStatement> implements Update {
 
-    private final Connection connection;
     private final boolean closeConnection;
+    private final boolean returnGeneratedKeys;
+    private GeneratedKeys keys;
 
-    UpdateImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection) {
-        super(statement, sql.bindings);
-        this.connection = connection;
+    UpdateImpl(SqlImpl sql, Connection connection, PreparedStatement statement, boolean closeConnection,
+               Instrumentation instrumentation, PreparedSql preparedSql, boolean returnGeneratedKeys) {
+        super(sql, connection, statement, instrumentation, preparedSql);
         this.closeConnection = closeConnection;
+        this.returnGeneratedKeys = returnGeneratedKeys;
     }
 
     @Override
     public int count() {
-        return Wrap.get(statement::executeUpdate);
+        int count = executeStatement(statement::executeUpdate);
+        if (instrumentation != null) {
+            instrumentation.affected(count);
+        }
+        return count;
     }
 
     @Override
     public long largeCount() {
-        return Wrap.get(statement::executeLargeUpdate);
+        long count = executeStatement(statement::executeLargeUpdate);
+        if (instrumentation != null) {
+            instrumentation.affected(count);
+        }
+        return count;
+    }
+
+    @Override
+    public <R> Stream<R> generatedKeys(SqlFunction<ResultSet, R> mapping) {
+        executeReturningKeys();
+        return keys.map(mapping);
+    }
+
+    @Override
+    public long[] generatedKeys() {
+        executeReturningKeys();
+        return keys.longs();
+    }
+
+    private void executeReturningKeys() {
+        if (!returnGeneratedKeys) {
+            throw new IllegalStateException("Generated keys were not requested, use Sql#insert");
+        }
+        if (keys == null) {
+            keys = new GeneratedKeys();
+        }
+
+        int count = executeStatement(statement::executeUpdate);
+        if (instrumentation != null) {
+            instrumentation.affected(count);
+        }
+        Wrap.execute(() -> keys.read(statement));
     }
 
     public void close() {
-        super.close();
-        if (closeConnection) {
+        if (release() && closeConnection) {
             Wrap.execute(connection::close);
         }
     }
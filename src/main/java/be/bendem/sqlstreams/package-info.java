@@ -46,6 +46,15 @@
  * java.lang.String}, {@link java.sql.Date}, {@link java.sql.Time}, {@link
  * java.sql.Timestamp}, {@link java.time.LocalDate}, {@link java.time.LocalTime} and
  * {@link java.time.LocalDateTime}.
+ * <p>
+ * Enums are stored using their ordinal by default, {@link
+ * be.bendem.sqlstreams.Sql#registerEnumByName(java.lang.Class)} and {@link
+ * be.bendem.sqlstreams.Sql#registerEnumCodes(java.lang.Class, java.lang.Class,
+ * java.util.function.Function)} allow storing them by name or using a custom code.
+ * <p>
+ * Collections and arrays are bound to {@code in (?)} lists, the parameter being
+ * expanded to one parameter per element, or as sql arrays, see {@link
+ * be.bendem.sqlstreams.CollectionBinding}.
  *
  * <h3>Manual mapping</h3>
  * If you need a more complex mapping method, you can use {@link
@@ -0,0 +1,32 @@
+package be.bendem.sqlstreams.util;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A connection handed out by one of the datasources of this library for a single borrow.
+ *
+ * Each borrow gets its own instance which releases the underlying connection the first time it is closed, closing it
+ * again has no effect. Since instances are not reused, {@link #identity()} identifies the underlying connection across
+ * borrows (to cache things per connection for example).
+ */
+public interface BorrowedConnection extends Connection {
+
+    /**
+     * Returns an object identifying the underlying connection, the same object is returned by each borrow of that
+     * connection.
+     *
+     * @return the identity of the underlying connection
+     */
+    Object identity();
+
+    /**
+     * Returns the values attached to the underlying connection, shared by all its borrows and discarded with it. This
+     * allows caching things per connection without looking them up in a shared map.
+     *
+     * Keys should be objects private to the code attaching values so that different users don't conflict.
+     *
+     * @return the mutable attachments of the underlying connection
+     */
+    ConcurrentMap<Object, Object> attachments();
+}
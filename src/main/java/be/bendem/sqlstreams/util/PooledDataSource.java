@@ -0,0 +1,373 @@
+package be.bendem.sqlstreams.util;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of connections.
+ *
+ * Connections are kept in a lock-free bag: a thread first tries to reuse the last connection it released, then scans
+ * the shared list of connections, then opens a new connection if the pool is not full yet. Only when all of these fail
+ * does it wait for another thread to hand a connection back. In the common case, borrowing a connection is a couple of
+ * compare-and-set operations and the allocation of its {@link BorrowedConnection}.
+ *
+ * Closing the connection you got using {@link #getConnection()} returns it to the pool, rolling back any uncommitted
+ * work and restoring auto-commit. Connections that are found closed or that fail validation are evicted right away,
+ * freeing their slot for a new connection. Idle connections are validated using {@link Connection#isValid(int)} when
+ * they are borrowed after having been idle for more than half a second.
+ *
+ * To actually close the pooled connections, call {@link #close()} on this DataSource.
+ *
+ * Instances of this class are thread-safe, but the connections returned when calling {@link #getConnection()} aren't.
+ * Each borrow gets its own {@link BorrowedConnection} which returns the pooled connection the first time it is closed,
+ * a connection must not be used after it has been closed.
+ */
+public class PooledDataSource extends DummyDataSource implements Closeable {
+
+    private static final int IDLE = 0;
+    private static final int IN_USE = 1;
+    private static final int REMOVED = -1;
+
+    private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SqlSupplier<Connection> connectionFactory;
+    private final int maxSize;
+    private final long timeoutNanos;
+
+    private final CopyOnWriteArrayList<PooledConnection> connections;
+    private final ThreadLocal<PooledConnection> lastUsed;
+    private final SynchronousQueue<PooledConnection> handoff;
+    private final AtomicInteger size;
+    private final AtomicInteger waiting;
+    private final LongAdder waitTime;
+    private final LongAdder evicted;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool of at most {@code maxSize} connections retrieved from the provided datasource, waiting up to 30
+     * seconds for a connection to be available.
+     *
+     * @param dataSource the datasource to open physical connections from
+     * @param maxSize the maximum number of connections to keep open
+     */
+    public PooledDataSource(DataSource dataSource, int maxSize) {
+        this(dataSource::getConnection, maxSize, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a pool of at most {@code maxSize} connections.
+     *
+     * @param connectionFactory the code opening a new physical connection
+     * @param maxSize the maximum number of connections to keep open
+     * @param timeout how long to wait for a connection when all of them are in use
+     * @param unit the unit of {@code timeout}
+     */
+    public PooledDataSource(SqlSupplier<Connection> connectionFactory, int maxSize, long timeout, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be greater than 0, got " + maxSize);
+        }
+
+        this.connectionFactory = connectionFactory;
+        this.maxSize = maxSize;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.connections = new CopyOnWriteArrayList<>();
+        this.lastUsed = new ThreadLocal<>();
+        this.handoff = new SynchronousQueue<>(true);
+        this.size = new AtomicInteger();
+        this.waiting = new AtomicInteger();
+        this.waitTime = new LongAdder();
+        this.evicted = new LongAdder();
+    }
+
+    /**
+     * Borrows a connection from the pool.
+     *
+     * @return a {@link BorrowedConnection}, to be closed to return it to the pool
+     * @throws SQLTransientConnectionException if no connection became available before the configured timeout
+     * @throws SQLException if a new connection could not be opened
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        while (true) {
+            PooledConnection connection = borrow();
+            if (connection.isUsable()) {
+                return new Lease(connection);
+            }
+            connection.evict();
+        }
+    }
+
+    /**
+     * Returns the number of connections currently borrowed from this pool.
+     *
+     * @return the number of connections in use
+     */
+    public int getActiveConnections() {
+        return count(IN_USE);
+    }
+
+    /**
+     * Returns the number of connections waiting to be borrowed.
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnections() {
+        return count(IDLE);
+    }
+
+    /**
+     * Returns the number of physical connections currently open.
+     *
+     * @return the number of connections held by this pool
+     */
+    public int getTotalConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of threads currently waiting for a connection.
+     *
+     * @return the number of waiting threads
+     */
+    public int getWaitingThreads() {
+        return waiting.get();
+    }
+
+    /**
+     * Returns the total time threads spent waiting for a connection to be returned to the pool.
+     *
+     * @param unit the unit of the returned value
+     * @return the accumulated wait time
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitTime.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of connections that were evicted from the pool because they were broken.
+     *
+     * @return the number of evicted connections
+     */
+    public long getEvictedConnections() {
+        return evicted.sum();
+    }
+
+    /**
+     * Closes all idle connections and marks this pool as closed. Connections currently in use are closed when they
+     * are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (PooledConnection connection : connections) {
+            if (connection.state.compareAndSet(IDLE, IN_USE)) {
+                connection.evict();
+            }
+        }
+    }
+
+    private PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+
+        PooledConnection connection = lastUsed.get();
+        if (connection != null && connection.state.compareAndSet(IDLE, IN_USE)) {
+            return connection;
+        }
+
+        connection = scanOrCreate();
+        if (connection != null) {
+            return connection;
+        }
+
+        return await();
+    }
+
+    private PooledConnection scanOrCreate() throws SQLException {
+        for (PooledConnection connection : connections) {
+            if (connection.state.compareAndSet(IDLE, IN_USE)) {
+                return connection;
+            }
+        }
+
+        int current;
+        do {
+            current = size.get();
+            if (current >= maxSize) {
+                return null;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+
+        try {
+            PooledConnection connection = new PooledConnection(connectionFactory.get());
+            connections.add(connection);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection await() throws SQLException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            long remaining = timeoutNanos;
+            do {
+                PooledConnection connection = handoff.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                if (connection == null || !connection.state.compareAndSet(IDLE, IN_USE)) {
+                    connection = scanOrCreate();
+                }
+                if (connection != null) {
+                    return connection;
+                }
+                if (closed) {
+                    throw new IllegalStateException("Pool is closed");
+                }
+                remaining = timeoutNanos - (System.nanoTime() - start);
+            } while (remaining > 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } finally {
+            waiting.decrementAndGet();
+            waitTime.add(System.nanoTime() - start);
+        }
+
+        throw new SQLTransientConnectionException(
+            "No connection available after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+    }
+
+    private int count(int state) {
+        int count = 0;
+        for (PooledConnection connection : connections) {
+            if (connection.state.get() == state) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private final class PooledConnection {
+
+        private final Connection delegate;
+        private final AtomicInteger state;
+        private final ConcurrentMap<Object, Object> attachments;
+        private long lastReleased;
+
+        private PooledConnection(Connection delegate) {
+            this.delegate = delegate;
+            this.state = new AtomicInteger(IN_USE);
+            this.attachments = new ConcurrentHashMap<>();
+            this.lastReleased = System.nanoTime();
+        }
+
+        private boolean isUsable() {
+            if (System.nanoTime() - lastReleased < VALIDATION_BYPASS_NANOS) {
+                return true;
+            }
+            try {
+                return delegate.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void evict() {
+            state.set(REMOVED);
+            if (connections.remove(this)) {
+                size.decrementAndGet();
+                if (!closed) {
+                    evicted.increment();
+                }
+            }
+            try {
+                delegate.close();
+            } catch (SQLException ignored) {
+                // The connection is being thrown away because it's broken
+            }
+        }
+
+        private void release() {
+            boolean broken;
+            try {
+                if (!delegate.getAutoCommit()) {
+                    delegate.rollback();
+                    delegate.setAutoCommit(true);
+                }
+                broken = delegate.isClosed();
+            } catch (SQLException e) {
+                broken = true;
+            }
+
+            if (broken || closed) {
+                evict();
+                return;
+            }
+
+            lastReleased = System.nanoTime();
+            state.set(IDLE);
+            // The pool may have been closed since the check above, after it looked for idle connections
+            if (closed) {
+                if (state.compareAndSet(IDLE, IN_USE)) {
+                    evict();
+                }
+                return;
+            }
+            lastUsed.set(this);
+            if (waiting.get() > 0) {
+                handoff.offer(this);
+            }
+        }
+    }
+
+    /**
+     * A single borrow of a pooled connection.
+     */
+    private static final class Lease extends DelegatingConnection implements BorrowedConnection {
+
+        private final PooledConnection pooled;
+        private final AtomicBoolean released;
+
+        private Lease(PooledConnection pooled) {
+            super(pooled.delegate);
+            this.pooled = pooled;
+            this.released = new AtomicBoolean(false);
+        }
+
+        @Override
+        public Object identity() {
+            return pooled;
+        }
+
+        @Override
+        public ConcurrentMap<Object, Object> attachments() {
+            return pooled.attachments;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                pooled.release();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return released.get();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package be.bendem.sqlstreams.util;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A {@link DataSource} handing out connections to a primary database for writes and to its read replicas for reads.
+ *
+ * {@link #getConnection()} always returns a connection to the primary. {@link #getReadConnection()} returns a
+ * connection to one of the replicas, chosen using the configured {@link Routing}. {@link be.bendem.sqlstreams.Sql}
+ * instances created from this datasource use read connections for queries and read-only transactions.
+ *
+ * A replica failing to hand out a connection is skipped for 100 milliseconds, doubling up to 30 seconds for each
+ * consecutive failure. Once its backoff expired, a single request tries it again. When all replicas are failing, reads
+ * go to the primary.
+ *
+ * Closing this datasource closes the primary and the replicas that are {@link AutoCloseable}.
+ */
+public class ReplicaRoutingDataSource extends DummyDataSource implements Closeable {
+
+    /**
+     * How read connections are spread across replicas.
+     */
+    public enum Routing {
+        /**
+         * Each read uses the next healthy replica.
+         */
+        ROUND_ROBIN,
+        /**
+         * Each read uses the healthy replica with the fewest connections currently open by this datasource, ties
+         * being broken in a round-robin fashion. Connections are wrapped to know when they are closed.
+         */
+        LEAST_OUTSTANDING
+    }
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final DataSource primary;
+    private final Replica[] replicas;
+    private final Routing routing;
+    private final AtomicInteger next;
+
+    /**
+     * Creates a datasource routing reads to the least busy replica.
+     *
+     * @param primary the datasource of the primary database
+     * @param replicas the datasources of the replicas
+     */
+    public ReplicaRoutingDataSource(DataSource primary, List<? extends DataSource> replicas) {
+        this(primary, replicas, Routing.LEAST_OUTSTANDING);
+    }
+
+    /**
+     * Creates a datasource routing reads to replicas.
+     *
+     * @param primary the datasource of the primary database
+     * @param replicas the datasources of the replicas
+     * @param routing how to choose the replica of each read
+     */
+    public ReplicaRoutingDataSource(DataSource primary, List<? extends DataSource> replicas, Routing routing) {
+        this.primary = primary;
+        this.replicas = new Replica[replicas.size()];
+        for (int i = 0; i < this.replicas.length; ++i) {
+            this.replicas[i] = new Replica(replicas.get(i));
+        }
+        this.routing = routing;
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Returns a connection to the primary database.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    /**
+     * Returns a connection to a healthy replica or to the primary database if there is none.
+     *
+     * @return a connection to use for reads
+     * @throws SQLException if no connection could be retrieved from the primary after all replicas failed
+     */
+    public Connection getReadConnection() throws SQLException {
+        int start = next.getAndIncrement();
+        SQLException failure = null;
+        for (int attempt = 0; attempt < replicas.length; ++attempt) {
+            Replica replica = choose(start, System.nanoTime());
+            if (replica == null) {
+                break;
+            }
+
+            try {
+                Connection connection = replica.dataSource.getConnection();
+                replica.up();
+                if (routing == Routing.LEAST_OUTSTANDING) {
+                    replica.outstanding.incrementAndGet();
+                    return new TrackedConnection(replica, connection);
+                }
+                return connection;
+            } catch (SQLException e) {
+                replica.down();
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        try {
+            return primary.getConnection();
+        } catch (SQLException e) {
+            if (failure != null) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the replica to try next or null if all of them are failing.
+     */
+    private Replica choose(int start, long now) {
+        Replica chosen = null;
+        for (int i = 0; i < replicas.length; ++i) {
+            Replica replica = replicas[Math.floorMod(start + i, replicas.length)];
+            if (replica.failures.get() != 0) {
+                // Probe failing replicas as soon as their backoff expired
+                if (replica.claimRetry(now)) {
+                    return replica;
+                }
+                continue;
+            }
+            if (routing == Routing.ROUND_ROBIN) {
+                return replica;
+            }
+            if (chosen == null || replica.outstanding.get() < chosen.outstanding.get()) {
+                chosen = replica;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the number of replicas that are not currently skipped because of failures.
+     *
+     * @return the number of healthy replicas
+     */
+    public int getHealthyReplicas() {
+        long now = System.nanoTime();
+        int healthy = 0;
+        for (Replica replica : replicas) {
+            if (replica.failures.get() == 0 || replica.retryAt - now <= 0) {
+                ++healthy;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Returns the number of read connections currently open, only tracked when using
+     * {@link Routing#LEAST_OUTSTANDING}.
+     *
+     * @return the number of open read connections
+     */
+    public int getOutstandingReads() {
+        int outstanding = 0;
+        for (Replica replica : replicas) {
+            outstanding += replica.outstanding.get();
+        }
+        return outstanding;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(primary);
+        for (Replica replica : replicas) {
+            closeQuietly(replica.dataSource);
+        }
+    }
+
+    private static void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception ignored) {
+                // Close as many datasources as possible
+            }
+        }
+    }
+
+    private static final class Replica {
+
+        private static final AtomicLongFieldUpdater<Replica> RETRY_AT =
+            AtomicLongFieldUpdater.newUpdater(Replica.class, "retryAt");
+
+        private final DataSource dataSource;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long retryAt;
+
+        private Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * Returns whether the backoff of this failing replica expired, only once until it fails again.
+         */
+        private boolean claimRetry(long now) {
+            long retryAt = this.retryAt;
+            return retryAt - now <= 0 && RETRY_AT.compareAndSet(this, retryAt, now + MIN_BACKOFF_NANOS);
+        }
+
+        private void up() {
+            if (failures.get() != 0) {
+                failures.set(0);
+            }
+        }
+
+        private void down() {
+            int failures = this.failures.incrementAndGet();
+            long backoff = MIN_BACKOFF_NANOS << Math.min(failures - 1, 20);
+            retryAt = System.nanoTime() + Math.min(backoff, MAX_BACKOFF_NANOS);
+        }
+
+    }
+
+    /**
+     * Counts the connection as outstanding until it is closed.
+     *
+     * Each read uses a new wrapper, its {@link #identity()} and {@link #attachments()} are the ones of the underlying
+     * connection so that statements cached for it are reused by the next reads using the same connection. Connections
+     * not handed out by this library get attachments of their own, like a new connection would.
+     */
+    private static final class TrackedConnection extends DelegatingConnection implements BorrowedConnection {
+
+        private final Replica replica;
+        private final AtomicBoolean open = new AtomicBoolean(true);
+        private ConcurrentMap<Object, Object> attachments;
+
+        private TrackedConnection(Replica replica, Connection delegate) {
+            super(delegate);
+            this.replica = replica;
+        }
+
+        @Override
+        public Object identity() {
+            return delegate instanceof BorrowedConnection ? ((BorrowedConnection) delegate).identity() : delegate;
+        }
+
+        @Override
+        public ConcurrentMap<Object, Object> attachments() {
+            if (delegate instanceof BorrowedConnection) {
+                return ((BorrowedConnection) delegate).attachments();
+            }
+            if (attachments == null) {
+                attachments = new ConcurrentHashMap<>();
+            }
+            return attachments;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (open.compareAndSet(true, false)) {
+                replica.outstanding.decrementAndGet();
+                delegate.close();
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return !open.get() || delegate.isClosed();
+        }
+    }
+}
@@ -1,18 +1,27 @@
 package be.bendem.sqlstreams.util;
 
-import be.bendem.sqlstreams.UncheckedSqlException;
-
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Wraps a single connection that is reused each time {@link #getConnection()} is called.
  *
  * Note that closing the connection you got using {@link #getConnection()} will make it available again. If it is not
- * closed, calling {@link #getConnection()} will throw an {@link IllegalStateException}.
+ * closed, calling {@link #getConnection()} will throw an {@link IllegalStateException}, unless the datasource was
+ * created with a timeout in which case callers wait for the connection to be closed, in arrival order. The thread
+ * holding the connection can't wait for itself, calling {@link #getConnection()} from it throws an
+ * {@link IllegalStateException} in both modes.
+ *
+ * Each call returns a new {@link BorrowedConnection} over the underlying connection, only its first close makes the
+ * connection available again so that a late close from a previous holder doesn't affect the current one.
  *
  * To actually close the connection, call {@link #close()} on this DataSource.
  *
@@ -22,7 +31,13 @@ public class SingleConnectionDataSource extends DummyDataSource implements Close
 
     private final AtomicBoolean inUse;
     private final Connection connection;
-    private final Connection proxy;
+    private final ConcurrentMap<Object, Object> attachments;
+    // Blocking mode only
+    private final Semaphore permit;
+    private final long timeoutNanos;
+    private final AtomicInteger waiting;
+    private final LongAdder waitTime;
+    private volatile Thread owner;
 
     /**
      * Creates a single single connection datasource.
@@ -30,50 +45,102 @@ public class SingleConnectionDataSource extends DummyDataSource implements Close
      * @param connection the underlying jdbc connection to use
      */
     public SingleConnectionDataSource(Connection connection) {
+        this(connection, null, 0);
+    }
+
+    /**
+     * Creates a single connection datasource making callers wait for the connection to be available, in arrival order.
+     *
+     * @param connection the underlying jdbc connection to use
+     * @param timeout how long to wait for the connection when it is in use
+     * @param unit the unit of {@code timeout}
+     */
+    public SingleConnectionDataSource(Connection connection, long timeout, TimeUnit unit) {
+        this(connection, new Semaphore(1, true), unit.toNanos(timeout));
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be positive, got " + timeout);
+        }
+    }
+
+    private SingleConnectionDataSource(Connection connection, Semaphore permit, long timeoutNanos) {
         this.inUse = new AtomicBoolean(false);
         this.connection = connection;
-        this.proxy = (Connection) Proxy.newProxyInstance(
-            getClass().getClassLoader(),
-            new Class[] { Connection.class },
-            (proxy, method, args) -> {
-                try {
-                    if (method.getName().equals("close") && method.getParameterCount() == 0) {
-                        if (!connection.getAutoCommit()) {
-                            connection.rollback();
-                        }
-                        releaseConnection();
-                        return null;
-                    } else if (method.getName().equals("isClosed") && method.getParameterCount() == 0) {
-                        return !inUse.get();
-                    }
-                    return method.invoke(connection, args);
-                } catch (InvocationTargetException e) {
-                    Throwable cause = e.getCause();
-                    Exception exception;
-                    if (cause instanceof SQLException) {
-                        exception = new UncheckedSqlException((SQLException) cause);
-                    } else if (cause instanceof RuntimeException) {
-                        cause.addSuppressed(e);
-                        throw (RuntimeException) cause;
-                    } else if (cause instanceof Error) {
-                        cause.addSuppressed(e);
-                        throw (Error) cause;
-                    } else {
-                        exception = new RuntimeException(cause);
-                    }
-                    exception.addSuppressed(e);
-                    throw exception;
-                }
-            });
+        this.attachments = new ConcurrentHashMap<>();
+        this.permit = permit;
+        this.timeoutNanos = timeoutNanos;
+        this.waiting = new AtomicInteger();
+        this.waitTime = new LongAdder();
     }
 
+    /**
+     * Returns the connection.
+     *
+     * @return a {@link BorrowedConnection}, to be closed to make the connection available again
+     * @throws IllegalStateException if the connection is in use by the current thread or, if this datasource was not
+     *                               created with a timeout, by any thread
+     * @throws SQLTransientConnectionException if the connection was not closed before the configured timeout
+     * @throws SQLException if the current thread was interrupted while waiting
+     */
     @Override
     public Connection getConnection() throws SQLException {
-        if (inUse.getAndSet(true)) {
-            throw new IllegalStateException("Connection already in use");
+        if (owner == Thread.currentThread()) {
+            throw new IllegalStateException("Connection already in use by the current thread");
+        }
+
+        if (permit == null) {
+            if (inUse.getAndSet(true)) {
+                throw new IllegalStateException("Connection already in use");
+            }
+        } else {
+            // A timed acquire respects the arrival order, unlike tryAcquire()
+            try {
+                if (!permit.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                    await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the connection", e);
+            }
+            inUse.set(true);
         }
 
-        return proxy;
+        owner = Thread.currentThread();
+        return new SingleConnection(connection);
+    }
+
+    private void await() throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            if (permit.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } finally {
+            waiting.decrementAndGet();
+            waitTime.add(System.nanoTime() - start);
+        }
+
+        throw new SQLTransientConnectionException(
+            "Connection not available after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+    }
+
+    /**
+     * Returns the number of threads currently waiting for the connection.
+     *
+     * @return the number of waiting threads
+     */
+    public int getWaitingThreads() {
+        return waiting.get();
+    }
+
+    /**
+     * Returns the total time threads spent waiting for the connection.
+     *
+     * @param unit the unit of the returned value
+     * @return the accumulated wait time
+     */
+    public long getWaitTime(TimeUnit unit) {
+        return unit.convert(waitTime.sum(), TimeUnit.NANOSECONDS);
     }
 
     @Override
@@ -82,7 +149,55 @@ public class SingleConnectionDataSource extends DummyDataSource implements Close
     }
 
     private void releaseConnection() {
-        Wrap.execute(() -> connection.setAutoCommit(true));
-        inUse.set(false);
+        try {
+            Wrap.execute(() -> connection.setAutoCommit(true));
+        } finally {
+            owner = null;
+            if (inUse.compareAndSet(true, false) && permit != null) {
+                permit.release();
+            }
+        }
+    }
+
+    private final class SingleConnection extends DelegatingConnection implements BorrowedConnection {
+
+        private final AtomicBoolean released;
+
+        private SingleConnection(Connection delegate) {
+            super(delegate);
+            this.released = new AtomicBoolean(false);
+        }
+
+        @Override
+        public Object identity() {
+            return SingleConnectionDataSource.this;
+        }
+
+        @Override
+        public ConcurrentMap<Object, Object> attachments() {
+            return attachments;
+        }
+
+        /**
+         * Rolls back any uncommitted work and makes the connection available again, the first time it is called.
+         */
+        @Override
+        public void close() throws SQLException {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (!delegate.getAutoCommit()) {
+                    delegate.rollback();
+                }
+            } finally {
+                releaseConnection();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return released.get();
+        }
     }
 }
@@ -0,0 +1,295 @@
+package be.bendem.sqlstreams.util;
+
+import be.bendem.sqlstreams.SqlListener;
+import be.bendem.sqlstreams.StatementInfo;
+
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link SqlListener} logging the statements that stayed open longer than a threshold.
+ *
+ * The time a statement stays open is measured from its preparation to its closing. For a query, this includes the
+ * time the caller held the stream of its rows open, as the connection is held until then. Slow statements are logged
+ * with their sql, the time spent executing them, the number of rows they read or affected and the values bound to
+ * their parameters, passed through a {@link Redactor}.
+ *
+ * Capturing parameters and execution times has a cost, only a fraction of the statements can be sampled to keep it
+ * bounded. Statements that are not sampled are still logged when slow, without their parameters nor execution time.
+ *
+ * By default, slow statements are logged as warnings to the {@code be.bendem.sqlstreams.util.SlowQueryLog}
+ * {@link Logger}. This class must be configured before being registered using
+ * {@link be.bendem.sqlstreams.Sql#addListener(SqlListener)}.
+ */
+public class SlowQueryLog implements SqlListener {
+
+    private static final Logger LOGGER = Logger.getLogger(SlowQueryLog.class.getName());
+    private static final int MAX_TEXT_LENGTH = 64;
+
+    /**
+     * Formats the values bound to the parameters of a statement.
+     */
+    @FunctionalInterface
+    public interface Redactor {
+
+        /**
+         * Replaces every value with {@code ?}.
+         */
+        Redactor ALL = (statement, index, value) -> "?";
+
+        /**
+         * Shows nulls, numbers, booleans, enums and dates, replaces anything else (text, binary data, streams...)
+         * with its type.
+         */
+        Redactor TEXT = (statement, index, value) -> {
+            if (value == null || value instanceof Number || value instanceof Boolean || value instanceof Enum
+                    || value instanceof Date || value instanceof TemporalAccessor) {
+                return format(value);
+            }
+            return "<" + value.getClass().getSimpleName() + ">";
+        };
+
+        /**
+         * Shows every value, text is truncated.
+         */
+        Redactor NONE = (statement, index, value) -> format(value);
+
+        /**
+         * Formats the value bound to a parameter.
+         *
+         * @param statement the statement
+         * @param index the index of the parameter, starting at 1
+         * @param value the value bound to the parameter, {@code null} if it was not bound using this library
+         * @return the text to log
+         */
+        String redact(StatementInfo statement, int index, Object value);
+    }
+
+    /**
+     * A statement that stayed open longer than the threshold.
+     */
+    public static final class SlowQuery {
+
+        private final StatementInfo statement;
+        private final List<String> parameters;
+        private final long executionNanos;
+        private final long openNanos;
+        private final long rows;
+
+        public SlowQuery(StatementInfo statement, List<String> parameters, long executionNanos, long openNanos,
+                         long rows) {
+            this.statement = statement;
+            this.parameters = parameters;
+            this.executionNanos = executionNanos;
+            this.openNanos = openNanos;
+            this.rows = rows;
+        }
+
+        /**
+         * Returns the statement.
+         *
+         * @return the statement
+         */
+        public StatementInfo getStatement() {
+            return statement;
+        }
+
+        /**
+         * Returns the redacted values bound to the parameters of the statement for its last execution.
+         *
+         * @return the redacted values or {@code null} if the statement was not sampled
+         */
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Returns the time spent executing the statement.
+         *
+         * @return the execution time in nanoseconds or {@code -1} if the statement was not sampled
+         */
+        public long getExecutionNanos() {
+            return executionNanos;
+        }
+
+        /**
+         * Returns the time elapsed between the preparation and the closing of the statement.
+         *
+         * @return the open time in nanoseconds
+         */
+        public long getOpenNanos() {
+            return openNanos;
+        }
+
+        /**
+         * Returns the number of rows read or affected by the statement.
+         *
+         * @return the number of rows
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Slow ")
+                .append(statement.getKind().name().toLowerCase())
+                .append(" open for ").append(TimeUnit.NANOSECONDS.toMillis(openNanos)).append("ms");
+            if (executionNanos >= 0) {
+                builder.append(" (").append(TimeUnit.NANOSECONDS.toMillis(executionNanos)).append("ms executing)");
+            }
+            builder.append(", ").append(rows).append(" rows: ").append(statement.getSql());
+            if (parameters != null) {
+                builder.append(" with ").append(parameters);
+            }
+            return builder.toString();
+        }
+    }
+
+    private static final class Tracker {
+        private List<Object> parameters;
+        private long executionNanos;
+    }
+
+    private final long thresholdNanos;
+    private final Map<Long, Tracker> sampled;
+    private double sampleRate = 1;
+    private Redactor redactor = Redactor.TEXT;
+    private Consumer<SlowQuery> sink = SlowQueryLog::log;
+
+    /**
+     * Creates a log of the statements open for {@code threshold} or longer, sampling every statement.
+     *
+     * @param threshold the minimum time a statement has to be open to be logged
+     * @param unit the unit of {@code threshold}
+     */
+    public SlowQueryLog(long threshold, TimeUnit unit) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must be positive, got " + threshold);
+        }
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.sampled = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sets the fraction of statements whose parameters and execution time are captured.
+     *
+     * @param sampleRate the fraction of sampled statements, between {@code 0} and {@code 1}
+     * @return {@code this} for chaining
+     */
+    public SlowQueryLog sampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1, got " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Sets the redactor formatting the values bound to the parameters of slow statements, defaults to
+     * {@link Redactor#TEXT}.
+     *
+     * @param redactor the redactor
+     * @return {@code this} for chaining
+     */
+    public SlowQueryLog redactor(Redactor redactor) {
+        this.redactor = Objects.requireNonNull(redactor, "redactor");
+        return this;
+    }
+
+    /**
+     * Sets the code receiving the slow statements instead of the default logger.
+     *
+     * @param sink the code receiving the slow statements
+     * @return {@code this} for chaining
+     */
+    public SlowQueryLog sink(Consumer<SlowQuery> sink) {
+        this.sink = Objects.requireNonNull(sink, "sink");
+        return this;
+    }
+
+    @Override
+    public boolean captureParameters(StatementInfo statement) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+        sampled.put(statement.getId(), new Tracker());
+        return true;
+    }
+
+    @Override
+    public void onParametersBound(StatementInfo statement, List<Object> parameters) {
+        Tracker tracker = sampled.get(statement.getId());
+        if (tracker != null) {
+            tracker.parameters = parameters;
+        }
+    }
+
+    @Override
+    public void onExecuted(StatementInfo statement, long nanos) {
+        Tracker tracker = sampled.get(statement.getId());
+        if (tracker != null) {
+            tracker.executionNanos += nanos;
+        }
+    }
+
+    @Override
+    public void onClosed(StatementInfo statement, long rows, long nanos) {
+        Tracker tracker = sampled.remove(statement.getId());
+        if (nanos < thresholdNanos) {
+            return;
+        }
+
+        List<String> parameters = null;
+        long executionNanos = -1;
+        if (tracker != null) {
+            executionNanos = tracker.executionNanos;
+            if (tracker.parameters != null) {
+                parameters = new ArrayList<>(tracker.parameters.size());
+                for (int i = 0; i < tracker.parameters.size(); ++i) {
+                    parameters.add(redactor.redact(statement, i + 1, tracker.parameters.get(i)));
+                }
+                parameters = Collections.unmodifiableList(parameters);
+            } else {
+                parameters = Collections.emptyList();
+            }
+        }
+        sink.accept(new SlowQuery(statement, parameters, executionNanos, nanos, rows));
+    }
+
+    private static void log(SlowQuery query) {
+        if (LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.warning(query.toString());
+        }
+    }
+
+    private static String format(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof CharSequence) {
+            String text = value.toString();
+            return text.length() > MAX_TEXT_LENGTH
+                ? "'" + text.substring(0, MAX_TEXT_LENGTH) + "...'"
+                : "'" + text + "'";
+        }
+        if (value instanceof byte[]) {
+            return "<" + ((byte[]) value).length + " bytes>";
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value.toString();
+    }
+}
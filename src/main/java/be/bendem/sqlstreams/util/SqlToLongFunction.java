@@ -0,0 +1,21 @@
+package be.bendem.sqlstreams.util;
+
+import java.sql.SQLException;
+
+/**
+ * Represents a function that accepts one argument and produces a {@code long} result.
+ *
+ * @param <T> the type of the input to the function
+ */
+@FunctionalInterface
+public interface SqlToLongFunction<T> {
+
+    /**
+     * Applies this function to the given argument.
+     *
+     * @param t the function argument
+     * @return the function result
+     * @throws SQLException generally rethrown as {@link be.bendem.sqlstreams.UncheckedSqlException}
+     */
+    long applyAsLong(T t) throws SQLException;
+}
@@ -0,0 +1,84 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncTests extends BaseTests {
+
+    @Test
+    public void testOperations() {
+        AsyncSql async = sql.async();
+
+        Assert.assertEquals(Long.valueOf(3), async
+            .batchUpdate(INSERT_INTO_TEST, Arrays.asList(1, 2, 3), (batch, b) -> batch.with(b))
+            .join());
+        Assert.assertEquals(Integer.valueOf(1), async.update("update test set b = ? where b = ?", 4, 3).join());
+        Assert.assertEquals(
+            Arrays.asList(1, 2, 4),
+            async.query("select b from test order by b", rs -> rs.getInt(1)).join());
+        Assert.assertEquals(
+            Optional.of(2),
+            async.first("select b from test where b = ?", rs -> rs.getInt(1), 2).join());
+        async.exec("delete from test").join();
+        Assert.assertEquals(
+            Collections.emptyList(),
+            async.query("select b from test", rs -> rs.getInt(1)).join());
+    }
+
+    @Test
+    public void testCustomExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncSql async = sql.async(executor);
+            Assert.assertSame(executor, async.executor());
+            Assert.assertEquals(Integer.valueOf(1), async.update(INSERT_INTO_TEST, 1).join());
+            Assert.assertEquals(Integer.valueOf(1), async.run(s -> s.first("select count(*) from test", rs -> rs.getInt(1)).get()).join());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransaction() {
+        AsyncSql async = sql.async();
+
+        List<Integer> inserted = async.transaction(transaction -> {
+            transaction.exec(INSERT_INTO_TEST, 1);
+            transaction.exec(INSERT_INTO_TEST, 2);
+            return Arrays.asList(1, 2);
+        }).join();
+        Assert.assertEquals(Arrays.asList(1, 2), inserted);
+
+        try {
+            async.transaction(transaction -> {
+                transaction.exec(INSERT_INTO_TEST, 3);
+                throw new IllegalStateException("rollback");
+            }).join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        Assert.assertEquals(
+            Arrays.asList(1, 2),
+            async.query("select b from test order by b", rs -> rs.getInt(1)).join());
+    }
+
+    @Test
+    public void testFailure() {
+        try {
+            sql.async().update("insert into not_a_table values (?)", 1).join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof UncheckedSqlException);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package be.bendem.sqlstreams;
 
+import be.bendem.sqlstreams.util.Wrap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.Arrays;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class BatchTests extends BaseTests {
@@ -43,4 +48,149 @@ public class BatchTests extends BaseTests {
         }
     }
 
+    // The batch holds the only connection, count using it directly
+    private static int countRows(BatchUpdate batch, String table) {
+        return Wrap.get(() -> {
+            try (Statement statement = batch.getStatement().getConnection().createStatement();
+                 ResultSet resultSet = statement.executeQuery("select count(*) from " + table)) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+    }
+
+    @Test
+    public void testFlushThreshold() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST).flushThreshold(2)) {
+            batch.with(1).next().with(2).next().with(3).next().with(4).next().with(5).next();
+            Assert.assertEquals(4, countRows(batch, "test"));
+
+            Assert.assertArrayEquals(new int[]{1, 1, 1, 1, 1}, batch.counts());
+        }
+        Assert.assertEquals(5, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testFlushThresholdBytes() {
+        try (BatchUpdate batch = sql.batchUpdate("insert into users (name, password) values (?, ?)")
+                .flushThreshold(0, 100)) {
+            batch.with("a-rather-long-user-name", "password").next();
+            Assert.assertEquals(2, countRows(batch, "users"));
+            batch.with("another-rather-long-user-name", "password").next();
+            Assert.assertEquals(4, countRows(batch, "users"));
+
+            Assert.assertEquals(2, batch.count());
+        }
+    }
+
+    @Test
+    public void testFlushThresholdBytesCountsParametersOnce() {
+        if (database != Database.H2) {
+            return;
+        }
+        // Collections are bound one by one, only when bound as arrays in batches
+        sql.bindCollections(CollectionBinding.ARRAY);
+        String name = "a-name-of-forty-characters-for-80-bytes-";
+        try (BatchUpdate batch = sql.batchUpdate("insert into test (b) values (array_length(?) + length(?))")
+                .flushThreshold(0, 100)) {
+            // 16 + 80 bytes
+            batch.with(Arrays.asList(1, 2), name).next();
+            Assert.assertEquals(0, countRows(batch, "test"));
+            batch.with(Arrays.asList(1, 2), name).next();
+            Assert.assertEquals(2, countRows(batch, "test"));
+
+            Assert.assertEquals(2, batch.count());
+        }
+    }
+
+    @Test
+    public void testExecuteAll() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            long count = batch.executeAll(IntStream.range(0, 2500).boxed(), (b, i) -> b.setInt(1, i));
+            Assert.assertEquals(2500, count);
+        }
+        Assert.assertEquals(2500, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+        Assert.assertEquals(2499 * 2500 / 2, (int) sql.first("select sum(b) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testExecuteAllAfterFlush() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST).flushThreshold(2, 0)) {
+            for (int i = 0; i < 3; ++i) {
+                batch.setInt(1, i).next();
+            }
+            // Rows flushed before are counted
+            Assert.assertEquals(13, batch.executeAll(IntStream.range(0, 10).boxed(), (b, i) -> b.setInt(1, i)));
+            batch.setInt(1, 0).next();
+            Assert.assertArrayEquals(new int[] { 1 }, batch.counts());
+        }
+        Assert.assertEquals(14, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testRewriteInserts() {
+        sql.enableStatementCache(8);
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST).rewriteInserts(64)) {
+            for (int i = 0; i < 300; ++i) {
+                batch.with(i).next();
+            }
+            Assert.assertEquals(300, batch.count());
+
+            batch.with(1000).next().set(1, 1001).next();
+            int[] counts = batch.counts();
+            Assert.assertArrayEquals(new int[]{Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO}, counts);
+
+            // The batch statement and the 64, 32, 8, 4 and 2 rows statements
+            Assert.assertEquals(6, sql.getStatementCacheStatistics().getMissCount());
+        }
+        Assert.assertEquals(302, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+        Assert.assertEquals(299 * 300 / 2 + 2001, (int) sql.first("select sum(b) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testRewriteInsertsWithThreshold() {
+        try (BatchUpdate batch = sql.batchUpdate("insert into users (name, password) values (?, ?)")
+                .rewriteInserts()
+                .flushThreshold(3)) {
+            long count = batch.executeAll(IntStream.range(0, 10).boxed(), (b, i) -> b.with("user" + i, "pass"));
+            Assert.assertEquals(10, count);
+        }
+        Assert.assertEquals(12, (int) sql.first("select count(*) from users", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testRewriteInsertsWithNulls() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST).rewriteInserts()) {
+            batch.with(1).next()
+                .with((Object) null).next()
+                .setNull(1, Types.INTEGER).next()
+                .set(1, 4).next();
+            Assert.assertEquals(4, batch.count());
+        }
+        try (Stream<Integer> values = sql.query("select b from test order by a").map(rs -> (Integer) rs.getObject(1))) {
+            Assert.assertEquals(Arrays.asList(1, null, null, 4), values.collect(Collectors.toList()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRewriteInsertsRequiresAllParameters() {
+        try (BatchUpdate batch = sql.batchUpdate("insert into users (name, password) values (?, ?)").rewriteInserts()) {
+            batch.set(1, "name").next();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRewriteInsertsRejectsRawSetters() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST).rewriteInserts()) {
+            batch.setInt(1, 1);
+        }
+    }
+
+    @Test
+    public void testRewriteInsertsFallsBack() {
+        try (BatchUpdate batch = sql.batchUpdate("insert into test (b) select ?").rewriteInserts()) {
+            batch.setInt(1, 1).next().setInt(1, 2).next();
+            Assert.assertArrayEquals(new int[]{1, 1}, batch.counts());
+        }
+    }
 }
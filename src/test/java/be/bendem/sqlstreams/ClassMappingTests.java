@@ -0,0 +1,69 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ClassMappingTests extends BaseTests {
+
+    public static class Account {
+        private long id;
+        private String name;
+        String password;
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void testMapToConstructor() {
+        try (Stream<User> users = sql.query("select * from users order by id").mapTo(User.class)) {
+            List<User> list = users.collect(Collectors.toList());
+            Assert.assertEquals(2, list.size());
+            Assert.assertEquals("bob", list.get(0).name);
+            Assert.assertEquals("bob_password", list.get(0).password);
+            Assert.assertFalse(list.get(0).activated);
+            Assert.assertEquals(2, list.get(1).id);
+        }
+
+        try (Stream<Post> posts = sql.query("select id, user_id, content from posts order by id").mapTo(Post.class)) {
+            Assert.assertEquals(
+                Arrays.asList(1, 1, 2),
+                posts.map(Post::getUserId).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testMapToSettersAndFields() {
+        try (Stream<Account> accounts = sql.query("select id, name, password, 1 as unknown from users order by id")
+                .mapTo(Account.class)) {
+            Account account = accounts.findFirst().get();
+            Assert.assertEquals(1, account.id);
+            Assert.assertEquals("bob", account.name);
+            Assert.assertEquals("bob_password", account.password.trim());
+        }
+
+        try (Stream<Account> accounts = sql.query("select null as id, name from users order by id")
+                .mapTo(Account.class)) {
+            Account account = accounts.findFirst().get();
+            Assert.assertEquals(0, account.id);
+            Assert.assertEquals("bob", account.name);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMapToWithoutMatchingConstructor() {
+        try (Stream<Post> posts = sql.query("select content from posts").mapTo(Post.class)) {
+            posts.count();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.Wrap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class CollectionBindingTests extends BaseTests {
+
+    private static final String SELECT_NAMES = "select name from users where id in (?) order by id";
+
+    private List<String> names(Object ids) {
+        try (Stream<String> names = sql.query(SELECT_NAMES).with(ids).map(rs -> rs.getString(1))) {
+            return names.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testExpandCollection() {
+        Assert.assertEquals(Arrays.asList("bob", "georges"), names(Arrays.asList(1, 2)));
+        Assert.assertEquals(Collections.singletonList("georges"), names(Collections.singleton(2)));
+        Assert.assertEquals(Arrays.asList("bob", "georges"), names(Arrays.asList(3, 2, 1)));
+        Assert.assertEquals(Collections.emptyList(), names(Collections.emptyList()));
+    }
+
+    @Test
+    public void testExpandArrays() {
+        Assert.assertEquals(Arrays.asList("bob", "georges"), names(new int[] { 1, 2 }));
+        Assert.assertEquals(Collections.singletonList("bob"), names(new Integer[] { 1 }));
+    }
+
+    @Test
+    public void testPaddedToPowerOfTwo() {
+        try (Query query = sql.query(SELECT_NAMES).with(Arrays.asList(1, 2, 3))) {
+            Assert.assertEquals(4, parameterCount(query.getStatement()));
+            Assert.assertEquals(2, query.map(rs -> rs.getString(1)).count());
+        }
+    }
+
+    @Test
+    public void testExpansionKeepsOtherParameters() {
+        String query = "select p.content from posts p where p.user_id in (?) and p.content <> ? and p.id > ? order by p.id";
+        try (Query q = sql.query(query)) {
+            q.set(2, "baah").setInt(3, 0).set(1, Arrays.asList(1, 2));
+            Assert.assertEquals(
+                Arrays.asList("whee", "bleh"),
+                q.map(rs -> rs.getString(1)).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testExpansionKeepsParametersBoundWithoutCollections() {
+        String query = "select p.content from posts p where p.user_id in (?) and p.content <> ? and p.id > ? order by p.id";
+        try (Query q = sql.query(query)) {
+            q.with(1, "baah", 0).set(1, Arrays.asList(1, 2));
+            Assert.assertEquals(
+                Arrays.asList("whee", "bleh"),
+                q.map(rs -> rs.getString(1)).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testExpansionWithNamedParameters() {
+        String query = "select count(*) from posts where user_id in (:users) and id in (:ids)";
+        sql.enableNamedParameters();
+        try (Query q = sql.query(query)) {
+            int count = q
+                .set("users", Arrays.asList(1, 2))
+                .set("ids", Arrays.asList(1, 2, 3, 4, 5))
+                .first(rs -> rs.getInt(1))
+                .get();
+            Assert.assertEquals(3, count);
+        }
+    }
+
+    @Test
+    public void testExpansionReusesCachedStatements() {
+        sql.enableStatementCache(8);
+        names(Arrays.asList(1, 2, 3));
+        names(Arrays.asList(2, 3, 4));
+        names(Arrays.asList(1, 2, 3, 4));
+
+        CacheStatistics statistics = sql.getStatementCacheStatistics();
+        // The unexpanded statement and the 4 parameters one
+        Assert.assertEquals(2, statistics.getMissCount());
+    }
+
+    @Test
+    public void testExpansionIsBounded() {
+        List<Integer> ids = IntStream.rangeClosed(1, 999).boxed().collect(Collectors.toList());
+        Assert.assertEquals(Arrays.asList("bob", "georges"), names(ids));
+
+        try (Query query = sql.query(SELECT_NAMES)) {
+            query.with(IntStream.rangeClosed(1, 1000).boxed().collect(Collectors.toList()));
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertTrue(expected.getMessage().contains("999"));
+        }
+        try (Query query = sql.query("select count(*) from posts where user_id in (?) and id in (?)")) {
+            query.set(1, ids);
+            query.set(2, Arrays.asList(1, 2));
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // 1001 parameters
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoExpansionOutsideLists() {
+        try (Query query = sql.query("select name from users where id = ?")) {
+            query.with(Arrays.asList(1, 2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoExpansionInBatches() {
+        try (BatchUpdate batch = sql.batchUpdate("delete from posts where id in (?)")) {
+            batch.with(Arrays.asList(1, 2));
+        }
+    }
+
+    @Test
+    public void testArray() {
+        if (database != Database.H2) {
+            return;
+        }
+        sql.bindCollections(CollectionBinding.ARRAY);
+        try (Stream<String> names = sql.query("select name from users where array_contains(?, id) order by id")
+                .with(Arrays.asList(1, 2))
+                .map(rs -> rs.getString(1))) {
+            Assert.assertEquals(Arrays.asList("bob", "georges"), names.collect(Collectors.toList()));
+        }
+        try (Stream<String> names = sql.query("select name from users where array_contains(?, id) order by id")
+                .with((Object) new int[] { 2 })
+                .map(rs -> rs.getString(1))) {
+            Assert.assertEquals(Collections.singletonList("georges"), names.collect(Collectors.toList()));
+        }
+    }
+
+    private static int parameterCount(PreparedStatement statement) {
+        return Wrap.get(() -> statement.getParameterMetaData().getParameterCount());
+    }
+}
@@ -17,6 +17,23 @@ public class CustomMappingTest extends BaseTests {
         }
     }
 
+    public interface Identifier {
+        int value();
+    }
+
+    public static class UserId implements Identifier {
+        private final int id;
+
+        public UserId(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int value() {
+            return id;
+        }
+    }
+
     @Test
     public void testCustomMapping() {
         sql.registerCustomBinding(Stuff.class, (statement, index, value) -> statement.setInt(index, value.test));
@@ -30,4 +47,18 @@ public class CustomMappingTest extends BaseTests {
         assertTrue(stuff.isPresent());
         assertEquals(4, (int) stuff.get());
     }
+
+    @Test
+    public void testCustomMappingAppliesToImplementations() {
+        sql.registerCustomBinding(Identifier.class, (statement, index, value) -> statement.setInt(index, value.value()));
+
+        try (Update update = sql.update(INSERT_INTO_TEST).with(new UserId(7))) {
+            assertEquals(1, update.count());
+        }
+
+        Optional<Integer> stuff = sql.first("select b from test", rs -> rs.getInt(1));
+
+        assertTrue(stuff.isPresent());
+        assertEquals(7, (int) stuff.get());
+    }
 }
@@ -3,7 +3,11 @@ package be.bendem.sqlstreams;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class EnumTests extends BaseTests {
 
@@ -11,6 +15,21 @@ public class EnumTests extends BaseTests {
         VALUE_1, VALUE_2
     }
 
+    public enum EnumWithBody {
+        VALUE_1 {
+            @Override
+            public String toString() {
+                return "first";
+            }
+        },
+        VALUE_2 {
+            @Override
+            public String toString() {
+                return "second";
+            }
+        }
+    }
+
     @Test
     public void insertEnum() {
         try (Update update = sql.update(INSERT_INTO_TEST).with(SomeEnum.VALUE_2)) {
@@ -21,4 +40,98 @@ public class EnumTests extends BaseTests {
         Assert.assertTrue(inserted.isPresent());
         Assert.assertEquals(SomeEnum.VALUE_2, inserted.get());
     }
+
+    @Test
+    public void insertEnumWithBody() {
+        try (Update update = sql.update(INSERT_INTO_TEST).with(EnumWithBody.VALUE_2)) {
+            Assert.assertEquals(1, update.count());
+        }
+        Optional<EnumWithBody> inserted = sql.first("select b from test", rs -> EnumWithBody.values()[rs.getInt(1)]);
+
+        Assert.assertTrue(inserted.isPresent());
+        Assert.assertEquals(EnumWithBody.VALUE_2, inserted.get());
+    }
+
+    @Test
+    public void insertEnumByName() {
+        sql.registerEnumByName(SomeEnum.class);
+
+        try (Update update = sql.update("insert into users (name, password) values (?, ?)")
+                .with(SomeEnum.VALUE_1, "password")) {
+            Assert.assertEquals(1, update.count());
+        }
+
+        Assert.assertTrue(sql.first("select id from users where name = ?", rs -> 0, "VALUE_1").isPresent());
+    }
+
+    @Test
+    public void insertEnumWithCustomCode() {
+        sql.registerEnumCodes(SomeEnum.class, Integer.class, value -> (value.ordinal() + 1) * 10);
+
+        try (Update update = sql.update(INSERT_INTO_TEST).with(SomeEnum.VALUE_2)) {
+            Assert.assertEquals(1, update.count());
+        }
+
+        Assert.assertEquals(20, (int) sql.first("select b from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void readEnumByOrdinal() {
+        sql.exec(INSERT_INTO_TEST, SomeEnum.VALUE_2);
+        sql.exec(INSERT_INTO_TEST, EnumWithBody.VALUE_1);
+
+        try (Stream<SomeEnum> values = sql.query("select b from test order by a").column(1, SomeEnum.class)) {
+            Assert.assertEquals(Arrays.asList(SomeEnum.VALUE_2, SomeEnum.VALUE_1), values.collect(Collectors.toList()));
+        }
+        try (Stream<EnumWithBody> values = sql.query("select b from test order by a").column(1, EnumWithBody.class)) {
+            Assert.assertEquals(
+                Arrays.asList(EnumWithBody.VALUE_2, EnumWithBody.VALUE_1),
+                values.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void readEnumByName() {
+        sql.registerEnumByName(SomeEnum.class);
+        sql.exec("insert into users (name, password) values (?, ?)", SomeEnum.VALUE_2, "password");
+
+        try (Stream<SomeEnum> values = sql.query("select name from users where password = ?")
+                .with("password")
+                .column(1, SomeEnum.class)) {
+            Assert.assertEquals(Collections.singletonList(SomeEnum.VALUE_2), values.collect(Collectors.toList()));
+        }
+    }
+
+    public static class EnumHolder {
+        public SomeEnum b;
+    }
+
+    @Test
+    public void readEnumWithCustomCode() {
+        sql.registerEnumCodes(SomeEnum.class, Integer.class, value -> (value.ordinal() + 1) * 10);
+        sql.exec(INSERT_INTO_TEST, SomeEnum.VALUE_1);
+        sql.exec(INSERT_INTO_TEST, SomeEnum.VALUE_2);
+
+        try (Stream<SomeEnum> values = sql.query("select b from test order by a").column(1, SomeEnum.class)) {
+            Assert.assertEquals(Arrays.asList(SomeEnum.VALUE_1, SomeEnum.VALUE_2), values.collect(Collectors.toList()));
+        }
+        try (Stream<EnumHolder> holders = sql.query("select b from test order by a").mapTo(EnumHolder.class)) {
+            Assert.assertEquals(
+                Arrays.asList(SomeEnum.VALUE_1, SomeEnum.VALUE_2),
+                holders.map(holder -> holder.b).collect(Collectors.toList()));
+        }
+
+        sql.exec(INSERT_INTO_TEST, 15);
+        try (Stream<SomeEnum> values = sql.query("select b from test where b = 15").column(1, SomeEnum.class)) {
+            values.count();
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // No constant for this code
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateCodesAreRejected() {
+        sql.registerEnumCodes(SomeEnum.class, Integer.class, value -> 1);
+    }
 }
@@ -3,6 +3,8 @@ package be.bendem.sqlstreams;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -32,4 +34,44 @@ public class GeneratedValuesTests extends BaseTests {
             Assert.assertEquals(2, update.get(0).b);
         }
     }
+
+    @Test
+    public void testInsertGeneratedKeys() {
+        try (Update update = sql.insert(INSERT_INTO_TEST).with(2)) {
+            Assert.assertArrayEquals(new long[]{ 1 }, update.generatedKeys());
+        }
+        try (Update update = sql.insert(INSERT_INTO_TEST).with(3)) {
+            List<Integer> keys = update.generatedKeys(rs -> rs.getInt(1)).collect(Collectors.toList());
+            Assert.assertEquals(Collections.singletonList(2), keys);
+        }
+    }
+
+    @Test
+    public void testBatchInsertGeneratedKeys() {
+        try (BatchUpdate batch = sql.batchInsert(INSERT_INTO_TEST)) {
+            batch.with(1).next().with(2).next().with(3).next();
+            Assert.assertArrayEquals(new long[]{ 1, 2, 3 }, batch.generatedKeys());
+
+            batch.flushThreshold(2);
+            for (int i = 0; i < 5; ++i) {
+                batch.with(i).next();
+            }
+            List<Long> keys = batch.generatedKeys(rs -> rs.getLong(1)).collect(Collectors.toList());
+            Assert.assertEquals(Arrays.asList(4L, 5L, 6L, 7L, 8L), keys);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGeneratedKeysMustBeRequested() {
+        try (Update update = sql.update(INSERT_INTO_TEST).with(1)) {
+            update.generatedKeys();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBatchGeneratedKeysMustBeRequested() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            batch.with(1).next().generatedKeys();
+        }
+    }
 }
@@ -0,0 +1,166 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class ListenerTests extends BaseTests {
+
+    static class RecordingListener implements SqlListener {
+        final List<String> events = new ArrayList<>();
+        final List<StatementInfo> statements = new ArrayList<>();
+        int fetchedRows;
+        long closedRows;
+
+        @Override
+        public void onConnectionAcquired(long nanos) {
+            Assert.assertTrue(nanos >= 0);
+            events.add("acquired");
+        }
+
+        @Override
+        public void onPrepared(StatementInfo statement, long nanos) {
+            Assert.assertTrue(nanos >= 0);
+            statements.add(statement);
+            events.add("prepared");
+        }
+
+        @Override
+        public void onExecuted(StatementInfo statement, long nanos) {
+            Assert.assertTrue(nanos >= 0);
+            events.add("executed");
+        }
+
+        @Override
+        public void onRowsAffected(StatementInfo statement, long rows) {
+            events.add("affected " + rows);
+        }
+
+        @Override
+        public void onFetched(StatementInfo statement, int rows, long nanos) {
+            Assert.assertTrue(nanos >= 0);
+            fetchedRows += rows;
+            events.add("fetched");
+        }
+
+        @Override
+        public void onClosed(StatementInfo statement, long rows, long nanos) {
+            Assert.assertTrue(nanos >= 0);
+            closedRows = rows;
+            events.add("closed");
+        }
+
+        @Override
+        public void onError(StatementInfo statement, Throwable error) {
+            events.add("error");
+        }
+    }
+
+    @Test
+    public void testUpdateEvents() {
+        RecordingListener listener = new RecordingListener();
+        sql.addListener(listener);
+
+        try (Update update = sql.update(INSERT_INTO_TEST).with(1)) {
+            update.count();
+        }
+        Assert.assertEquals(Arrays.asList("acquired", "prepared", "executed", "affected 1", "closed"), listener.events);
+        Assert.assertEquals(StatementInfo.Kind.UPDATE, listener.statements.get(0).getKind());
+        Assert.assertEquals(INSERT_INTO_TEST, listener.statements.get(0).getSql());
+        Assert.assertEquals(1, listener.closedRows);
+    }
+
+    @Test
+    public void testBatchEvents() {
+        RecordingListener listener = new RecordingListener();
+        sql.addListener(listener);
+
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            batch.with(1).next().with(2).next().with(3).next().count();
+        }
+        Assert.assertEquals(Arrays.asList("acquired", "prepared", "executed", "affected 3", "closed"), listener.events);
+        Assert.assertEquals(StatementInfo.Kind.BATCH_UPDATE, listener.statements.get(0).getKind());
+        Assert.assertEquals(3, listener.closedRows);
+    }
+
+    @Test
+    public void testQueryEvents() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < 250; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+
+        RecordingListener listener = new RecordingListener();
+        sql.addListener(listener);
+        try (Stream<Integer> stream = sql.query("select b from test").fetchSize(100).map(rs -> rs.getInt(1))) {
+            Assert.assertEquals(250, stream.count());
+        }
+
+        // Batches of 100, 100 and 50 rows
+        Assert.assertEquals(
+            Arrays.asList("acquired", "prepared", "executed", "fetched", "fetched", "fetched", "closed"),
+            listener.events);
+        Assert.assertEquals(250, listener.fetchedRows);
+        Assert.assertEquals(250, listener.closedRows);
+        Assert.assertEquals(StatementInfo.Kind.QUERY, listener.statements.get(0).getKind());
+    }
+
+    @Test
+    public void testMultipleListenersAndIds() {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        sql.addListener(first).addListener(second);
+
+        sql.exec(INSERT_INTO_TEST, 1);
+        Assert.assertEquals(1, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+
+        Assert.assertEquals(first.events, second.events);
+        List<Long> ids = first.statements.stream().map(StatementInfo::getId).collect(Collectors.toList());
+        Assert.assertEquals(2, ids.size());
+        Assert.assertNotEquals(ids.get(0), ids.get(1));
+        Assert.assertEquals(StatementInfo.Kind.EXECUTE, first.statements.get(0).getKind());
+    }
+
+    @Test
+    public void testErrorEvents() {
+        RecordingListener listener = new RecordingListener();
+        sql.addListener(listener);
+
+        try {
+            sql.exec("insert into not_a_table values (?)", 1);
+            Assert.fail();
+        } catch (UncheckedSqlException expected) {
+        }
+        Assert.assertEquals(Arrays.asList("acquired", "error", "closed"), listener.events);
+    }
+
+    @Test
+    public void testTransactionEvents() {
+        RecordingListener listener = new RecordingListener();
+        sql.addListener(listener);
+
+        try (Transaction transaction = sql.transaction()) {
+            RecordingListener local = new RecordingListener();
+            transaction.addListener(local);
+            transaction.exec(INSERT_INTO_TEST, 1);
+            transaction.commit();
+            Assert.assertEquals(Arrays.asList("prepared", "executed", "closed"), local.events);
+        }
+        Assert.assertEquals(Arrays.asList("acquired", "prepared", "executed", "closed"), listener.events);
+
+        // Listeners added to a transaction don't leak into its parent
+        RecordingListener local = new RecordingListener();
+        try (Transaction transaction = sql.transaction()) {
+            transaction.addListener(local);
+        }
+        sql.exec(INSERT_INTO_TEST, 2);
+        Assert.assertTrue(local.events.isEmpty());
+    }
+}
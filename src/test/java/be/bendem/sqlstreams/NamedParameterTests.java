@@ -0,0 +1,171 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class NamedParameterTests extends BaseTests {
+
+    public static class Credentials {
+        private final String name;
+        private final String password;
+
+        Credentials(String name, String password) {
+            this.name = name;
+            this.password = password;
+        }
+
+        public String getName() { return name; }
+        public String getPassword() { return password; }
+    }
+
+    @Test
+    public void testSetByName() {
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select id from users where name = :name")) {
+            Optional<Integer> id = query.set("name", "georges").first(rs -> rs.getInt(1));
+            Assert.assertEquals(Optional.of(2), id);
+        }
+    }
+
+    @Test
+    public void testRepeatedName() {
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select id from users where name = :name or password = :name || '_password' order by id")) {
+            List<Integer> ids = query.set("name", "bob").map(rs -> rs.getInt(1)).collect(Collectors.toList());
+            Assert.assertEquals(Collections.singletonList(1), ids);
+        }
+    }
+
+    @Test
+    public void testWithMap() {
+        sql.enableNamedParameters();
+        Map<String, Object> params = new HashMap<>();
+        params.put("name", "carol");
+        params.put("password", "carol_password");
+        try (Update update = sql.update("insert into users (name, password) values (:name, :password)")) {
+            Assert.assertEquals(1, update.with(params).count());
+        }
+
+        Optional<String> password = sql.first("select password from users where name = 'carol'", rs -> rs.getString(1));
+        Assert.assertEquals(Optional.of("carol_password"), password.map(String::trim));
+    }
+
+    @Test
+    public void testWithBean() {
+        sql.enableNamedParameters();
+        try (Update update = sql.update("insert into users (name, password) values (:name, :password)")) {
+            Assert.assertEquals(1, update.withBean(new Credentials("carol", "secret")).count());
+        }
+
+        try (Query query = sql.query("select count(*) from users where name = :NAME and password = :password")) {
+            Optional<Integer> count = query.withBean(new Credentials("carol", "secret")).first(rs -> rs.getInt(1));
+            Assert.assertEquals(Optional.of(1), count);
+        }
+    }
+
+    @Test
+    public void testNullValue() {
+        sql.enableNamedParameters();
+        try (Update update = sql.update("insert into test (b) values (:b)")) {
+            Assert.assertEquals(1, update.set("b", null).count());
+        }
+
+        Optional<Integer> count = sql.first("select count(*) from test where b is null", rs -> rs.getInt(1));
+        Assert.assertEquals(Optional.of(1), count);
+    }
+
+    @Test
+    public void testLiteralsAndCommentsAreKept() {
+        sql.enableNamedParameters();
+        String query = "select ':name' as a, /* :name */ :name as b -- :name\n"
+            + ", 'it''s :name' as c";
+        try (Query q = sql.query(query)) {
+            List<String> row = q.set("name", "x").first(rs -> Arrays.asList(rs.getString(1), rs.getString(2), rs.getString(3))).get();
+            Assert.assertEquals(Arrays.asList(":name", "x", "it's :name"), row);
+        }
+    }
+
+    @Test
+    public void testCastIsKept() {
+        if (database != Database.H2) {
+            return;
+        }
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select :value::integer + 1")) {
+            Optional<Integer> value = query.set("value", "41").first(rs -> rs.getInt(1));
+            Assert.assertEquals(Optional.of(42), value);
+        }
+    }
+
+    @Test
+    public void testDollarQuotesAreKept() {
+        if (database != Database.H2) {
+            return;
+        }
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select $$:name ?$$ as a, :name as b")) {
+            List<String> row = query.set("name", "x").first(rs -> Arrays.asList(rs.getString(1), rs.getString(2))).get();
+            Assert.assertEquals(Arrays.asList(":name ?", "x"), row);
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        if (database != Database.SQLITE) {
+            return;
+        }
+        // Handled by the driver, a repeated name is a single parameter
+        Assert.assertEquals(Optional.of(4), sql.first("select :value + :value", rs -> rs.getInt(1), 2));
+        try (Query query = sql.query("select id from users where name = :name")) {
+            query.set("name", "bob");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("enableNamedParameters"));
+        }
+    }
+
+    @Test
+    public void testUnknownName() {
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select id from users where name = :name")) {
+            query.set("nmae", "bob");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(":nmae"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNameWithoutNamedParameters() {
+        sql.enableNamedParameters();
+        try (Query query = sql.query("select id from users where name = ?")) {
+            query.set("name", "bob");
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        sql.enableNamedParameters();
+        try (BatchUpdate batch = sql.batchUpdate("insert into test (b) values (:b)")) {
+            int count = batch
+                .set("b", 2).next()
+                .set("b", 3).next()
+                .set("b", 4).next()
+                .count();
+            Assert.assertEquals(3, count);
+        }
+
+        try (Stream<Integer> query = sql.query("select b from test order by 1").map(rs -> rs.getInt(1))) {
+            Assert.assertEquals(Arrays.asList(2, 3, 4), query.collect(Collectors.toList()));
+        }
+    }
+}
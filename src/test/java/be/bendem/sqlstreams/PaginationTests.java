@@ -0,0 +1,118 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class PaginationTests extends BaseTests {
+
+    private static final int ROWS = 25;
+
+    private void insertRows() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 1; i <= ROWS; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+    }
+
+    private static List<Integer> range(int from, int to) {
+        return IntStream.rangeClosed(from, to).boxed().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testPaginate() {
+        insertRows();
+        try (Stream<Integer> stream = sql.query("select a, b from test where b > ?").with(5)
+                .paginate("a", 7, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(range(6, ROWS), stream.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testPaginateFullLastPage() {
+        insertRows();
+        try (Stream<Integer> stream = sql.query("select a, b from test").with().paginate("a", 5, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(range(1, ROWS), stream.collect(Collectors.toList()));
+        }
+        try (Stream<Integer> stream = sql.query("select a, b from test where b < 0").with().paginate("a", 5, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(Collections.emptyList(), stream.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testPaginateNamedAndCollectionParameters() {
+        insertRows();
+        sql.enableNamedParameters();
+        try (Stream<Integer> stream = sql.query("select a, b from test where b in (:values) or b > :min")
+                .set("values", Arrays.asList(1, 3, 5))
+                .set("min", 20)
+                .paginate("a", 2, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(Arrays.asList(1, 3, 5, 21, 22, 23, 24, 25), stream.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testConnectionReleasedBetweenPages() {
+        insertRows();
+        List<Integer> values = new ArrayList<>();
+        try (Stream<Integer> stream = sql.query("select a, b from test").with().paginate("a", 10, rs -> rs.getInt("b"))) {
+            stream.forEach(value -> {
+                // The single connection of this instance is not held by the pagination
+                values.add(sql.first("select b from test where b = ?", rs -> rs.getInt(1), value).get());
+            });
+        }
+        Assert.assertEquals(range(1, ROWS), values);
+    }
+
+    @Test
+    public void testPaginateSeesNewRows() {
+        insertRows();
+        List<Integer> values = new ArrayList<>();
+        try (Stream<Integer> stream = sql.query("select a, b from test").with().paginate("a", 10, rs -> rs.getInt("b"))) {
+            stream.forEach(value -> {
+                if (value == 1) {
+                    sql.exec(INSERT_INTO_TEST, 100);
+                }
+                values.add(value);
+            });
+        }
+        Assert.assertEquals(ROWS + 1, values.size());
+        Assert.assertEquals(100, values.get(ROWS).intValue());
+    }
+
+    @Test
+    public void testPaginatePrefetch() {
+        insertRows();
+        try (Stream<Integer> stream = sql.query("select a, b from test").prefetch(1).with()
+                .paginate("a", 4, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(range(1, ROWS), stream.collect(Collectors.toList()));
+        }
+        try (Stream<Integer> stream = sql.query("select a, b from test").prefetch(1).with()
+                .paginate("a", 4, rs -> rs.getInt("b"))) {
+            Assert.assertEquals(range(1, 6), stream.limit(6).collect(Collectors.toList()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPaginateRequiresSql() {
+        try (Query query = sql.query(conn -> conn.prepareStatement("select a from test"))) {
+            query.paginate("a", 10, rs -> rs.getInt(1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPaginateRequiresPositivePageSize() {
+        try (Query query = sql.query("select a from test")) {
+            query.paginate("a", 0, rs -> rs.getInt(1));
+        }
+    }
+}
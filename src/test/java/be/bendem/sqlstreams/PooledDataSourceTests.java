@@ -0,0 +1,194 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.BorrowedConnection;
+import be.bendem.sqlstreams.util.PooledDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PooledDataSourceTests {
+
+    private PooledDataSource pool;
+
+    @Before
+    public void setup() {
+        pool = new PooledDataSource(
+            () -> DriverManager.getConnection("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1"),
+            2, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void cleanup() {
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws SQLException {
+        Connection first = pool.getConnection();
+        first.close();
+        Assert.assertTrue(first.isClosed());
+
+        Connection second = pool.getConnection();
+        Assert.assertSame(first.unwrap(Connection.class), second.unwrap(Connection.class));
+        Assert.assertSame(((BorrowedConnection) first).identity(), ((BorrowedConnection) second).identity());
+        Assert.assertTrue(first.isClosed());
+        Assert.assertFalse(second.isClosed());
+        Assert.assertEquals(1, pool.getActiveConnections());
+        second.close();
+
+        Assert.assertEquals(0, pool.getActiveConnections());
+        Assert.assertEquals(1, pool.getIdleConnections());
+        Assert.assertEquals(1, pool.getTotalConnections());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws SQLException {
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        Assert.assertNotSame(first, second);
+
+        try {
+            pool.getConnection();
+            Assert.fail("pool should be exhausted");
+        } catch (SQLTransientConnectionException expected) {}
+        Assert.assertTrue(pool.getWaitTime(TimeUnit.MILLISECONDS) >= 100);
+
+        first.close();
+        try (Connection third = pool.getConnection()) {
+            Assert.assertSame(first.unwrap(Connection.class), third.unwrap(Connection.class));
+        }
+        second.close();
+    }
+
+    @Test
+    public void testCloseReleasesOnce() throws SQLException {
+        Connection first = pool.getConnection();
+        first.close();
+        Connection second = pool.getConnection();
+        Assert.assertSame(first.unwrap(Connection.class), second.unwrap(Connection.class));
+
+        // A late close from the previous borrower doesn't return the connection of the current one
+        first.close();
+        Assert.assertFalse(second.isClosed());
+        Assert.assertEquals(1, pool.getActiveConnections());
+        second.close();
+        Assert.assertEquals(0, pool.getActiveConnections());
+    }
+
+    @Test
+    public void testStatementsCloseConnectionOnce() {
+        try (Sql sql = Sql.connect(pool)) {
+            Query query = sql.query("select 1");
+            Assert.assertEquals(1, query.first(rs -> rs.getInt(1)).get().intValue());
+            query.close();
+            try (Query other = sql.query("select 2")) {
+                Assert.assertEquals(1, pool.getActiveConnections());
+                query.close();
+                Assert.assertEquals(1, pool.getActiveConnections());
+                Assert.assertEquals(2, other.first(rs -> rs.getInt(1)).get().intValue());
+            }
+            Assert.assertEquals(0, pool.getActiveConnections());
+        }
+    }
+
+    @Test
+    public void testStatementCacheAcrossBorrows() {
+        try (Sql sql = Sql.connect(pool).enableStatementCache(4)) {
+            for (int i = 0; i < 3; ++i) {
+                Assert.assertEquals(i, sql.first("select ?", rs -> rs.getInt(1), i).get().intValue());
+            }
+            Assert.assertEquals(2, sql.getStatementCacheStatistics().getHitCount());
+        }
+    }
+
+    @Test
+    public void testBrokenConnectionIsEvicted() throws SQLException {
+        Connection connection = pool.getConnection();
+        connection.unwrap(Connection.class).close();
+        connection.close();
+
+        Assert.assertEquals(0, pool.getTotalConnections());
+        Assert.assertEquals(1, pool.getEvictedConnections());
+
+        try (Connection other = pool.getConnection()) {
+            Assert.assertNotSame(connection, other);
+            Assert.assertTrue(other.isValid(1));
+        }
+    }
+
+    @Test
+    public void testUncommittedWorkIsRolledBack() {
+        try (Sql sql = Sql.connect(pool)) {
+            sql.exec("create table pooled (a integer)");
+            try (Transaction transaction = sql.transaction()) {
+                transaction.exec("insert into pooled values (1)");
+            }
+            Assert.assertEquals(0, sql.query("select * from pooled").map(rs -> 0).count());
+            sql.exec("drop table pooled");
+        }
+    }
+
+    @Test
+    public void testReleaseConcurrentWithClose() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 1000; ++i) {
+                List<Connection> physical = new ArrayList<>();
+                PooledDataSource closing = new PooledDataSource(() -> {
+                    Connection connection = DriverManager.getConnection("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1");
+                    physical.add(connection);
+                    return connection;
+                }, 1, 100, TimeUnit.MILLISECONDS);
+                Connection connection = closing.getConnection();
+
+                CyclicBarrier barrier = new CyclicBarrier(2);
+                Future<?> release = executor.submit(() -> {
+                    barrier.await();
+                    connection.close();
+                    return null;
+                });
+                barrier.await();
+                closing.close();
+                release.get();
+
+                // Whichever finishes last closes the physical connection
+                Assert.assertTrue(physical.get(0).isClosed());
+                Assert.assertEquals(0, closing.getTotalConnections());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentUsage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (Sql sql = Sql.connect(new PooledDataSource(
+                () -> DriverManager.getConnection("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1"),
+                2, 10, TimeUnit.SECONDS))) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                int value = i;
+                results.add(executor.submit(() -> sql.first("select ?", rs -> rs.getInt(1), value).get()));
+            }
+            for (int i = 0; i < results.size(); ++i) {
+                Assert.assertEquals(i, (int) results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
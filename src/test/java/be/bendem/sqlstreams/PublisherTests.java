@@ -0,0 +1,167 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PublisherTests extends BaseTests {
+
+    static class RecordingSubscriber<T> implements Subscriber<T> {
+        final List<T> values = new ArrayList<>();
+        final CountDownLatch terminated = new CountDownLatch(1);
+        final long batch;
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+        long pending;
+
+        RecordingSubscriber(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            pending = batch;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+            if (--pending == 0) {
+                pending = batch;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            terminated.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            terminated.countDown();
+        }
+    }
+
+    private void insert(int rows) {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < rows; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+    }
+
+    @Test
+    public void testPublish() {
+        insert(100);
+
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>(7);
+        QueryPublishers.publish(sql.query("select b from test order by b"), rs -> rs.getInt(1)).subscribe(subscriber);
+
+        Assert.assertNull(subscriber.error);
+        Assert.assertTrue(subscriber.completed);
+        Assert.assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), subscriber.values);
+
+        // The connection was released on completion
+        Assert.assertEquals(100, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPublishReadsOnlyRequestedRows() {
+        insert(10);
+
+        List<Integer> values = new ArrayList<>();
+        Subscription[] subscription = new Subscription[1];
+        boolean[] completed = new boolean[1];
+        QueryPublishers.publish(sql.query("select b from test order by b"), rs -> rs.getInt(1)).subscribe(new Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(Integer value) {
+                values.add(value);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Assert.fail(throwable.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+
+        // Nothing is executed before the first request
+        Assert.assertTrue(values.isEmpty());
+        subscription[0].request(3);
+        Assert.assertEquals(3, values.size());
+        subscription[0].request(2);
+        Assert.assertEquals(5, values.size());
+        subscription[0].cancel();
+        subscription[0].request(10);
+        Assert.assertEquals(5, values.size());
+        Assert.assertFalse(completed[0]);
+
+        // The connection was released on cancel
+        Assert.assertEquals(10, (int) sql.first("select count(*) from test", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPublishOnExecutor() throws InterruptedException {
+        insert(500);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<>(Long.MAX_VALUE);
+            QueryPublishers.publish(sql.query("select b from test order by b"), rs -> rs.getInt(1), executor).subscribe(subscriber);
+            Assert.assertTrue(subscriber.terminated.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(subscriber.completed);
+            Assert.assertEquals(500, subscriber.values.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPublishErrors() {
+        RecordingSubscriber<Integer> invalid = new RecordingSubscriber<>(0);
+        QueryPublishers.publish(sql.query("select b from test"), rs -> rs.getInt(1)).subscribe(invalid);
+        Assert.assertTrue(invalid.error instanceof IllegalArgumentException);
+
+        insert(1);
+        RecordingSubscriber<Integer> failing = new RecordingSubscriber<>(1);
+        QueryPublishers.<Integer>publish(sql.query("select b from test"), rs -> {
+            throw new IllegalStateException("failed");
+        }).subscribe(failing);
+        Assert.assertTrue(failing.error instanceof IllegalStateException);
+
+        Publisher<Integer> publisher = QueryPublishers.publish(sql.query("select b from test"), rs -> rs.getInt(1));
+        RecordingSubscriber<Integer> first = new RecordingSubscriber<>(1);
+        publisher.subscribe(first);
+        Assert.assertTrue(first.completed);
+        RecordingSubscriber<Integer> second = new RecordingSubscriber<>(1);
+        publisher.subscribe(second);
+        Assert.assertTrue(second.error instanceof IllegalStateException);
+    }
+}
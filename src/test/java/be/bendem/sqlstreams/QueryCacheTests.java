@@ -0,0 +1,188 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SqlFunction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class QueryCacheTests extends BaseTests {
+
+    private static final SqlFunction<ResultSet, String> NAME = rs -> rs.getString("name");
+
+    private List<String> userNames() {
+        try (Stream<String> names = sql.cachedQuery("select name from users order by id", "users").map("name", NAME)) {
+            return names.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void testHit() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+
+        Assert.assertEquals(Arrays.asList("bob", "georges"), userNames());
+        Assert.assertEquals(Arrays.asList("bob", "georges"), userNames());
+
+        CacheStatistics statistics = sql.getQueryCacheStatistics();
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(1, statistics.getMissCount());
+        Assert.assertEquals(1, statistics.getLoadCount());
+        Assert.assertTrue(statistics.getTotalLoadTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void testKeyedByParameters() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        AtomicInteger mapped = new AtomicInteger();
+        SqlFunction<ResultSet, String> mapping = rs -> {
+            mapped.incrementAndGet();
+            return rs.getString(1);
+        };
+
+        for (int i = 0; i < 2; ++i) {
+            for (int id = 1; id <= 2; ++id) {
+                CachedQuery query = sql.cachedQuery("select name from users where id = ?", "users").with(id);
+                Assert.assertTrue(query.first("name", mapping).isPresent());
+            }
+        }
+
+        Assert.assertEquals(2, mapped.get());
+        Assert.assertEquals(2, sql.getQueryCacheStatistics().getHitCount());
+    }
+
+    @Test
+    public void testInvalidatedByUpdate() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        userNames();
+
+        // Unrelated table
+        sql.exec("insert into test (b) values (1)");
+        userNames();
+        Assert.assertEquals(1, sql.getQueryCacheStatistics().getHitCount());
+
+        try (Update update = sql.update("update \"USERS\" set name = ? where id = ?").with("bobby", 1)) {
+            Assert.assertEquals(1, update.count());
+        }
+        Assert.assertEquals(Arrays.asList("bobby", "georges"), userNames());
+        Assert.assertEquals(2, sql.getQueryCacheStatistics().getMissCount());
+    }
+
+    @Test
+    public void testInvalidatedByTransactionCommit() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        try (Transaction transaction = sql.transaction()) {
+            transaction.exec("insert into users (name, password) values ('carol', 'carol_password')");
+            transaction.commit();
+        }
+
+        Assert.assertEquals(Arrays.asList("bob", "georges", "carol"), userNames());
+    }
+
+    @Test
+    public void testManualInvalidation() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        userNames();
+        sql.invalidateQueryCache("public.users");
+        userNames();
+        sql.invalidateQueryCache();
+        userNames();
+
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getHitCount());
+        Assert.assertEquals(3, sql.getQueryCacheStatistics().getMissCount());
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        sql.enableQueryCache(100, 10, TimeUnit.MILLISECONDS);
+        userNames();
+        Thread.sleep(20);
+        userNames();
+
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getHitCount());
+    }
+
+    @Test
+    public void testEviction() {
+        sql.enableQueryCache(3, 1, TimeUnit.MINUTES);
+        userNames();
+        try (Stream<Integer> posts = sql.cachedQuery("select id from posts order by id", "posts").column(1, Integer.class)) {
+            Assert.assertEquals(Arrays.asList(1, 2, 3), posts.collect(Collectors.toList()));
+        }
+        // Caching the 3 posts evicted the 2 users
+        userNames();
+
+        CacheStatistics statistics = sql.getQueryCacheStatistics();
+        Assert.assertEquals(0, statistics.getHitCount());
+        Assert.assertEquals(2, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testDisabled() {
+        userNames();
+        userNames();
+
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getHitCount());
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getMissCount());
+    }
+
+    @Test
+    public void testKeyedByExplicitKey() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        AtomicInteger mapped = new AtomicInteger();
+
+        for (int i = 0; i < 3; ++i) {
+            // A new mapping instance for each evaluation
+            String suffix = "!";
+            CachedQuery query = sql.cachedQuery("select name from users where id = ?", "users").with(1);
+            Assert.assertEquals("bob!", query.first("exclaimed name", rs -> {
+                mapped.incrementAndGet();
+                return rs.getString(1) + suffix;
+            }).get());
+        }
+        CachedQuery query = sql.cachedQuery("select name from users where id = ?", "users").with(1);
+        Assert.assertEquals("bob", query.first("name", rs -> rs.getString(1)).get());
+
+        Assert.assertEquals(1, mapped.get());
+        Assert.assertEquals(2, sql.getQueryCacheStatistics().getHitCount());
+        Assert.assertEquals(2, sql.getQueryCacheStatistics().getMissCount());
+    }
+
+    @Test
+    public void testHitDoesNotPrepare() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        userNames();
+
+        // The single connection of this instance is held by another query
+        try (Query query = sql.query("select id from users")) {
+            Assert.assertEquals(Arrays.asList("bob", "georges"), userNames());
+            Assert.assertNotNull(query.getStatement());
+        }
+        Assert.assertEquals(1, sql.getQueryCacheStatistics().getHitCount());
+    }
+
+    @Test
+    public void testNotCachedInTransaction() {
+        sql.enableQueryCache(100, 1, TimeUnit.MINUTES);
+        try (Transaction transaction = sql.transaction()) {
+            for (int i = 0; i < 2; ++i) {
+                try (Stream<String> names = transaction.cachedQuery("select name from users order by id", "users").map("name", NAME)) {
+                    Assert.assertEquals(Arrays.asList("bob", "georges"), names.collect(Collectors.toList()));
+                }
+            }
+        }
+
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getHitCount());
+        Assert.assertEquals(0, sql.getQueryCacheStatistics().getMissCount());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testKeyRequired() {
+        sql.cachedQuery("select name from users", "users").map(null, NAME);
+    }
+}
@@ -1,10 +1,26 @@
 package be.bendem.sqlstreams;
 
+import be.bendem.sqlstreams.util.SqlFunction;
+import be.bendem.sqlstreams.util.Wrap;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 public class QueryTests extends BaseTests {
@@ -60,4 +76,245 @@ public class QueryTests extends BaseTests {
         Assert.assertTrue(sql.first("select * from users", rs -> 1).isPresent());
     }
 
+    @Test
+    public void testStreaming() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < 100; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+
+        try (Stream<Integer> query = sql.query("select b from test order by b")
+                .streaming(10)
+                .map(rs -> {
+                    Assert.assertFalse(rs.getStatement().getConnection().getAutoCommit());
+                    return rs.getInt(1);
+                })) {
+            Assert.assertEquals(4950, query.mapToInt(Integer::intValue).sum());
+        }
+    }
+
+    @Test
+    public void testFetchSizeIsRestored() {
+        sql.enableStatementCache(1);
+
+        int defaultFetchSize;
+        try (Query query = sql.query("select * from users")) {
+            defaultFetchSize = Wrap.get(query.getStatement()::getFetchSize);
+            query.fetchSize(defaultFetchSize + 5);
+            Assert.assertEquals(2, query.map(rs -> 0).count());
+        }
+
+        try (Query query = sql.query("select * from users")) {
+            Assert.assertEquals(defaultFetchSize, (int) Wrap.get(query.getStatement()::getFetchSize));
+        }
+    }
+
+    @Test
+    public void testParallelMapping() throws Exception {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < 1000; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+
+        AtomicInteger mapping = new AtomicInteger();
+        AtomicBoolean first = new AtomicBoolean(true);
+        CountDownLatch concurrent = new CountDownLatch(1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (Stream<Integer> query = sql.query("select b as value from test order by b")
+                .parallelBatchSize(16)
+                .map(rs -> {
+                    if (mapping.incrementAndGet() > 1) {
+                        concurrent.countDown();
+                    }
+                    if (first.getAndSet(false)) {
+                        // Rows are mapped on the worker threads, another one gets mapped in the meantime
+                        try {
+                            concurrent.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    int value = rs.getInt("VALUE");
+                    mapping.decrementAndGet();
+                    return value;
+                })) {
+            List<Integer> expected = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            Assert.assertEquals(expected, pool.submit(() -> query.parallel().collect(Collectors.toList())).get());
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(0, concurrent.getCount());
+
+        // Values are read by the driver in both cases
+        String select = "select b, b > 500, b * 1099511627776, b / 3.0 from test order by b";
+        SqlFunction<ResultSet, String> toString = rs -> rs.getString(1) + ":" + rs.getString(2)
+            + ":" + rs.getLong(3) + ":" + rs.getString(4) + ":" + rs.getObject(3);
+        List<String> sequential;
+        try (Stream<String> query = sql.query(select).map(toString)) {
+            sequential = query.collect(Collectors.toList());
+        }
+        try (Stream<String> query = sql.query(select).parallelBatchSize(16).map(toString)) {
+            Assert.assertEquals(sequential, query.parallel().collect(Collectors.toList()));
+        }
+
+        try (Stream<String> query = sql.query("select id, name from users order by id")
+                .map(rs -> rs.getLong(1) + ":" + rs.getString("name"))) {
+            Assert.assertEquals(Arrays.asList("1:bob", "2:georges"), query.parallel().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testPrefetch() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < 1000; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+
+        Thread consumer = Thread.currentThread();
+        try (Stream<Integer> query = sql.query("select b from test order by b")
+                .prefetch(8)
+                .map(rs -> {
+                    Assert.assertNotSame(consumer, Thread.currentThread());
+                    return rs.getInt(1);
+                })) {
+            List<Integer> expected = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+            Assert.assertEquals(expected, query.collect(Collectors.toList()));
+        }
+
+        // Closing before the end stops the reader and releases the result set
+        try (Stream<Integer> query = sql.query("select b from test order by b").prefetch(4).map(rs -> rs.getInt(1))) {
+            Iterator<Integer> iterator = query.iterator();
+            Assert.assertEquals(0, (int) iterator.next());
+            Assert.assertEquals(1, (int) iterator.next());
+        }
+        try (Stream<Integer> query = sql.query("select b from test").prefetch(16).map(rs -> 0)) {
+            Assert.assertEquals(1000, query.count());
+        }
+    }
+
+    @Test
+    public void testPrefetchPropagatesFailures() {
+        try (BatchUpdate batch = sql.batchUpdate(INSERT_INTO_TEST)) {
+            for (int i = 0; i < 10; ++i) {
+                batch.with(i).next();
+            }
+            batch.count();
+        }
+
+        List<Integer> consumed = new ArrayList<>();
+        try (Stream<Integer> query = sql.query("select b from test order by b")
+                .prefetch(2)
+                .map(rs -> {
+                    if (rs.getInt(1) == 5) {
+                        throw new SQLException("failure");
+                    }
+                    return rs.getInt(1);
+                })) {
+            query.forEach(consumed::add);
+            Assert.fail();
+        } catch (UncheckedSqlException e) {
+            Assert.assertEquals("failure", e.getCause().getMessage());
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), consumed);
+    }
+
+    @Test
+    public void testPrefetchRejected() {
+        try (Query query = sql.query("select b from test").prefetch(2, task -> {
+            throw new RejectedExecutionException("rejected");
+        })) {
+            query.map(rs -> rs.getInt(1));
+            Assert.fail();
+        } catch (RejectedExecutionException expected) {
+            // The query was closed
+        }
+        // The connection was released
+        Assert.assertEquals(2, (int) sql.first("select count(*) from users", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPrefetchClosedBeforeReaderStarts() {
+        List<Runnable> tasks = new ArrayList<>();
+        Stream<Integer> query = sql.query("select b from test").prefetch(2, tasks::add).map(rs -> rs.getInt(1));
+        query.close();
+        Assert.assertEquals(1, tasks.size());
+        // A reader started late doesn't touch the closed result set
+        tasks.get(0).run();
+        Assert.assertEquals(2, (int) sql.first("select count(*) from users", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPrefetchOnCallingThreadRejected() {
+        try (Query query = sql.query("select b from test").prefetch(2, Runnable::run)) {
+            query.map(rs -> rs.getInt(1));
+            Assert.fail();
+        } catch (RejectedExecutionException expected) {
+            // The reader would have blocked the calling thread
+        }
+        Assert.assertEquals(2, (int) sql.first("select count(*) from users", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPrefetchCloseDoesntWaitForStuckReader() throws InterruptedException {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Stream<String> names = sql.query("select id, name from users order by id").prefetch(1, task -> new Thread(() -> {
+            task.run();
+            stopped.countDown();
+        }).start()).map(rs -> {
+            if (rs.getInt(1) == 2) {
+                reading.countDown();
+                // Ignores the cancellation of the statement
+                try {
+                    stuck.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return rs.getString(2);
+        });
+        Assert.assertEquals("bob", names.iterator().next());
+        Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+        try {
+            names.close();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // The reader didn't stop
+        } finally {
+            stuck.countDown();
+        }
+        Assert.assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, (int) sql.first("select count(*) from users", rs -> rs.getInt(1)).get());
+    }
+
+    @Test
+    public void testPrimitiveStreams() {
+        try (IntStream ids = sql.query("select id from users order by id").mapToInt(1)) {
+            Assert.assertArrayEquals(new int[] { 1, 2 }, ids.toArray());
+        }
+        try (LongStream ids = sql.query("select id from users where id > ?").with(1).mapToLong(rs -> rs.getLong("id"))) {
+            Assert.assertArrayEquals(new long[] { 2 }, ids.toArray());
+        }
+        try (DoubleStream ids = sql.query("select id from users").mapToDouble(1)) {
+            Assert.assertEquals(3.0, ids.sum(), 0.0);
+        }
+    }
+
+    @Test
+    public void testColumn() {
+        try (Stream<String> names = sql.query("select name from users order by id").column(1, String.class)) {
+            Assert.assertEquals(Arrays.asList("bob", "georges"), names.collect(Collectors.toList()));
+        }
+        try (Stream<Integer> values = sql.query("select null from users").column(1, Integer.class)) {
+            Assert.assertEquals(Arrays.asList(null, null), values.collect(Collectors.toList()));
+        }
+    }
 }
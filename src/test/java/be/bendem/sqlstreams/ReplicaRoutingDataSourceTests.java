@@ -0,0 +1,173 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.PooledDataSource;
+import be.bendem.sqlstreams.util.ReplicaRoutingDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ReplicaRoutingDataSourceTests {
+
+    private static final class Database extends JdbcDataSource {
+        private final Connection keepAlive;
+        private volatile boolean failing;
+
+        private Database(String name) throws SQLException {
+            setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+            keepAlive = super.getConnection();
+            keepAlive.createStatement().execute("create table db (name varchar(10))");
+            keepAlive.createStatement().execute("insert into db values ('" + name + "')");
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (failing) {
+                throw new SQLTransientConnectionException("down");
+            }
+            return super.getConnection();
+        }
+
+        private void drop() throws SQLException {
+            keepAlive.createStatement().execute("drop all objects delete files");
+            keepAlive.close();
+        }
+    }
+
+    private Database primary;
+    private Database replica1;
+    private Database replica2;
+
+    @Before
+    public void setup() throws SQLException {
+        primary = new Database("primary");
+        replica1 = new Database("replica1");
+        replica2 = new Database("replica2");
+    }
+
+    @After
+    public void cleanup() throws SQLException {
+        primary.drop();
+        replica1.drop();
+        replica2.drop();
+    }
+
+    private static String name(Sql sql) {
+        return sql.first("select name from db", rs -> rs.getString(1)).get();
+    }
+
+    @Test
+    public void testReadsGoToReplicas() {
+        try (Sql sql = Sql.connect(primary, replica1, replica2)) {
+            List<String> reads = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                reads.add(name(sql));
+            }
+            Assert.assertEquals(Arrays.asList("replica1", "replica2", "replica1", "replica2"), reads);
+
+            sql.update("update db set name = ?").with("written").count();
+            try (Transaction transaction = sql.transaction()) {
+                Assert.assertEquals("written", name(transaction));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundRobin() throws SQLException {
+        ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(
+            primary, Arrays.asList(replica1, replica2), ReplicaRoutingDataSource.Routing.ROUND_ROBIN);
+        Sql sql = Sql.connect(dataSource);
+        // Open connections don't matter
+        try (Connection open = dataSource.getReadConnection()) {
+            Assert.assertEquals("replica2", name(sql));
+            Assert.assertEquals("replica1", name(sql));
+            Assert.assertEquals("replica2", name(sql));
+        }
+        Assert.assertEquals(0, dataSource.getOutstandingReads());
+    }
+
+    @Test
+    public void testLeastOutstanding() throws SQLException {
+        ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(primary, Arrays.asList(replica1, replica2));
+        Sql sql = Sql.connect(dataSource);
+        try (Connection open = dataSource.getReadConnection()) {
+            Assert.assertEquals(1, dataSource.getOutstandingReads());
+            Assert.assertEquals("replica2", name(sql));
+            Assert.assertEquals("replica2", name(sql));
+        }
+        Assert.assertEquals(0, dataSource.getOutstandingReads());
+    }
+
+    @Test
+    public void testLeastOutstandingReusesCachedStatements() {
+        try (PooledDataSource pool = new PooledDataSource(replica1, 1);
+             Sql sql = Sql.connect(new ReplicaRoutingDataSource(primary, Arrays.asList(pool)))) {
+            sql.enableStatementCache(2);
+            Assert.assertEquals("replica1", name(sql));
+            Assert.assertEquals("replica1", name(sql));
+
+            CacheStatistics statistics = sql.getStatementCacheStatistics();
+            Assert.assertEquals(1, statistics.getMissCount());
+            Assert.assertEquals(1, statistics.getHitCount());
+        }
+    }
+
+    @Test
+    public void testFailingReplicasAreSkipped() {
+        ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(primary, Arrays.asList(replica1, replica2));
+        Sql sql = Sql.connect(dataSource);
+        replica1.failing = true;
+        Assert.assertEquals("replica2", name(sql));
+        Assert.assertEquals(1, dataSource.getHealthyReplicas());
+        Assert.assertEquals("replica2", name(sql));
+
+        replica2.failing = true;
+        Assert.assertEquals("primary", name(sql));
+        Assert.assertEquals(0, dataSource.getHealthyReplicas());
+    }
+
+    @Test
+    public void testFailingReplicasAreRetried() throws InterruptedException {
+        ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(primary, Arrays.asList(replica1));
+        Sql sql = Sql.connect(dataSource);
+        replica1.failing = true;
+        Assert.assertEquals("primary", name(sql));
+
+        replica1.failing = false;
+        Assert.assertEquals("primary", name(sql));
+        Thread.sleep(150);
+        Assert.assertEquals(1, dataSource.getHealthyReplicas());
+        Assert.assertEquals("replica1", name(sql));
+    }
+
+    @Test
+    public void testReadOnlyTransactions() {
+        try (Sql sql = Sql.connect(primary, replica1)) {
+            try (Transaction transaction = sql.readOnlyTransaction()) {
+                Assert.assertEquals("replica1", name(transaction));
+                // H2 doesn't enforce read-only connections, statements of the transaction all go to the replica
+                transaction.update("update db set name = ?").with("written").count();
+                Assert.assertEquals("written", name(transaction));
+            }
+            try (Transaction transaction = sql.transaction()) {
+                Assert.assertEquals("primary", name(transaction));
+            }
+        }
+    }
+
+    @Test
+    public void testReadOnlyTransactionsWithoutReplicas() {
+        Sql sql = Sql.connect(primary);
+        try (Transaction transaction = sql.readOnlyTransaction()) {
+            Assert.assertEquals("primary", name(transaction));
+        }
+    }
+}
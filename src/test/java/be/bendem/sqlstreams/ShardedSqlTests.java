@@ -0,0 +1,231 @@
+package be.bendem.sqlstreams;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class ShardedSqlTests {
+
+    private static final int SHARDS = 3;
+    private static final int TENANTS = 30;
+
+    private final List<Connection> keepAlive = new ArrayList<>();
+    private ShardedSql<Integer> sql;
+
+    @Before
+    public void setup() throws SQLException {
+        List<JdbcDataSource> dataSources = new ArrayList<>();
+        for (int i = 0; i < SHARDS; ++i) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1");
+            Connection connection = dataSource.getConnection();
+            connection.createStatement().execute("create table tenants (id int primary key, name varchar(20))");
+            keepAlive.add(connection);
+            dataSources.add(dataSource);
+        }
+        sql = ShardedSql.connect(dataSources, Integer::intValue);
+
+        for (int tenant = 0; tenant < TENANTS; ++tenant) {
+            sql.update(tenant, "insert into tenants values (?, ?)").with(tenant, "tenant" + tenant).count();
+        }
+    }
+
+    @After
+    public void cleanup() throws SQLException {
+        sql.close();
+        for (Connection connection : keepAlive) {
+            connection.createStatement().execute("drop all objects delete files");
+            connection.close();
+        }
+        keepAlive.clear();
+    }
+
+    @Test
+    public void testRoutesByKey() {
+        Assert.assertSame(sql.shards().get(2), sql.shard(5));
+        Assert.assertSame(sql.shards().get(2), sql.shard(-1));
+
+        for (int shard = 0; shard < SHARDS; ++shard) {
+            List<Integer> ids = sql.shards().get(shard).query("select id from tenants order by id").with()
+                .map(rs -> rs.getInt(1))
+                .collect(Collectors.toList());
+            int first = shard;
+            Assert.assertEquals(
+                IntStream.range(0, TENANTS).filter(i -> i % SHARDS == first).boxed().collect(Collectors.toList()),
+                ids);
+        }
+
+        Assert.assertEquals("tenant7", sql.query(7, "select name from tenants where id = ?").with(7)
+            .first(rs -> rs.getString(1)).get());
+        Assert.assertFalse(sql.query(8, "select name from tenants where id = ?").with(7)
+            .first(rs -> rs.getString(1)).isPresent());
+    }
+
+    @Test
+    public void testScatterUnordered() {
+        try (Stream<Integer> stream = sql.queryAll("select id from tenants where id >= ?").with(10).map(rs -> rs.getInt(1))) {
+            List<Integer> ids = stream.sorted().collect(Collectors.toList());
+            Assert.assertEquals(IntStream.range(10, TENANTS).boxed().collect(Collectors.toList()), ids);
+        }
+    }
+
+    @Test
+    public void testScatterOrdered() {
+        try (Stream<String> stream = sql.queryAll("select name from tenants order by name")
+                .prefetch(2)
+                .map(rs -> rs.getString(1), Comparator.naturalOrder())) {
+            List<String> names = stream.collect(Collectors.toList());
+            Assert.assertEquals(
+                IntStream.range(0, TENANTS).mapToObj(i -> "tenant" + i).sorted().collect(Collectors.toList()),
+                names);
+        }
+    }
+
+    public static class Tenant {
+        public int id;
+        public String name;
+    }
+
+    @Test
+    public void testScatterMapTo() {
+        try (Stream<Tenant> stream = sql.queryAll("select * from tenants order by id desc")
+                .mapTo(Tenant.class, Comparator.comparingInt((Tenant tenant) -> tenant.id).reversed())) {
+            List<Integer> ids = stream.map(tenant -> tenant.id).collect(Collectors.toList());
+            Assert.assertEquals(TENANTS, ids.size());
+            for (int i = 0; i < TENANTS; ++i) {
+                Assert.assertEquals(TENANTS - 1 - i, ids.get(i).intValue());
+            }
+        }
+        Assert.assertEquals(TENANTS, sql.queryAll("select * from tenants").mapTo(Tenant.class).count());
+    }
+
+    @Test
+    public void testScatterClosedEarly() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < 10; ++i) {
+                try (Stream<Integer> stream = sql.queryAll("select id from tenants")
+                        .prefetch(1)
+                        .executor(executor)
+                        .map(rs -> rs.getInt(1))) {
+                    Assert.assertEquals(2, stream.limit(2).count());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // The readers were stopped, the shards are still usable
+        Assert.assertEquals(TENANTS, sql.queryAll("select id from tenants").map(rs -> rs.getInt(1)).count());
+    }
+
+    @Test
+    public void testScatterFailure() {
+        sql.shards().get(1).exec("drop table tenants");
+        try (Stream<Integer> stream = sql.queryAll("select id from tenants").map(rs -> rs.getInt(1))) {
+            stream.count();
+            Assert.fail();
+        } catch (UncheckedSqlException expected) {
+            // The missing table of the second shard
+        }
+        try {
+            sql.queryAll("select id from tenants order by id").map(rs -> rs.getInt(1), Comparator.naturalOrder());
+            Assert.fail();
+        } catch (UncheckedSqlException expected) {
+            // The missing table of the second shard
+        }
+    }
+
+    /**
+     * Counts the statements prepared and closed by all shards.
+     */
+    private AtomicInteger[] countStatements() {
+        AtomicInteger[] counts = { new AtomicInteger(), new AtomicInteger() };
+        for (Sql shard : sql.shards()) {
+            shard.addListener(new SqlListener() {
+                @Override
+                public void onPrepared(StatementInfo statement, long nanos) {
+                    counts[0].incrementAndGet();
+                }
+
+                @Override
+                public void onClosed(StatementInfo statement, long rows, long nanos) {
+                    counts[1].incrementAndGet();
+                }
+            });
+        }
+        return counts;
+    }
+
+    @Test
+    public void testScatterRejected() {
+        AtomicInteger[] statements = countStatements();
+        AtomicInteger submitted = new AtomicInteger();
+        Executor executor = task -> {
+            if (submitted.incrementAndGet() > 1) {
+                throw new RejectedExecutionException("rejected");
+            }
+            new Thread(task).start();
+        };
+
+        try {
+            sql.queryAll("select id from tenants").prefetch(1).executor(executor).map(rs -> rs.getInt(1));
+            Assert.fail();
+        } catch (RejectedExecutionException expected) {
+            // The reader of the first shard was stopped
+        }
+        Assert.assertEquals(statements[0].get(), statements[1].get());
+
+        submitted.set(0);
+        try {
+            sql.queryAll("select id from tenants order by id").executor(executor)
+                .map(rs -> rs.getInt(1), Comparator.naturalOrder());
+            Assert.fail();
+        } catch (RejectedExecutionException expected) {
+            // The first shard was closed
+        }
+        Assert.assertEquals(statements[0].get(), statements[1].get());
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                ShardedQuery query = sql.queryAll("select id from tenants order by id").executor(Runnable::run);
+                if (i == 0) {
+                    query.map(rs -> rs.getInt(1));
+                } else {
+                    query.map(rs -> rs.getInt(1), Comparator.naturalOrder());
+                }
+                Assert.fail();
+            } catch (RejectedExecutionException expected) {
+                // Readers would have blocked the calling thread
+            }
+        }
+        Assert.assertEquals(statements[0].get(), statements[1].get());
+    }
+
+    @Test
+    public void testScatterClosedBeforeReadersStart() {
+        AtomicInteger[] statements = countStatements();
+        List<Runnable> tasks = new ArrayList<>();
+        Stream<Integer> stream = sql.queryAll("select id from tenants").executor(tasks::add).map(rs -> rs.getInt(1));
+        stream.close();
+        Assert.assertEquals(SHARDS, tasks.size());
+        // Readers started late don't touch their shard
+        tasks.forEach(Runnable::run);
+        Assert.assertEquals(0, statements[0].get());
+    }
+}
@@ -0,0 +1,171 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SingleConnectionDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SingleConnectionDataSourceTests {
+
+    private Connection connection;
+
+    @Before
+    public void setup() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:");
+    }
+
+    @After
+    public void cleanup() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testFailsWhenInUse() throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(connection);
+        Connection first = dataSource.getConnection();
+        Assert.assertFalse(first.isClosed());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> other = executor.submit(() -> dataSource.getConnection());
+            try {
+                other.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        first.close();
+        Assert.assertTrue(first.isClosed());
+        // Closing twice is harmless
+        first.close();
+        dataSource.getConnection().close();
+    }
+
+    @Test
+    public void testLateCloseDoesNotReleaseCurrentHolder() throws SQLException {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(connection, 1, TimeUnit.SECONDS);
+        Connection first = dataSource.getConnection();
+        first.close();
+
+        Connection second = dataSource.getConnection();
+        second.setAutoCommit(false);
+        second.createStatement().execute("create table late_close (a int)");
+        second.createStatement().execute("insert into late_close values (1)");
+        first.close();
+        Assert.assertTrue(first.isClosed());
+        Assert.assertFalse(second.isClosed());
+
+        // The work of the current holder was not rolled back
+        second.commit();
+        try (ResultSet resultSet = second.createStatement().executeQuery("select count(*) from late_close")) {
+            resultSet.next();
+            Assert.assertEquals(1, resultSet.getInt(1));
+        }
+        second.close();
+        dataSource.getConnection().close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReentrancyIsDetected() throws SQLException {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(connection, 1, TimeUnit.SECONDS);
+        dataSource.getConnection();
+        dataSource.getConnection();
+    }
+
+    @Test
+    public void testReentrancyFromSqlIsDetected() {
+        try (Sql sql = Sql.connect(new SingleConnectionDataSource(connection, 1, TimeUnit.SECONDS));
+             Transaction transaction = sql.transaction()) {
+            sql.exec("select 1");
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage().contains("current thread"));
+        }
+    }
+
+    @Test
+    public void testCallersWaitInOrder() throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(connection, 5, TimeUnit.SECONDS);
+        Connection held = dataSource.getConnection();
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Integer> order = new ArrayList<>();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                int id = i;
+                CountDownLatch submitted = new CountDownLatch(1);
+                futures.add(executor.submit(() -> {
+                    submitted.countDown();
+                    try (Connection connection = dataSource.getConnection()) {
+                        synchronized (order) {
+                            order.add(id);
+                        }
+                    }
+                    return null;
+                }));
+                submitted.await();
+                // Let the thread start waiting before the next one arrives
+                while (dataSource.getWaitingThreads() != i + 1) {
+                    Thread.sleep(1);
+                }
+            }
+
+            Assert.assertEquals(threads, dataSource.getWaitingThreads());
+            Thread.sleep(20);
+            held.close();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3), order);
+        Assert.assertEquals(0, dataSource.getWaitingThreads());
+        Assert.assertTrue(dataSource.getWaitTime(TimeUnit.MILLISECONDS) >= 20);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        SingleConnectionDataSource dataSource = new SingleConnectionDataSource(connection, 50, TimeUnit.MILLISECONDS);
+        Connection held = dataSource.getConnection();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> other = executor.submit(() -> dataSource.getConnection());
+            try {
+                other.get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SQLTransientConnectionException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        held.close();
+        dataSource.getConnection().close();
+    }
+}
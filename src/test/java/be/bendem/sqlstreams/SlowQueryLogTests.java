@@ -0,0 +1,82 @@
+package be.bendem.sqlstreams;
+
+import be.bendem.sqlstreams.util.SlowQueryLog;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class SlowQueryLogTests extends BaseTests {
+
+    @Test
+    public void testLogsParameters() {
+        List<SlowQueryLog.SlowQuery> logged = new ArrayList<>();
+        sql.addListener(new SlowQueryLog(0, TimeUnit.MILLISECONDS).sink(logged::add));
+
+        try (Update update = sql.update("insert into users (name, password, activated) values (?, ?, ?)")) {
+            update.with("carol", "secret").setBoolean(3, true).count();
+        }
+
+        Assert.assertEquals(1, logged.size());
+        SlowQueryLog.SlowQuery query = logged.get(0);
+        Assert.assertEquals(StatementInfo.Kind.UPDATE, query.getStatement().getKind());
+        Assert.assertEquals(Arrays.asList("<String>", "<String>", "true"), query.getParameters());
+        Assert.assertEquals(1, query.getRows());
+        Assert.assertTrue(query.getExecutionNanos() >= 0);
+        Assert.assertTrue(query.getOpenNanos() >= query.getExecutionNanos());
+    }
+
+    @Test
+    public void testRedactors() {
+        List<SlowQueryLog.SlowQuery> logged = new ArrayList<>();
+        sql.addListener(new SlowQueryLog(0, TimeUnit.MILLISECONDS).redactor(SlowQueryLog.Redactor.NONE).sink(logged::add));
+        sql.addListener(new SlowQueryLog(0, TimeUnit.MILLISECONDS).redactor(SlowQueryLog.Redactor.ALL).sink(logged::add));
+
+        sql.exec("select * from users where name = ? and id = ?", "bob", 1);
+
+        Assert.assertEquals(2, logged.size());
+        Assert.assertEquals(Arrays.asList("'bob'", "1"), logged.get(0).getParameters());
+        Assert.assertEquals(Arrays.asList("?", "?"), logged.get(1).getParameters());
+    }
+
+    @Test
+    public void testThresholdIncludesStreamLifetime() throws InterruptedException {
+        List<SlowQueryLog.SlowQuery> logged = new ArrayList<>();
+        sql.addListener(new SlowQueryLog(50, TimeUnit.MILLISECONDS).sink(logged::add));
+
+        sql.exec(INSERT_INTO_TEST, 1);
+        Assert.assertTrue(logged.isEmpty());
+
+        try (Stream<Integer> stream = sql.query("select b from test where b = ?").with(1).map(rs -> rs.getInt(1))) {
+            Assert.assertEquals(1, stream.count());
+            Thread.sleep(60);
+        }
+
+        Assert.assertEquals(1, logged.size());
+        SlowQueryLog.SlowQuery query = logged.get(0);
+        Assert.assertEquals("select b from test where b = ?", query.getStatement().getSql());
+        Assert.assertEquals(Collections.singletonList("1"), query.getParameters());
+        Assert.assertEquals(1, query.getRows());
+        Assert.assertTrue(query.getOpenNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertTrue(query.getExecutionNanos() < query.getOpenNanos());
+        Assert.assertTrue(query.toString().startsWith("Slow query open for "));
+    }
+
+    @Test
+    public void testUnsampledStatementsAreLoggedWithoutDetails() {
+        List<SlowQueryLog.SlowQuery> logged = new ArrayList<>();
+        sql.addListener(new SlowQueryLog(0, TimeUnit.MILLISECONDS).sampleRate(0).sink(logged::add));
+
+        sql.exec(INSERT_INTO_TEST, 1);
+
+        Assert.assertEquals(1, logged.size());
+        Assert.assertNull(logged.get(0).getParameters());
+        Assert.assertEquals(-1, logged.get(0).getExecutionNanos());
+        Assert.assertEquals(INSERT_INTO_TEST, logged.get(0).getStatement().getSql());
+    }
+}
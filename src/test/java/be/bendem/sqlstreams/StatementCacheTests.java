@@ -0,0 +1,97 @@
+package be.bendem.sqlstreams;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class StatementCacheTests extends BaseTests {
+
+    @Test
+    public void testStatementIsReused() {
+        sql.enableStatementCache(2);
+
+        PreparedStatement first;
+        try (Update update = sql.update(INSERT_INTO_TEST).with(1)) {
+            first = update.getStatement();
+            Assert.assertEquals(1, update.count());
+        }
+        try (Update update = sql.update(INSERT_INTO_TEST).with(2)) {
+            Assert.assertSame(first, update.getStatement());
+            Assert.assertEquals(1, update.count());
+        }
+
+        try (Stream<Integer> query = sql.query("select b from test order by 1").map(rs -> rs.getInt(1))) {
+            Assert.assertEquals(Arrays.asList(1, 2), query.collect(Collectors.toList()));
+        }
+
+        CacheStatistics statistics = sql.getStatementCacheStatistics();
+        Assert.assertEquals(1, statistics.getHitCount());
+        Assert.assertEquals(2, statistics.getMissCount());
+        Assert.assertEquals(0, statistics.getEvictionCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        sql.enableStatementCache(2);
+
+        sql.first("select 1 from users", rs -> 1);
+        sql.first("select 2 from users", rs -> 2);
+        sql.first("select 3 from users", rs -> 3);
+        Assert.assertEquals(1, sql.getStatementCacheStatistics().getEvictionCount());
+
+        Assert.assertEquals(3, (int) sql.first("select 3 from users", rs -> rs.getInt(1)).get());
+        Assert.assertEquals(1, sql.getStatementCacheStatistics().getHitCount());
+        Assert.assertEquals(1, (int) sql.first("select 1 from users", rs -> rs.getInt(1)).get());
+        Assert.assertEquals(1, sql.getStatementCacheStatistics().getHitCount());
+    }
+
+    @Test
+    public void testConcurrentUseOfTheSameSql() {
+        sql.enableStatementCache(2);
+
+        try (Transaction transaction = sql.transaction()) {
+            try (Query outerQuery = transaction.query("select name from users order by id");
+                 Stream<String> outer = outerQuery.map(rs -> rs.getString(1))) {
+                try (Query inner = transaction.query("select name from users order by id")) {
+                    Assert.assertNotSame(outerQuery.getStatement(), inner.getStatement());
+                    Assert.assertEquals("bob", inner.first(rs -> rs.getString(1)).get());
+                }
+                Assert.assertEquals(Arrays.asList("bob", "georges"), outer.collect(Collectors.toList()));
+            }
+        }
+    }
+
+    @Test
+    public void testSettingsDontCarryOver() {
+        sql.enableStatementCache(2);
+
+        PreparedStatement first;
+        try (Query query = sql.query("select name from users order by id").prepare(statement -> statement.setMaxRows(1));
+             Stream<String> names = query.map(rs -> rs.getString(1))) {
+            first = query.getStatement();
+            Assert.assertEquals(Arrays.asList("bob"), names.collect(Collectors.toList()));
+        }
+        try (Query query = sql.query("select name from users order by id");
+             Stream<String> names = query.map(rs -> rs.getString(1))) {
+            Assert.assertSame(first, query.getStatement());
+            Assert.assertEquals(Arrays.asList("bob", "georges"), names.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        PreparedStatement first;
+        try (Update update = sql.update(INSERT_INTO_TEST).with(1)) {
+            first = update.getStatement();
+            update.count();
+        }
+        try (Update update = sql.update(INSERT_INTO_TEST).with(2)) {
+            Assert.assertNotSame(first, update.getStatement());
+        }
+        Assert.assertEquals(0, sql.getStatementCacheStatistics().getHitCount());
+    }
+}